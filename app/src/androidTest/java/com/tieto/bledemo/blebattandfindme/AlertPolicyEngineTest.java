@@ -0,0 +1,249 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleFindMeProfile;
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BleGattOperationQueue;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+/**
+ * Drives {@link AlertPolicyEngine#evaluate(long)} with synthetic distances and
+ * checks which alert writes it issues.
+ */
+public class AlertPolicyEngineTest extends AndroidTestCase {
+
+    private static final float THRESHOLD = 5f;
+
+    private static class FakeEstimator extends RssiEstimator {
+        float mDistance = -1;
+
+        @Override
+        public synchronized float getDistance(int addressIndex) {
+            return mDistance;
+        }
+    }
+
+    private static class FakeQueue extends BleGattOperationQueue {
+        int mSize;
+
+        FakeQueue() {
+            super(null);
+        }
+
+        @Override
+        public synchronized int size() {
+            return mSize;
+        }
+    }
+
+    private static class FakeConnection extends BleGattConnection {
+        final FakeQueue mQueue = new FakeQueue();
+
+        FakeConnection(Context context) {
+            super(context, null);
+        }
+
+        @Override
+        public BleGattOperationQueue getOperationQueue() {
+            return mQueue;
+        }
+
+        @Override
+        public int getConnectionState() {
+            return BluetoothProfile.STATE_CONNECTED;
+        }
+    }
+
+    /**
+     * Records alert writes, the device takes the level at once unless
+     * {@link #mAcknowledge} is cleared.
+     */
+    private static class FakeUsage extends DemoBatteryHelperUsage {
+        final FakeConnection mConnection;
+        final int mAddressIndex;
+        boolean mAcknowledge = true;
+        int mLevel = BleFindMeProfile.ALERT_LEVEL_NO_ALERT;
+        int mWrites;
+        int mLastWrite = -1;
+
+        FakeUsage(Context context, int addressIndex) {
+            super(context, new DemoBatteryHelperUsageCallback() {
+            });
+            mConnection = new FakeConnection(context);
+            mAddressIndex = addressIndex;
+        }
+
+        @Override
+        public boolean findMe(int alertLevel) {
+            mWrites++;
+            mLastWrite = alertLevel;
+            if (mAcknowledge) {
+                mLevel = alertLevel;
+            }
+            return true;
+        }
+
+        @Override
+        public int getAlertLevel() {
+            return mLevel;
+        }
+
+        @Override
+        public BleGattConnection getConnection() {
+            return mConnection;
+        }
+
+        @Override
+        public int getAddressIndex() {
+            return mAddressIndex;
+        }
+    }
+
+    private FakeEstimator mEstimator;
+    private AlertPolicyEngine mEngine;
+    private FakeUsage mUsage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEstimator = new FakeEstimator();
+        mEngine = new AlertPolicyEngine(mEstimator);
+        mUsage = new FakeUsage(getContext(), 0);
+        mEngine.addDevice(mUsage);
+        mEngine.addRule(0, AlertPolicyEngine.CONDITION_FARTHER_THAN, THRESHOLD,
+                BleFindMeProfile.ALERT_LEVEL_HIGH);
+    }
+
+    public void testHysteresis() {
+        long now = 1000;
+        mEstimator.mDistance = THRESHOLD - 1;
+        mEngine.evaluate(now++);
+        assertEquals(0, mUsage.mWrites);
+
+        mEstimator.mDistance = THRESHOLD + 0.1f;
+        mEngine.evaluate(now++);
+        assertEquals(1, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_HIGH, mUsage.mLastWrite);
+
+        // Back under the threshold, but within the hysteresis.
+        mEstimator.mDistance = THRESHOLD - AlertPolicyEngine.HYSTERESIS / 2;
+        mEngine.evaluate(now++);
+        assertEquals(1, mUsage.mWrites);
+
+        mEstimator.mDistance = THRESHOLD - AlertPolicyEngine.HYSTERESIS * 2;
+        mEngine.evaluate(now++);
+        assertEquals(2, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_NO_ALERT, mUsage.mLastWrite);
+
+        // Turning on again needs the plain threshold.
+        mEstimator.mDistance = THRESHOLD - AlertPolicyEngine.HYSTERESIS / 2;
+        mEngine.evaluate(now);
+        assertEquals(2, mUsage.mWrites);
+    }
+
+    public void testDeduplicatesAgainstAlertLevel() {
+        long now = 1000;
+        mEstimator.mDistance = THRESHOLD * 2;
+        mEngine.evaluate(now);
+        assertEquals(1, mUsage.mWrites);
+        for (int i = 0; i < 100; i++) {
+            mEngine.evaluate(++now);
+        }
+        assertEquals(1, mUsage.mWrites);
+
+        // A level already set by hand is not written again.
+        FakeUsage manual = new FakeUsage(getContext(), 1);
+        manual.mLevel = BleFindMeProfile.ALERT_LEVEL_HIGH;
+        mEngine.addDevice(manual);
+        mEngine.addRule(1, AlertPolicyEngine.CONDITION_FARTHER_THAN, THRESHOLD,
+                BleFindMeProfile.ALERT_LEVEL_HIGH);
+        mEngine.evaluate(++now);
+        assertEquals(0, manual.mWrites);
+        assertEquals(1, mUsage.mWrites);
+    }
+
+    public void testRetriesUnacknowledgedWrite() {
+        long now = 1000;
+        mUsage.mAcknowledge = false;
+        mEstimator.mDistance = THRESHOLD * 2;
+        mEngine.evaluate(now);
+        assertEquals(1, mUsage.mWrites);
+
+        // The write in flight is not repeated before the retry delay.
+        mEngine.evaluate(now + AlertPolicyEngine.WRITE_RETRY_DELAY - 1);
+        assertEquals(1, mUsage.mWrites);
+
+        mEngine.evaluate(now + AlertPolicyEngine.WRITE_RETRY_DELAY);
+        assertEquals(2, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_HIGH, mUsage.mLastWrite);
+    }
+
+    public void testBusyQueueDefersWrite() {
+        long now = 1000;
+        mEstimator.mDistance = THRESHOLD * 2;
+        mUsage.mConnection.mQueue.mSize = AlertPolicyEngine.MAX_QUEUE_DEPTH + 1;
+        mEngine.evaluate(now++);
+        mEngine.evaluate(now++);
+        assertEquals(0, mUsage.mWrites);
+        assertEquals(2, mEngine.getDeferredCount());
+
+        mUsage.mConnection.mQueue.mSize = AlertPolicyEngine.MAX_QUEUE_DEPTH;
+        mEngine.evaluate(now);
+        assertEquals(1, mUsage.mWrites);
+        assertEquals(2, mEngine.getDeferredCount());
+        assertEquals(1, mEngine.getWriteCount());
+    }
+
+    public void testKeepsLevelSetByHand() {
+        long now = 1000;
+        mEstimator.mDistance = THRESHOLD * 2;
+        mEngine.evaluate(now++);
+        mEngine.evaluate(now++);
+        assertEquals(1, mUsage.mWrites);
+
+        // Silenced by hand while the tag is still out of range.
+        mUsage.mLevel = BleFindMeProfile.ALERT_LEVEL_NO_ALERT;
+        mEngine.evaluate(now++);
+        mEngine.evaluate(now + AlertPolicyEngine.WRITE_RETRY_DELAY);
+        now += AlertPolicyEngine.WRITE_RETRY_DELAY + 1;
+        assertEquals(1, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_NO_ALERT, mUsage.mLevel);
+
+        // Back in range the override ends, leaving again raises the alert.
+        mEstimator.mDistance = THRESHOLD - 1;
+        mEngine.evaluate(now++);
+        assertEquals(1, mUsage.mWrites);
+        mEstimator.mDistance = THRESHOLD * 2;
+        mEngine.evaluate(now);
+        assertEquals(2, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_HIGH, mUsage.mLevel);
+    }
+
+    public void testLowersOnlyRaisedLevels() {
+        long now = 1000;
+        // Set by hand while no rule matches, the engine leaves it.
+        mUsage.mLevel = BleFindMeProfile.ALERT_LEVEL_MID;
+        mEstimator.mDistance = THRESHOLD - 1;
+        mEngine.evaluate(now++);
+        mEngine.evaluate(now++);
+        assertEquals(0, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_MID, mUsage.mLevel);
+
+        // Raised by the engine, lowered again once the rule no longer matches.
+        mEstimator.mDistance = THRESHOLD * 2;
+        mEngine.evaluate(now++);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_HIGH, mUsage.mLevel);
+        mEstimator.mDistance = THRESHOLD - 1;
+        mEngine.evaluate(now++);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_NO_ALERT, mUsage.mLevel);
+        assertEquals(2, mUsage.mWrites);
+
+        // Once the device took the lowered level, nothing is left to lower.
+        mEngine.evaluate(now++);
+        mUsage.mLevel = BleFindMeProfile.ALERT_LEVEL_MID;
+        mEngine.evaluate(now + AlertPolicyEngine.WRITE_RETRY_DELAY);
+        assertEquals(2, mUsage.mWrites);
+        assertEquals(BleFindMeProfile.ALERT_LEVEL_MID, mUsage.mLevel);
+    }
+}
@@ -0,0 +1,95 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Checks {@link BatteryHistoryStore} survives a reopen and downsamples old samples.
+ */
+public class BatteryHistoryStoreTest extends AndroidTestCase {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "battery_history_test");
+        mFile.delete();
+        new File(mFile.getPath() + ".devices").delete();
+    }
+
+    public void testRangeQueryAfterReopen() throws Exception {
+        long start = System.currentTimeMillis();
+        BatteryHistoryStore store = new BatteryHistoryStore(mFile);
+        for (int i = 0; i < 100; i++) {
+            store.append("00:00:00:00:00:01", start + i * MINUTE, 100 - i);
+            store.append("00:00:00:00:00:02", start + i * MINUTE, 50);
+        }
+        store.close();
+
+        store = new BatteryHistoryStore(mFile);
+        assertEquals(200, store.size());
+        long[] times = new long[20];
+        int[] levels = new int[20];
+        int found = store.query("00:00:00:00:00:01", start + 10 * MINUTE, start + 30 * MINUTE,
+                times, levels);
+        assertEquals(20, found);
+        assertEquals(90, levels[0]);
+        assertEquals(71, levels[19]);
+        assertEquals(0, store.count("00:00:00:00:00:03", start, start + DAY));
+        store.close();
+    }
+
+    public void testQueryAmongManyDevices() throws Exception {
+        BatteryHistoryStore store = new BatteryHistoryStore(mFile);
+        long start = store.getBaseTimeMillis();
+        // 100 devices interleaved, one sample each per minute.
+        for (int i = 0; i < 200; i++) {
+            for (int device = 0; device < 100; device++) {
+                store.append(String.format("00:00:00:00:00:%02X", device), start + i * MINUTE,
+                        (device + i) % 101);
+            }
+        }
+
+        long[] times = new long[200];
+        int[] levels = new int[200];
+        assertEquals(200, store.query("00:00:00:00:00:2A", start, start + DAY, times, levels));
+        for (int i = 0; i < 200; i++) {
+            assertEquals(start + i * MINUTE, times[i]);
+            assertEquals((42 + i) % 101, levels[i]);
+        }
+        assertEquals(10, store.count("00:00:00:00:00:2A", start + 50 * MINUTE, start + 60 * MINUTE));
+        store.close();
+
+        // The index is rebuilt from the log.
+        store = new BatteryHistoryStore(mFile);
+        assertEquals(20000, store.size());
+        assertEquals(200, store.count("00:00:00:00:00:63", start, start + DAY));
+        store.close();
+    }
+
+    public void testCompactionDownsamplesOldSamples() throws Exception {
+        BatteryHistoryStore store = new BatteryHistoryStore(mFile);
+        // Buckets are aligned to the base time, start there so none is split.
+        long start = store.getBaseTimeMillis();
+        // Every 10 minutes for 30 days.
+        long end = start + 30 * DAY;
+        for (long time = start; time < end; time += 10 * MINUTE) {
+            store.append("00:00:00:00:00:01", time, 80);
+        }
+        store.compact(end);
+
+        // The last week stays raw, older samples are hourly.
+        assertEquals(7 * 24 * 6, store.count("00:00:00:00:00:01", end - 7 * DAY, end));
+        assertEquals(23 * 24, store.count("00:00:00:00:00:01", start, end - 7 * DAY));
+        long[] times = new long[1];
+        int[] levels = new int[1];
+        store.query("00:00:00:00:00:01", start, end, times, levels);
+        assertEquals(80, levels[0]);
+        store.close();
+    }
+}
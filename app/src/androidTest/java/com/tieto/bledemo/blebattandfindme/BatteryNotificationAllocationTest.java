@@ -0,0 +1,92 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleBatteryLevelHelper;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.util.UUID;
+
+/**
+ * Checks the battery notification path from the GATT callback to
+ * {@link DemoBatteryHelperUsageCallback} does not allocate.
+ */
+public class BatteryNotificationAllocationTest extends AndroidTestCase {
+
+    private static final int NOTIFICATIONS = 1000;
+    private static final UUID CHARACTERISTIC_PRESENTATION_FORMAT_DESCRIPTOR_UUID =
+            UUID.fromString("00002904-0000-1000-8000-00805f9b34fb");
+
+    private static class CountingCallback extends DemoBatteryHelperUsageCallback {
+        int mCount;
+        int mLevel;
+        int mNamespace;
+        int mDescription;
+
+        @Override
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            mCount++;
+            mLevel = level;
+            mNamespace = namespace;
+            mDescription = description;
+        }
+    }
+
+    private static BluetoothGattCharacteristic createBatteryLevel(int level, int description) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                BleBatteryLevelHelper.BATTERY_LEVEL_CHARACTER_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        BluetoothGattDescriptor cpfDescriptor = new BluetoothGattDescriptor(
+                CHARACTERISTIC_PRESENTATION_FORMAT_DESCRIPTOR_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ);
+        // uint8, exponent 0, unit percentage, Bluetooth SIG namespace.
+        cpfDescriptor.setValue(new byte[] {0x04, 0x00, (byte) 0xAD, 0x27, 0x01,
+                (byte) description, (byte) (description >> 8)});
+        characteristic.addDescriptor(cpfDescriptor);
+        characteristic.setValue(new byte[] {(byte) level});
+        return characteristic;
+    }
+
+    public void testNotificationDoesNotAllocate() {
+        BluetoothGattCharacteristic characteristic = createBatteryLevel(87, 0x0110);
+
+        CountingCallback callback = new CountingCallback();
+        DemoBatteryHelperUsage usage = new DemoBatteryHelperUsage(getContext(), callback);
+        // Cache the handles as service discovery does, notifications then take the cached path.
+        usage.getBatteryLevelHelper().setBatteryLevelCharacteristic(null, characteristic);
+
+        // Warm up class loading and compilation before counting.
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            usage.notifyBatteryLevel(characteristic);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            usage.notifyBatteryLevel(characteristic);
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        assertEquals(2 * NOTIFICATIONS, callback.mCount);
+        assertEquals(87, callback.mLevel);
+        assertEquals(1, callback.mNamespace);
+        assertEquals(0x0110, callback.mDescription);
+        assertEquals(0, allocations);
+    }
+
+    public void testHighDescriptionIsDelivered() {
+        BluetoothGattCharacteristic characteristic = createBatteryLevel(42, 0x8001);
+
+        CountingCallback callback = new CountingCallback();
+        DemoBatteryHelperUsage usage = new DemoBatteryHelperUsage(getContext(), callback);
+        usage.getBatteryLevelHelper().setBatteryLevelCharacteristic(null, characteristic);
+        usage.notifyBatteryLevel(characteristic);
+
+        assertEquals(1, callback.mCount);
+        assertEquals(42, callback.mLevel);
+        assertEquals(0x8001, callback.mDescription);
+    }
+}
@@ -0,0 +1,66 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks {@link DrainEstimator} fits a steady drain through glitches and orders the fleet.
+ */
+public class DrainEstimatorTest extends AndroidTestCase {
+
+    private static final long HOUR = 3600 * 1000;
+    private static final long START = 1500000000000L;
+
+    public void testTimeToEmptyIgnoresGlitches() {
+        DrainEstimator estimator = new DrainEstimator();
+        assertEquals(DrainEstimator.UNKNOWN, estimator.getEmptyTime(0));
+
+        // 1% per hour from 100%, with a single bogus reading.
+        for (int hour = 0; hour < 50; hour++) {
+            int level = (hour == 20) ? 3 : 100 - hour;
+            boolean accepted = estimator.addSample(0, START + hour * HOUR, level);
+            assertEquals(hour != 20, accepted);
+        }
+        assertEquals(1f, estimator.getDrainRate(0), 0.01f);
+        long now = START + 49 * HOUR;
+        assertEquals(51 * HOUR, estimator.getTimeToEmpty(0, now), HOUR / 2);
+        assertEquals(1, estimator.getRejectedCount());
+    }
+
+    public void testNewBatteryRestartsFit() {
+        DrainEstimator estimator = new DrainEstimator();
+        for (int hour = 0; hour < 10; hour++) {
+            estimator.addSample(0, START + hour * HOUR, 30 - hour);
+        }
+        for (int hour = 10; hour < 13; hour++) {
+            estimator.addSample(0, START + hour * HOUR, 100);
+        }
+        assertEquals(1, estimator.getResetCount());
+        assertEquals(DrainEstimator.UNKNOWN, estimator.getEmptyTime(0));
+    }
+
+    public void testFleetOrderedByEmptyTime() {
+        DrainEstimator estimator = new DrainEstimator();
+        // Device i drains i + 1 percent per hour, device 3 does not drain.
+        for (int hour = 0; hour < 5; hour++) {
+            for (int device = 0; device < 4; device++) {
+                int level = (device == 3) ? 80 : 100 - (device + 1) * hour;
+                estimator.addSample(device, START + hour * HOUR, level);
+            }
+        }
+        int[] devices = new int[4];
+        long[] emptyTimes = new long[4];
+        assertEquals(3, estimator.getFleet(devices, emptyTimes));
+        assertEquals(2, devices[0]);
+        assertEquals(1, devices[1]);
+        assertEquals(0, devices[2]);
+        assertTrue(emptyTimes[0] < emptyTimes[1]);
+
+        // Device 0 suddenly drains fastest.
+        estimator.reset(0);
+        for (int hour = 5; hour < 9; hour++) {
+            estimator.addSample(0, START + hour * HOUR, 50 - 10 * (hour - 5));
+        }
+        assertEquals(3, estimator.getFleet(devices, null));
+        assertEquals(0, devices[0]);
+    }
+}
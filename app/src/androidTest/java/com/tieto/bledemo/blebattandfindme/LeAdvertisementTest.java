@@ -0,0 +1,232 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleBatteryLevelHelper;
+import android.bluetooth.BleFindMeProfile;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * Parses recorded advertisements with {@link LeAdvertisement} and checks that
+ * reusing the parser does not allocate.
+ */
+public class LeAdvertisementTest extends AndroidTestCase {
+
+    private static final String TAG = "LeAdvertisementTest";
+    private static final int ROUNDS = 10000;
+    private static final UUID VENDOR_SERVICE_UUID =
+            UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID VENDOR_SERVICE32_UUID =
+            UUID.fromString("12345678-0000-1000-8000-00805f9b34fb");
+
+    // Key fob: flags, 16-bit UUIDs 0x1802 0x180F, TX power 4 dBm, battery service data 87%.
+    private static final byte[] KEYFOB = {
+            0x02, 0x01, 0x06,
+            0x05, 0x03, 0x02, 0x18, 0x0F, 0x18,
+            0x02, 0x0A, 0x04,
+            0x04, 0x16, 0x0F, 0x18, 0x57,
+            0x00, 0x00, 0x00};
+    // Heart rate sensor with a local name, no battery service.
+    private static final byte[] HEART_RATE = {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0x0D, 0x18,
+            0x05, 0x09, 'H', 'R', 'M', '1'};
+    // Beacon with a 128-bit UUID list.
+    private static final byte[] UUID128 = {
+            0x02, 0x01, 0x04,
+            0x11, 0x07,
+            (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+            0x00, 0x10, 0x00, 0x00, 0x02, 0x18, 0x00, 0x00};
+    // Length runs past the end of the record.
+    private static final byte[] TRUNCATED = {
+            0x02, 0x01, 0x06,
+            0x09, 0x03, 0x0F, 0x18};
+
+    // Battery service listed, then manufacturer data cut short.
+    private static final byte[] TRUNCATED_TAIL = {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0x0F, 0x18,
+            0x08, (byte) 0xFF, 0x59, 0x00};
+
+    // 32-bit UUID list: battery service 0x0000180F and vendor 0x12345678.
+    private static final byte[] UUID32 = {
+            0x02, 0x01, 0x06,
+            0x09, 0x05, 0x0F, 0x18, 0x00, 0x00, 0x78, 0x56, 0x34, 0x12};
+    // Immediate alert service data under its 32-bit UUID 0x00001802.
+    private static final byte[] SERVICE_DATA32 = {
+            0x02, 0x01, 0x06,
+            0x06, 0x20, 0x02, 0x18, 0x00, 0x00, 0x01};
+    // Vendor service data under its 128-bit UUID.
+    private static final byte[] SERVICE_DATA128 = {
+            0x02, 0x01, 0x06,
+            0x12, 0x21,
+            (byte) 0x9E, (byte) 0xCA, (byte) 0xDC, 0x24, 0x0E, (byte) 0xE5, (byte) 0xA9, (byte) 0xE0,
+            (byte) 0x93, (byte) 0xF3, (byte) 0xA3, (byte) 0xB5, 0x01, 0x00, 0x40, 0x6E,
+            0x2A};
+
+    // Battery service listed in 128-bit form, immediate alert data under its 128-bit UUID.
+    private static final byte[] BASE_UUID128 = {
+            0x02, 0x01, 0x06,
+            0x11, 0x06,
+            (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+            0x00, 0x10, 0x00, 0x00, 0x0F, 0x18, 0x00, 0x00};
+    private static final byte[] BASE_SERVICE_DATA128 = {
+            0x02, 0x01, 0x06,
+            0x12, 0x21,
+            (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+            0x00, 0x10, 0x00, 0x00, 0x02, 0x18, 0x00, 0x00,
+            0x01};
+
+    private static final byte[][] CORPUS = {KEYFOB, HEART_RATE, UUID128, TRUNCATED,
+            UUID32, SERVICE_DATA32, SERVICE_DATA128};
+
+    public void testKeyfob() {
+        LeAdvertisement advertisement = new LeAdvertisement();
+        assertTrue(advertisement.wrap(KEYFOB));
+        assertEquals(0x06, advertisement.getFlags());
+        assertEquals(4, advertisement.getTxPowerLevel());
+        assertEquals(2, advertisement.getServiceUuid16Count());
+        assertEquals(0x1802, advertisement.getServiceUuid16(0));
+        assertEquals(0x180F, advertisement.getServiceUuid16(1));
+        assertEquals(1, advertisement.getServiceDataCount());
+        assertEquals(1, advertisement.getServiceDataLength(0));
+        assertEquals(87, advertisement.getBatteryLevel());
+    }
+
+    public void testWithoutBatteryLevel() {
+        LeAdvertisement advertisement = new LeAdvertisement();
+        assertTrue(advertisement.wrap(HEART_RATE));
+        assertEquals(LeAdvertisement.NO_TX_POWER, advertisement.getTxPowerLevel());
+        assertTrue(advertisement.hasServiceUuid16(0x180D));
+        assertEquals(LeAdvertisement.NO_BATTERY_LEVEL, advertisement.getBatteryLevel());
+    }
+
+    public void testUuid128AndTruncated() {
+        LeAdvertisement advertisement = new LeAdvertisement();
+        assertTrue(advertisement.wrap(UUID128));
+        assertEquals(1, advertisement.getServiceUuid128Count());
+        assertEquals(BleFindMeProfile.IMMEDIATE_ALERT_SERVICE_UUID.getMostSignificantBits(),
+                advertisement.getServiceUuid128MostSignificantBits(0));
+        assertEquals(BleFindMeProfile.IMMEDIATE_ALERT_SERVICE_UUID.getLeastSignificantBits(),
+                advertisement.getServiceUuid128LeastSignificantBits(0));
+
+        assertFalse(advertisement.wrap(TRUNCATED));
+        assertEquals(0x06, advertisement.getFlags());
+        assertEquals(0, advertisement.getServiceUuid16Count());
+    }
+
+    public void testUuid32AndServiceData() {
+        LeAdvertisement advertisement = new LeAdvertisement();
+        assertTrue(advertisement.wrap(UUID32));
+        assertEquals(0, advertisement.getServiceUuid16Count());
+        assertEquals(2, advertisement.getServiceUuid32Count());
+        assertEquals(0x180F, advertisement.getServiceUuid32(0));
+        assertTrue(advertisement.hasServiceUuid32(0x12345678));
+
+        assertTrue(advertisement.wrap(SERVICE_DATA32));
+        assertEquals(1, advertisement.getServiceDataCount());
+        assertEquals(4, advertisement.getServiceDataUuidLength(0));
+        assertEquals(-1, advertisement.indexOfServiceData16(0x1802));
+        assertEquals(0, advertisement.indexOfServiceData32(0x1802));
+        assertEquals(9, advertisement.getServiceDataOffset(0));
+        assertEquals(1, advertisement.getServiceDataLength(0));
+
+        assertTrue(advertisement.wrap(SERVICE_DATA128));
+        int index = advertisement.indexOfServiceData128(
+                VENDOR_SERVICE_UUID.getMostSignificantBits(),
+                VENDOR_SERVICE_UUID.getLeastSignificantBits());
+        assertEquals(0, index);
+        assertEquals(16, advertisement.getServiceDataUuidLength(index));
+        assertEquals(1, advertisement.getServiceDataLength(index));
+        assertEquals(0x2A, advertisement.getBytes()[advertisement.getServiceDataOffset(index)]);
+        assertEquals(LeAdvertisement.NO_BATTERY_LEVEL, advertisement.getBatteryLevel());
+    }
+
+    public void testScanFilter() {
+        LeScanFilter filter = new LeScanFilter()
+                .addServiceUuid(BleBatteryLevelHelper.BATTERY_SERVICE_UUID)
+                .addServiceUuid(BleFindMeProfile.IMMEDIATE_ALERT_SERVICE_UUID);
+        LeAdvertisement advertisement = new LeAdvertisement();
+        advertisement.wrap(KEYFOB);
+        assertTrue(filter.matches(advertisement));
+        advertisement.wrap(HEART_RATE);
+        assertFalse(filter.matches(advertisement));
+
+        // The structures before a truncated one still count.
+        assertFalse(advertisement.wrap(TRUNCATED_TAIL));
+        assertTrue(filter.matches(advertisement));
+
+        // 16-bit services advertised in their 32-bit form.
+        advertisement.wrap(UUID32);
+        assertTrue(filter.matches(advertisement));
+        advertisement.wrap(SERVICE_DATA32);
+        assertTrue(filter.matches(advertisement));
+        advertisement.wrap(SERVICE_DATA128);
+        assertFalse(filter.matches(advertisement));
+
+        LeScanFilter vendorFilter = new LeScanFilter()
+                .addServiceUuid(VENDOR_SERVICE_UUID)
+                .addServiceUuid(VENDOR_SERVICE32_UUID);
+        assertTrue(vendorFilter.matches(advertisement));
+        advertisement.wrap(UUID32);
+        assertTrue(vendorFilter.matches(advertisement));
+        advertisement.wrap(KEYFOB);
+        assertFalse(vendorFilter.matches(advertisement));
+    }
+
+    public void testScanFilterMatchesBaseUuidIn128BitForm() {
+        LeScanFilter batteryFilter = new LeScanFilter()
+                .addServiceUuid(BleBatteryLevelHelper.BATTERY_SERVICE_UUID);
+        LeScanFilter alertFilter = new LeScanFilter()
+                .addServiceUuid(BleFindMeProfile.IMMEDIATE_ALERT_SERVICE_UUID);
+        LeAdvertisement advertisement = new LeAdvertisement();
+
+        assertTrue(advertisement.wrap(BASE_UUID128));
+        assertEquals(0, advertisement.getServiceUuid16Count());
+        assertTrue(batteryFilter.matches(advertisement));
+        assertFalse(alertFilter.matches(advertisement));
+
+        assertTrue(advertisement.wrap(BASE_SERVICE_DATA128));
+        assertEquals(-1, advertisement.indexOfServiceData16(0x1802));
+        assertTrue(alertFilter.matches(advertisement));
+        assertFalse(batteryFilter.matches(advertisement));
+    }
+
+    public void testParseDoesNotAllocate() {
+        LeAdvertisement advertisement = new LeAdvertisement();
+        int levels = 0;
+        // Warm up class loading and compilation before counting.
+        for (int i = 0; i < ROUNDS; i++) {
+            levels += parse(advertisement);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ROUNDS; i++) {
+            levels += parse(advertisement);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        Log.d(TAG, (elapsed / (ROUNDS * CORPUS.length)) + "ns per record");
+        assertEquals(2 * ROUNDS * 87, levels);
+        assertEquals(0, allocations);
+    }
+
+    private static int parse(LeAdvertisement advertisement) {
+        int levels = 0;
+        for (byte[] record : CORPUS) {
+            advertisement.wrap(record);
+            int level = advertisement.getBatteryLevel();
+            if (level != LeAdvertisement.NO_BATTERY_LEVEL) {
+                levels += level;
+            }
+        }
+        return levels;
+    }
+}
@@ -0,0 +1,88 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Checks {@link LeDeviceRegistry} keeps positions stable and that updating a
+ * known device costs the same with 100 or 10000 devices listed.
+ */
+public class LeDeviceRegistryTest extends AndroidTestCase {
+
+    private static final String TAG = "LeDeviceRegistryTest";
+    private static final int UPDATES = 100000;
+    private static final int ROUNDS = 5;
+    // A linear lookup would be about 100 times slower with 100 times the devices,
+    // this leaves room for cache misses on the larger tables.
+    private static final int MAX_SLOWDOWN = 4;
+
+    public void testPackAddress() {
+        assertEquals(0x001122AABBCCL, LeDeviceRegistry.packAddress("00:11:22:AA:BB:CC"));
+        assertEquals(0xFFFFFFFFFFFFL, LeDeviceRegistry.packAddress("ff:ff:ff:ff:ff:ff"));
+        assertEquals(-1, LeDeviceRegistry.packAddress("00:11:22:AA:BB"));
+        assertEquals(-1, LeDeviceRegistry.packAddress("00-11-22-AA-BB-CC"));
+        assertEquals(-1, LeDeviceRegistry.packAddress(null));
+    }
+
+    public void testPositionsAreStable() {
+        LeDeviceRegistry registry = new LeDeviceRegistry();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, registry.update(address(i), null, -i, i));
+        }
+        assertEquals(1000, registry.size());
+
+        // Updating in place keeps the position and the count.
+        assertEquals(0, registry.update(address(0), null, -42, 5000));
+        assertEquals(1000, registry.size());
+        assertEquals(-42, registry.getRssi(0));
+        assertEquals(5000, registry.getLastSeen(0));
+        assertEquals(999, registry.indexOf(address(999)));
+        assertEquals(address(999), registry.getAddress(999));
+        assertEquals(-1, registry.indexOf(address(1000)));
+
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertEquals(-1, registry.indexOf(address(0)));
+    }
+
+    public void testUpdateScales() {
+        LeDeviceRegistry small = fill(100);
+        LeDeviceRegistry large = fill(10000);
+        // Best of several rounds, after a warm up, keeps scheduling noise out.
+        timeUpdates(small, 100);
+        timeUpdates(large, 10000);
+        long smallNanos = Long.MAX_VALUE;
+        long largeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            smallNanos = Math.min(smallNanos, timeUpdates(small, 100));
+            largeNanos = Math.min(largeNanos, timeUpdates(large, 10000));
+        }
+        Log.d(TAG, UPDATES + " updates: 100 devices " + smallNanos / 1000 + "us, 10000 devices "
+                + largeNanos / 1000 + "us");
+        assertEquals(100, small.size());
+        assertEquals(10000, large.size());
+        assertTrue("update cost grows with the device count",
+                largeNanos <= MAX_SLOWDOWN * smallNanos);
+    }
+
+    private static LeDeviceRegistry fill(int devices) {
+        LeDeviceRegistry registry = new LeDeviceRegistry();
+        for (int i = 0; i < devices; i++) {
+            registry.update(address(i), null, 0, 0);
+        }
+        return registry;
+    }
+
+    private static long timeUpdates(LeDeviceRegistry registry, int devices) {
+        long start = System.nanoTime();
+        for (int i = 0; i < UPDATES; i++) {
+            registry.update(address(i % devices), null, -60, i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long address(int i) {
+        // Same vendor prefix for every device, like a fleet of one product.
+        return 0x001122000000L | i;
+    }
+}
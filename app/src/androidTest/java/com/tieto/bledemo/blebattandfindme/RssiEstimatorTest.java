@@ -0,0 +1,58 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+/**
+ * Checks {@link RssiEstimator} converges on a noisy signal without allocating.
+ */
+public class RssiEstimatorTest extends AndroidTestCase {
+
+    private static final int DEVICES = 32;
+    private static final int SAMPLES = 1000;
+
+    public void testDistanceAtMeasuredPower() {
+        RssiEstimator estimator = new RssiEstimator();
+        assertFalse(estimator.hasSamples(0));
+        assertTrue(estimator.getDistance(0) < 0);
+
+        for (int i = 0; i < 100; i++) {
+            estimator.addSample(0, RssiEstimator.DEFAULT_MEASURED_POWER);
+        }
+        assertEquals(1f, estimator.getDistance(0), 0.01f);
+
+        estimator.reset(0);
+        assertFalse(estimator.hasSamples(0));
+    }
+
+    public void testFiltersNoise() {
+        RssiEstimator estimator = new RssiEstimator();
+        // +-6 dB of alternating noise around -70 dBm.
+        for (int i = 0; i < 200; i++) {
+            estimator.addSample(3, (i % 2 == 0) ? -64 : -76);
+        }
+        assertEquals(-70f, estimator.getFilteredRssi(3), 1.5f);
+        assertEquals(-70f, estimator.getEmaRssi(3), 1.5f);
+        assertEquals(-76, estimator.getLatestRssi(3));
+        // Farther than the 1 m reference, the filtered value is used.
+        assertTrue(estimator.getDistance(3) > 1f);
+    }
+
+    public void testAddSampleDoesNotAllocate() {
+        RssiEstimator estimator = new RssiEstimator();
+        // Size the arrays and warm up before counting.
+        for (int i = 0; i < SAMPLES; i++) {
+            estimator.addSample(i % DEVICES, -60 - (i % 20));
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < SAMPLES; i++) {
+            estimator.addSample(i % DEVICES, -60 - (i % 20));
+            estimator.getDistance(i % DEVICES);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals(0, Debug.getThreadAllocCount());
+    }
+}
@@ -0,0 +1,351 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleFindMeProfile;
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BleGattOperationQueue;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Raises FindMe alerts automatically from proximity and link loss rules.
+ *
+ * <p>Each rule ties a condition of one device to an alert level. On every tick
+ * the engine evaluates all rules, and each device gets the highest level of
+ * its matching rules. A level is only written when it differs from
+ * {@link DemoBatteryHelperUsage#getAlertLevel()} and from the write already in
+ * flight. A device whose GATT queue is backed up is skipped for the tick, so
+ * alerts never crowd out other operations. Levels raised by the engine are
+ * lowered to no alert once no rule matches anymore; levels set by hand are
+ * left alone. A level changed by hand while a rule matches, e.g. to silence
+ * the tag, is kept until no rule of the device matches anymore.
+ *
+ * <p>Rules live in primitive arrays, a tick walks them without allocating.
+ */
+public class AlertPolicyEngine {
+
+    private static final String TAG = "AlertPolicyEngine";
+
+    /** Estimated distance is above the threshold, in meters. */
+    public static final int CONDITION_FARTHER_THAN = 1;
+    /** Estimated distance is below the threshold, in meters. */
+    public static final int CONDITION_CLOSER_THAN = 2;
+    /** Link was lost, until the threshold in milliseconds after it came back. */
+    public static final int CONDITION_LINK_LOST = 3;
+
+    public static final long DEFAULT_PERIOD = 200;
+    // A distance condition turns off only once the estimate is this far back past the threshold.
+    static final float HYSTERESIS = 0.5f;
+    // Skip a device while more GATT operations than this are queued on its link.
+    static final int MAX_QUEUE_DEPTH = 2;
+    // A write not reflected by getAlertLevel() after this time is sent again.
+    static final long WRITE_RETRY_DELAY = 3000;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final RssiEstimator mEstimator;
+
+    // Rules.
+    private int[] mRuleDevice = new int[INITIAL_CAPACITY];
+    private int[] mRuleCondition = new int[INITIAL_CAPACITY];
+    private float[] mRuleThreshold = new float[INITIAL_CAPACITY];
+    private int[] mRuleLevel = new int[INITIAL_CAPACITY];
+    private boolean[] mRuleActive = new boolean[INITIAL_CAPACITY];
+    private int mRuleCount=0;
+
+    // Devices, per address index.
+    private DemoBatteryHelperUsage[] mDevices = new DemoBatteryHelperUsage[INITIAL_CAPACITY];
+    private int[] mTargetLevel = new int[INITIAL_CAPACITY];
+    private int[] mRequestedLevel = new int[INITIAL_CAPACITY];
+    private long[] mRequestTime = new long[INITIAL_CAPACITY];
+    private boolean[] mRaised = new boolean[INITIAL_CAPACITY];
+    // Level the device last took from the engine, -1 if none.
+    private int[] mEngineLevel = new int[INITIAL_CAPACITY];
+    // Set by hand while a rule matched, left alone until no rule matches.
+    private boolean[] mOverridden = new boolean[INITIAL_CAPACITY];
+    private boolean[] mWasConnected = new boolean[INITIAL_CAPACITY];
+    private boolean[] mLinkLost = new boolean[INITIAL_CAPACITY];
+    private long[] mReconnectTime = new long[INITIAL_CAPACITY];
+
+    private HandlerThread mThread=null;
+    private volatile Handler mHandler=null;
+    private volatile long mPeriod = DEFAULT_PERIOD;
+    private long mEvaluationCount=0;
+    private long mWriteCount=0;
+    private long mDeferredCount=0;
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            evaluate(SystemClock.elapsedRealtime());
+            Handler handler = mHandler;
+            if (null != handler) {
+                handler.postDelayed(this, mPeriod);
+            }
+        }
+    };
+
+    public AlertPolicyEngine(RssiEstimator estimator) {
+        mEstimator = estimator;
+    }
+
+    public synchronized void setPeriod(long periodMillis) {
+        mPeriod = periodMillis;
+    }
+
+    /**
+     * Let the engine write alerts to a device.
+     */
+    public synchronized void addDevice(DemoBatteryHelperUsage usage) {
+        int addressIndex = usage.getAddressIndex();
+        if (addressIndex < 0) {
+            return;
+        }
+        ensureDeviceCapacity(addressIndex);
+        mDevices[addressIndex] = usage;
+        mRaised[addressIndex] = false;
+        mRequestedLevel[addressIndex] = -1;
+        mEngineLevel[addressIndex] = -1;
+        mOverridden[addressIndex] = false;
+    }
+
+    public synchronized void removeDevice(DemoBatteryHelperUsage usage) {
+        int addressIndex = usage.getAddressIndex();
+        if (addressIndex >= 0 && addressIndex < mDevices.length && mDevices[addressIndex] == usage) {
+            mDevices[addressIndex] = null;
+        }
+    }
+
+    /**
+     * Add a rule.
+     *
+     * @param addressIndex device, see {@link BleConnectionManager#getAddressIndex(String)}.
+     * @param condition one of the CONDITION constants.
+     * @param threshold meters for distance conditions, milliseconds for link loss.
+     * @param alertLevel level to set while the condition holds.
+     * @return index of the rule.
+     */
+    public synchronized int addRule(int addressIndex, int condition, float threshold, int alertLevel) {
+        if (alertLevel < BleFindMeProfile.ALERT_LEVEL_NO_ALERT
+                || alertLevel > BleFindMeProfile.ALERT_LEVEL_HIGH) {
+            throw new IllegalArgumentException("alert level out of range");
+        }
+        if (mRuleCount == mRuleDevice.length) {
+            int capacity = mRuleCount * 2;
+            mRuleDevice = Arrays.copyOf(mRuleDevice, capacity);
+            mRuleCondition = Arrays.copyOf(mRuleCondition, capacity);
+            mRuleThreshold = Arrays.copyOf(mRuleThreshold, capacity);
+            mRuleLevel = Arrays.copyOf(mRuleLevel, capacity);
+            mRuleActive = Arrays.copyOf(mRuleActive, capacity);
+        }
+        ensureDeviceCapacity(addressIndex);
+        int rule = mRuleCount++;
+        mRuleDevice[rule] = addressIndex;
+        mRuleCondition[rule] = condition;
+        mRuleThreshold[rule] = threshold;
+        mRuleLevel[rule] = alertLevel;
+        mRuleActive[rule] = false;
+        return rule;
+    }
+
+    public synchronized void clearRules() {
+        mRuleCount = 0;
+    }
+
+    /**
+     * Remove the rules of one device, the indexes of other rules may change.
+     */
+    public synchronized void removeRules(int addressIndex) {
+        int kept = 0;
+        for (int rule = 0; rule < mRuleCount; rule++) {
+            if (mRuleDevice[rule] == addressIndex) {
+                continue;
+            }
+            mRuleDevice[kept] = mRuleDevice[rule];
+            mRuleCondition[kept] = mRuleCondition[rule];
+            mRuleThreshold[kept] = mRuleThreshold[rule];
+            mRuleLevel[kept] = mRuleLevel[rule];
+            mRuleActive[kept] = mRuleActive[rule];
+            kept++;
+        }
+        mRuleCount = kept;
+    }
+
+    public synchronized int getRuleCount() {
+        return mRuleCount;
+    }
+
+    public synchronized long getEvaluationCount() {
+        return mEvaluationCount;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return number of writes postponed because the GATT queue was busy.
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    public synchronized void start() {
+        if (null != mThread) {
+            return;
+        }
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mTick);
+    }
+
+    public synchronized void stop() {
+        if (null == mThread) {
+            return;
+        }
+        mHandler.removeCallbacks(mTick);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Evaluate every rule once and issue the resulting writes.
+     */
+    synchronized void evaluate(long now) {
+        int devices = mDevices.length;
+        Arrays.fill(mTargetLevel, 0, devices, -1);
+
+        for (int i = 0; i < devices; i++) {
+            DemoBatteryHelperUsage usage = mDevices[i];
+            if (null != usage) {
+                updateLinkState(i, usage.getConnection(), now);
+            }
+        }
+
+        for (int rule = 0; rule < mRuleCount; rule++) {
+            int device = mRuleDevice[rule];
+            boolean active = isActive(rule, device, now);
+            mRuleActive[rule] = active;
+            if (active && mRuleLevel[rule] > mTargetLevel[device]) {
+                mTargetLevel[device] = mRuleLevel[rule];
+            }
+        }
+        mEvaluationCount += mRuleCount;
+
+        for (int i = 0; i < devices; i++) {
+            DemoBatteryHelperUsage usage = mDevices[i];
+            if (null != usage) {
+                apply(i, usage, now);
+            }
+        }
+    }
+
+    private boolean isActive(int rule, int device, long now) {
+        float threshold = mRuleThreshold[rule];
+        switch (mRuleCondition[rule]) {
+            case CONDITION_FARTHER_THAN:
+            case CONDITION_CLOSER_THAN: {
+                float distance = mEstimator.getDistance(device);
+                if (distance < 0) {
+                    return false;
+                }
+                boolean farther = mRuleCondition[rule] == CONDITION_FARTHER_THAN;
+                if (mRuleActive[rule]) {
+                    // Hold until clearly past the threshold again.
+                    threshold += farther ? -HYSTERESIS : HYSTERESIS;
+                }
+                return farther ? distance > threshold : distance < threshold;
+            }
+            case CONDITION_LINK_LOST:
+                return mLinkLost[device] && (!mWasConnected[device]
+                        || now - mReconnectTime[device] < (long) threshold);
+            default:
+                return false;
+        }
+    }
+
+    private void updateLinkState(int device, BleGattConnection connection, long now) {
+        boolean connected = null != connection
+                && connection.getConnectionState() == BluetoothProfile.STATE_CONNECTED;
+        if (connected && !mWasConnected[device]) {
+            mReconnectTime[device] = now;
+        } else if (!connected && mWasConnected[device]) {
+            mLinkLost[device] = true;
+        }
+        mWasConnected[device] = connected;
+    }
+
+    private void apply(int device, DemoBatteryHelperUsage usage, long now) {
+        int target = mTargetLevel[device];
+        if (target < 0) {
+            mOverridden[device] = false;
+            if (!mRaised[device]) {
+                return;
+            }
+            // Lower only what the engine raised.
+            target = BleFindMeProfile.ALERT_LEVEL_NO_ALERT;
+        } else if (mOverridden[device]) {
+            return;
+        }
+        if (!mWasConnected[device]) {
+            return;
+        }
+
+        int level = usage.getAlertLevel();
+        if (level == target) {
+            mRaised[device] = target != BleFindMeProfile.ALERT_LEVEL_NO_ALERT;
+            mRequestedLevel[device] = -1;
+            // Once lowered, the engine has no level of its own on the device.
+            mEngineLevel[device] = (mTargetLevel[device] < 0) ? -1 : target;
+            return;
+        }
+        if (mEngineLevel[device] >= 0 && level != mEngineLevel[device]
+                && level != mRequestedLevel[device]) {
+            // Changed away from the engine's level, not by a write of the engine.
+            Log.d(TAG, "device " + device + " alert level " + level + " set by hand");
+            mOverridden[device] = true;
+            mRaised[device] = false;
+            mEngineLevel[device] = -1;
+            mRequestedLevel[device] = -1;
+            return;
+        }
+        if (mRequestedLevel[device] == target && now - mRequestTime[device] < WRITE_RETRY_DELAY) {
+            return;
+        }
+
+        BleGattConnection connection = usage.getConnection();
+        BleGattOperationQueue queue = (null == connection) ? null : connection.getOperationQueue();
+        if (null == queue || queue.size() > MAX_QUEUE_DEPTH) {
+            mDeferredCount++;
+            return;
+        }
+        if (usage.findMe(target)) {
+            Log.d(TAG, "device " + device + " alert level " + target);
+            mWriteCount++;
+            mRequestedLevel[device] = target;
+            mRequestTime[device] = now;
+            mRaised[device] = true;
+        }
+    }
+
+    private void ensureDeviceCapacity(int addressIndex) {
+        if (addressIndex < mDevices.length) {
+            return;
+        }
+        int capacity = Math.max(addressIndex + 1, mDevices.length * 2);
+        mDevices = Arrays.copyOf(mDevices, capacity);
+        mTargetLevel = Arrays.copyOf(mTargetLevel, capacity);
+        mRequestedLevel = Arrays.copyOf(mRequestedLevel, capacity);
+        mRequestTime = Arrays.copyOf(mRequestTime, capacity);
+        mRaised = Arrays.copyOf(mRaised, capacity);
+        mEngineLevel = Arrays.copyOf(mEngineLevel, capacity);
+        mOverridden = Arrays.copyOf(mOverridden, capacity);
+        mWasConnected = Arrays.copyOf(mWasConnected, capacity);
+        mLinkLost = Arrays.copyOf(mLinkLost, capacity);
+        mReconnectTime = Arrays.copyOf(mReconnectTime, capacity);
+    }
+}
@@ -0,0 +1,427 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Battery level history of every device, in a memory-mapped log file.
+ *
+ * <p>Each sample is an 8 byte record: seconds since the base time of the log,
+ * device id and level. Samples are appended in time order. The record numbers
+ * of each device are indexed in memory, so a range query is a binary search
+ * over the records of that device followed by a read of only those. Device
+ * ids index a small sidecar file of addresses, they stay the same across
+ * restarts.
+ *
+ * <p>Once a day the log is compacted: samples older than a week are averaged
+ * into hourly buckets, samples older than 90 days into daily buckets. A year
+ * of history stays at a few thousand records per device.
+ *
+ * <p>Methods are thread safe. {@link #append(String, long, int)} may compact
+ * and rewrite the whole log, call it from a thread that can wait for that.
+ */
+public class BatteryHistoryStore {
+
+    private static final int MAGIC = 0x42415454;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int OFFSET_BASE_TIME = 8;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_COMPACTED = 20;
+    private static final int RECORD_SIZE = 8;
+    // The mapping grows by this many records at a time.
+    private static final int GROWTH_RECORDS = 8192;
+    // Initial size of the record index of a device.
+    private static final int INDEX_CAPACITY = 64;
+
+    private static final long HOUR = 3600;
+    private static final long DAY = 24 * HOUR;
+    private static final long RAW_RETENTION = 7 * DAY;
+    private static final long HOURLY_RETENTION = 90 * DAY;
+    private static final long COMPACTION_INTERVAL = DAY;
+    // Last byte of a record, how many samples it stands for.
+    private static final int RESOLUTION_RAW = 0;
+    private static final int RESOLUTION_HOUR = 1;
+    private static final int RESOLUTION_DAY = 2;
+
+    private final File mFile;
+    private final File mDeviceFile;
+    private RandomAccessFile mRandomAccessFile=null;
+    private FileChannel mChannel=null;
+    private MappedByteBuffer mBuffer=null;
+    private long mBaseTime;
+    private int mCount;
+    // Seconds since the base time, of the last compaction.
+    private int mCompactedTime;
+    private final ArrayList<String> mDevices = new ArrayList<String>();
+    private final HashMap<String, Integer> mDeviceIds = new HashMap<String, Integer>();
+    // Record numbers of each device id in time order, rebuilt whenever the log is opened.
+    private int[][] mDeviceRecords = new int[0][];
+    private int[] mDeviceRecordCounts = new int[0];
+
+    /**
+     * Open a store, creating it if needed.
+     *
+     * @param file log file, the device table is kept next to it.
+     */
+    public BatteryHistoryStore(File file) throws IOException {
+        mFile = file;
+        mDeviceFile = new File(file.getPath() + ".devices");
+        open();
+        loadDevices();
+    }
+
+    /**
+     * Append a sample. A time before the last sample is stored as the time of
+     * the last sample, to keep the log ordered.
+     *
+     * @param timeMillis wall clock time, see {@link System#currentTimeMillis()}.
+     */
+    public synchronized void append(String address, long timeMillis, int level) throws IOException {
+        checkOpen();
+        int time = toRelative(timeMillis);
+        if (time - mCompactedTime >= COMPACTION_INTERVAL) {
+            compact(timeMillis);
+        }
+        if (mCount > 0) {
+            time = Math.max(time, getTime(mCount - 1));
+        }
+        ensureCapacity(mCount + 1);
+        putRecord(mCount, time, getDeviceId(address), level, RESOLUTION_RAW);
+        mCount++;
+        // The count is written last, a record torn by a crash is not counted.
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+        indexRecord(mCount - 1);
+    }
+
+    /**
+     * @return number of records of all devices.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return wall clock time the log counts from, in milliseconds; hourly and
+     *         daily buckets start on whole hours and days after it.
+     */
+    synchronized long getBaseTimeMillis() {
+        return mBaseTime * 1000;
+    }
+
+    /**
+     * Number of samples of a device in a time range, to size the query arrays.
+     */
+    public synchronized int count(String address, long fromMillis, long toMillis) {
+        return query(address, fromMillis, toMillis, null, null);
+    }
+
+    /**
+     * Read the samples of a device in a time range, oldest first.
+     *
+     * @param fromMillis start of the range, inclusive.
+     * @param toMillis end of the range, exclusive.
+     * @param times receives the sample times in milliseconds, or null to only count.
+     * @param levels receives the levels, or null to only count.
+     * @return number of samples in the range; at most the array length are read.
+     */
+    public synchronized int query(String address, long fromMillis, long toMillis,
+                                  long[] times, int[] levels) {
+        Integer deviceId = mDeviceIds.get(address);
+        if (null == deviceId || null == mBuffer || deviceId >= mDeviceRecords.length
+                || null == mDeviceRecords[deviceId]) {
+            return 0;
+        }
+        int[] records = mDeviceRecords[deviceId];
+        int recordCount = mDeviceRecordCounts[deviceId];
+        int from = toRelative(fromMillis);
+        int to = toRelative(toMillis);
+        int limit = (null == times || null == levels) ? 0 : Math.min(times.length, levels.length);
+
+        int found = 0;
+        for (int i = lowerBound(records, recordCount, from); i < recordCount; i++) {
+            int time = getTime(records[i]);
+            if (time >= to) {
+                break;
+            }
+            if (found < limit) {
+                times[found] = (mBaseTime + time) * 1000;
+                levels[found] = getLevel(records[i]);
+            }
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * Downsample old samples, see the class description. Called on its own
+     * from {@link #append(String, long, int)} once a day.
+     */
+    public synchronized void compact(long nowMillis) throws IOException {
+        checkOpen();
+        int now = toRelative(nowMillis);
+        // Cutoffs on bucket boundaries, so no bucket is ever split over two compactions.
+        long rawCutoff = floor(now - RAW_RETENTION, HOUR);
+        long hourlyCutoff = floor(now - HOURLY_RETENTION, DAY);
+
+        int old = lowerBound((int) Math.max(rawCutoff, Integer.MIN_VALUE));
+        // Key: bucket start in the high bits, device id in the low 16 bits.
+        HashMap<Long, int[]> buckets = new HashMap<Long, int[]>();
+        for (int i = 0; i < old; i++) {
+            int time = getTime(i);
+            long bucket = (time < hourlyCutoff) ? floor(time, DAY) : floor(time, HOUR);
+            long key = (bucket << 16) | getDevice(i);
+            int[] sum = buckets.get(key);
+            if (null == sum) {
+                sum = new int[3];
+                sum[2] = (time < hourlyCutoff) ? RESOLUTION_DAY : RESOLUTION_HOUR;
+                buckets.put(key, sum);
+            }
+            sum[0] += getLevel(i);
+            sum[1]++;
+        }
+
+        long[] keys = new long[buckets.size()];
+        int k = 0;
+        for (Long key : buckets.keySet()) {
+            keys[k++] = key;
+        }
+        // Bucket start first, so the compacted records stay in time order.
+        Arrays.sort(keys);
+
+        int recent = mCount - old;
+        File compacted = new File(mFile.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            int count = keys.length + recent;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) (count + GROWTH_RECORDS) * RECORD_SIZE);
+            writeHeader(buffer, mBaseTime, count, now);
+            int position = HEADER_SIZE;
+            for (long key : keys) {
+                int[] sum = buckets.get(key);
+                int level = (sum[0] + sum[1] / 2) / sum[1];
+                putRecord(buffer, position, (int) (key >> 16), (int) (key & 0xFFFF), level, sum[2]);
+                position += RECORD_SIZE;
+            }
+            for (int i = old; i < mCount; i++) {
+                buffer.putLong(position, mBuffer.getLong(HEADER_SIZE + i * RECORD_SIZE));
+                position += RECORD_SIZE;
+            }
+            buffer.force();
+        } finally {
+            out.close();
+        }
+
+        close();
+        if (!compacted.renameTo(mFile)) {
+            throw new IOException("cannot replace " + mFile);
+        }
+        open();
+    }
+
+    public synchronized void close() {
+        if (null == mRandomAccessFile) {
+            return;
+        }
+        mBuffer.force();
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            // Nothing left to release.
+        }
+        mRandomAccessFile = null;
+        mChannel = null;
+        mBuffer = null;
+    }
+
+    private void open() throws IOException {
+        boolean exists = mFile.exists() && mFile.length() >= HEADER_SIZE;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        if (exists) {
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mChannel.size());
+            if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+                close();
+                throw new IOException("not a battery history: " + mFile);
+            }
+            mBaseTime = mBuffer.getLong(OFFSET_BASE_TIME);
+            mCount = mBuffer.getInt(OFFSET_COUNT);
+            mCompactedTime = mBuffer.getInt(OFFSET_COMPACTED);
+            // A count beyond the mapping comes from a torn header, keep what is there.
+            mCount = Math.min(mCount, (mBuffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+        } else {
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) GROWTH_RECORDS * RECORD_SIZE);
+            mBaseTime = System.currentTimeMillis() / 1000;
+            mCount = 0;
+            mCompactedTime = 0;
+            writeHeader(mBuffer, mBaseTime, 0, 0);
+        }
+        buildIndex();
+    }
+
+    private void buildIndex() {
+        Arrays.fill(mDeviceRecordCounts, 0);
+        for (int i = 0; i < mCount; i++) {
+            indexRecord(i);
+        }
+    }
+
+    private void indexRecord(int record) {
+        int device = getDevice(record);
+        if (device >= mDeviceRecords.length) {
+            int capacity = Math.max(device + 1, mDeviceRecords.length * 2);
+            mDeviceRecords = Arrays.copyOf(mDeviceRecords, capacity);
+            mDeviceRecordCounts = Arrays.copyOf(mDeviceRecordCounts, capacity);
+        }
+        int[] records = mDeviceRecords[device];
+        int count = mDeviceRecordCounts[device];
+        if (null == records) {
+            records = new int[INDEX_CAPACITY];
+            mDeviceRecords[device] = records;
+        } else if (count == records.length) {
+            records = Arrays.copyOf(records, count * 2);
+            mDeviceRecords[device] = records;
+        }
+        records[count] = record;
+        mDeviceRecordCounts[device] = count + 1;
+    }
+
+    private void loadDevices() throws IOException {
+        if (!mDeviceFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(mDeviceFile));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                mDeviceIds.put(line, mDevices.size());
+                mDevices.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int getDeviceId(String address) throws IOException {
+        Integer deviceId = mDeviceIds.get(address);
+        if (null != deviceId) {
+            return deviceId;
+        }
+        FileWriter writer = new FileWriter(mDeviceFile, true);
+        try {
+            writer.write(address);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        deviceId = mDevices.size();
+        mDevices.add(address);
+        mDeviceIds.put(address, deviceId);
+        return deviceId;
+    }
+
+    private void checkOpen() throws IOException {
+        if (null == mBuffer) {
+            throw new IOException("battery history is closed");
+        }
+    }
+
+    private void ensureCapacity(int records) throws IOException {
+        long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+        if (size <= mBuffer.capacity()) {
+            return;
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                size + (long) GROWTH_RECORDS * RECORD_SIZE);
+    }
+
+    /**
+     * @return index of the first record at or after a time.
+     */
+    private int lowerBound(int time) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index in records of the first record at or after a time.
+     */
+    private int lowerBound(int[] records, int count, int time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(records[mid]) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int toRelative(long timeMillis) {
+        long seconds = timeMillis / 1000 - mBaseTime;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, seconds));
+    }
+
+    private static long floor(long time, long unit) {
+        long remainder = time % unit;
+        return (remainder < 0) ? time - remainder - unit : time - remainder;
+    }
+
+    private int getTime(int record) {
+        return mBuffer.getInt(HEADER_SIZE + record * RECORD_SIZE);
+    }
+
+    private int getDevice(int record) {
+        return mBuffer.getShort(HEADER_SIZE + record * RECORD_SIZE + 4) & 0xFFFF;
+    }
+
+    private int getLevel(int record) {
+        return mBuffer.get(HEADER_SIZE + record * RECORD_SIZE + 6) & 0xFF;
+    }
+
+    private void putRecord(int record, int time, int device, int level, int resolution) {
+        putRecord(mBuffer, HEADER_SIZE + record * RECORD_SIZE, time, device, level, resolution);
+    }
+
+    private static void putRecord(MappedByteBuffer buffer, int position, int time, int device,
+                                  int level, int resolution) {
+        buffer.putInt(position, time);
+        buffer.putShort(position + 4, (short) device);
+        buffer.put(position + 6, (byte) level);
+        buffer.put(position + 7, (byte) resolution);
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer, long baseTime, int count,
+                                    int compactedTime) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(OFFSET_BASE_TIME, baseTime);
+        buffer.putInt(OFFSET_COUNT, count);
+        buffer.putInt(OFFSET_COMPACTED, compactedTime);
+    }
+}
@@ -0,0 +1,279 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BleGattOperationCallback;
+import android.bluetooth.BleGattOperationQueue;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Reads the battery level of devices that cannot notify it.
+ *
+ * <p>The read interval of each device adapts to its level: it doubles while
+ * the level holds, and after a drop it is set to the time the last percent
+ * took, so a fast draining battery is read more often. The interval never
+ * exceeds the freshness limit, so a level is never older than that while the
+ * device is connected. A read is postponed while the GATT queue of the
+ * device is busy.
+ *
+ * <p>Reads run on a private thread that sleeps until the next device is due.
+ * It is woken by an exact {@link AlarmManager#ELAPSED_REALTIME_WAKEUP} alarm,
+ * so due reads also happen while the phone is in deep sleep.
+ */
+public class BatteryPollScheduler {
+
+    private static final String TAG = "BatteryPollScheduler";
+
+    public static final long DEFAULT_FRESHNESS = 5 * 60 * 1000;
+    public static final long MIN_INTERVAL = 10 * 1000;
+
+    // Interval of the first reads, before the level has moved.
+    private static final long INITIAL_INTERVAL = 60 * 1000;
+    // Check back this often on a device whose GATT queue is busy.
+    private static final long RETRY_DELAY = 1000;
+    private static final int MAX_QUEUE_DEPTH = 2;
+    // A read that never completed, e.g. dropped with its link, is given up after this time.
+    private static final long READ_TIMEOUT = 30 * 1000;
+    private static final String ACTION_POLL = "com.tieto.bledemo.blebattandfindme.action.BATTERY_POLL";
+
+    private static BatteryPollScheduler sInstance=null;
+
+    private class Device extends BleGattOperationCallback {
+        final DemoBatteryHelperUsage mUsage;
+        long mInterval = INITIAL_INTERVAL;
+        long mNextRead=0;
+        long mLastRead=0;
+        int mLastLevel=-1;
+        // Time the level last changed, or of the first read.
+        long mLastChange=0;
+        boolean mPending=false;
+        long mRequestTime=0;
+
+        Device(DemoBatteryHelperUsage usage) {
+            mUsage = usage;
+        }
+
+        @Override
+        public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+            byte[] value = operation.getCharacteristic().getValue();
+            onRead(this, (status == BluetoothGatt.GATT_SUCCESS && null != value && value.length > 0)
+                    ? value[0] & 0xFF : -1);
+        }
+    }
+
+    private final Context mContext;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+    private final BroadcastReceiver mAlarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            poll(SystemClock.elapsedRealtime());
+        }
+    };
+    private HandlerThread mThread=null;
+    private Handler mHandler=null;
+    private long mFreshness = DEFAULT_FRESHNESS;
+    private Device[] mDevices = new Device[0];
+    private long mReadCount=0;
+    private long mDeferredCount=0;
+
+    public static synchronized BatteryPollScheduler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BatteryPollScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BatteryPollScheduler(Context context) {
+        mContext = context;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_POLL).setPackage(context.getPackageName());
+        mAlarmIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
+    }
+
+    /**
+     * @param maxAgeMillis longest time a connected device goes without a fresh level.
+     */
+    public synchronized void setFreshness(long maxAgeMillis) {
+        mFreshness = Math.max(maxAgeMillis, MIN_INTERVAL);
+        for (Device device : mDevices) {
+            device.mInterval = Math.min(device.mInterval, mFreshness);
+            device.mNextRead = Math.min(device.mNextRead, device.mLastRead + mFreshness);
+        }
+        reschedule();
+    }
+
+    /**
+     * Poll the battery level of a device. Adding a device again, e.g. after it
+     * reconnected, reads it right away.
+     */
+    public synchronized void add(DemoBatteryHelperUsage usage) {
+        Device device = find(usage);
+        if (null == device) {
+            device = new Device(usage);
+            mDevices = Arrays.copyOf(mDevices, mDevices.length + 1);
+            mDevices[mDevices.length - 1] = device;
+        }
+        device.mNextRead = 0;
+        if (null == mThread) {
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            mContext.registerReceiver(mAlarmReceiver, new IntentFilter(ACTION_POLL), null, mHandler);
+        }
+        reschedule();
+    }
+
+    public synchronized void remove(DemoBatteryHelperUsage usage) {
+        Device device = find(usage);
+        if (null == device) {
+            return;
+        }
+        for (int i = 0; i < mDevices.length; i++) {
+            if (mDevices[i] == device) {
+                Device[] remaining = new Device[mDevices.length - 1];
+                System.arraycopy(mDevices, 0, remaining, 0, i);
+                System.arraycopy(mDevices, i + 1, remaining, i, mDevices.length - i - 1);
+                mDevices = remaining;
+                break;
+            }
+        }
+        if (mDevices.length == 0 && null != mThread) {
+            mAlarmManager.cancel(mAlarmIntent);
+            mContext.unregisterReceiver(mAlarmReceiver);
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    public synchronized boolean contains(DemoBatteryHelperUsage usage) {
+        return null != find(usage);
+    }
+
+    /**
+     * @return current read interval of a device, or 0 if it is not polled.
+     */
+    public synchronized long getInterval(DemoBatteryHelperUsage usage) {
+        Device device = find(usage);
+        return (null == device) ? 0 : device.mInterval;
+    }
+
+    public synchronized long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * @return number of reads postponed because the GATT queue was busy.
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    private synchronized void poll(long now) {
+        if (null == mHandler) {
+            // A late alarm after the last device was removed.
+            return;
+        }
+        for (Device device : mDevices) {
+            if (device.mPending && now - device.mRequestTime >= READ_TIMEOUT) {
+                device.mPending = false;
+            }
+            if (device.mPending || now < device.mNextRead) {
+                continue;
+            }
+            BleGattConnection connection = device.mUsage.getConnection();
+            if (null == connection
+                    || connection.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+                // Adding the device again once it reconnects reads it right away.
+                device.mNextRead = now + MIN_INTERVAL;
+                continue;
+            }
+            BleGattOperationQueue queue = connection.getOperationQueue();
+            if (null == queue || queue.size() > MAX_QUEUE_DEPTH) {
+                mDeferredCount++;
+                device.mNextRead = now + RETRY_DELAY;
+                continue;
+            }
+            if (device.mUsage.readBattLevel(device)) {
+                mReadCount++;
+                device.mPending = true;
+                device.mRequestTime = now;
+            } else {
+                device.mNextRead = now + RETRY_DELAY;
+            }
+        }
+        reschedule();
+    }
+
+    private synchronized void onRead(Device device, int level) {
+        device.mPending = false;
+        if (null == find(device.mUsage)) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (level < 0) {
+            device.mNextRead = now + MIN_INTERVAL;
+            reschedule();
+            return;
+        }
+
+        long interval = device.mInterval;
+        if (device.mLastLevel < 0) {
+            device.mLastChange = now;
+        } else if (level != device.mLastLevel) {
+            int drop = device.mLastLevel - level;
+            if (drop > 0) {
+                // Read about once per percent at the pace since the previous change.
+                interval = (now - device.mLastChange) / drop;
+            }
+            device.mLastChange = now;
+        } else {
+            interval *= 2;
+        }
+        device.mInterval = Math.max(MIN_INTERVAL, Math.min(interval, mFreshness));
+        device.mLastLevel = level;
+        device.mLastRead = now;
+        device.mNextRead = now + device.mInterval;
+        Log.d(TAG, "level " + level + " next read in " + device.mInterval + "ms");
+        reschedule();
+    }
+
+    private void reschedule() {
+        if (null == mHandler) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (Device device : mDevices) {
+            next = Math.min(next, device.mPending
+                    ? device.mRequestTime + READ_TIMEOUT : device.mNextRead);
+        }
+        if (next == Long.MAX_VALUE) {
+            mAlarmManager.cancel(mAlarmIntent);
+        } else {
+            // A handler counts uptime, which stops in deep sleep, the alarm wakes the phone.
+            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, next, mAlarmIntent);
+        }
+    }
+
+    private Device find(DemoBatteryHelperUsage usage) {
+        for (Device device : mDevices) {
+            if (device.mUsage == usage) {
+                return device;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,375 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleFindMeProfile;
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BleGattOperationCallback;
+import android.bluetooth.BleGattOperationQueue;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of GATT connections keyed by device address.
+ *
+ * <p>One {@link BleGattConnection} is kept per device and shared by the battery
+ * and FindMe roles. The pool is bounded by the number of links the controller
+ * can hold; when it is full the least recently used idle link is closed.
+ *
+ * <p>Links still in use are reconnected after a link loss. A device that
+ * usually comes back within the direct connection window is reconnected
+ * directly, retried with exponential backoff. A device that stays away longer,
+ * or keeps failing direct attempts, is left to a single background
+ * (autoConnect) attempt, which waits at a low duty cycle without timing out.
+ */
+public class BleConnectionManager {
+
+    private static final String TAG = "BleConnectionManager";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    public static final long DEFAULT_OPERATION_TIMEOUT = 5000;
+    // Accepted by most phone stacks, longer values then need no long reads or writes.
+    public static final int DEFAULT_PREFERRED_MTU = 185;
+    private static final long RECONNECT_DELAY_MIN = 1000;
+    private static final long RECONNECT_DELAY_MAX = 60000;
+    // A direct attempt times out in the stack after about this long.
+    private static final long DIRECT_CONNECT_WINDOW = 30000;
+    private static final int MAX_DIRECT_FAILURES = 3;
+
+    private static BleConnectionManager sInstance=null;
+
+    private class Entry extends BluetoothGattCallback implements Runnable {
+        final BleGattConnection mConnection;
+        BleFindMeProfile mFindMe=null;
+        int mRefCount=0;
+        int mReconnectAttempts=0;
+        boolean mWasConnected=false;
+        // Link history.
+        boolean mConnected=false;
+        boolean mAutoConnect=false;
+        long mLostTime=0;
+        long mMeanDowntime=-1;
+        int mDirectFailures=0;
+
+        Entry(BleGattConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            synchronized (BleConnectionManager.this) {
+                long now = SystemClock.elapsedRealtime();
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    if (mLostTime != 0) {
+                        long downtime = now - mLostTime;
+                        mMeanDowntime = (mMeanDowntime < 0) ?
+                                downtime : (3 * mMeanDowntime + downtime) / 4;
+                        mLostTime = 0;
+                    }
+                    mWasConnected = true;
+                    mConnected = true;
+                    mReconnectAttempts = 0;
+                    mDirectFailures = 0;
+                    mHandler.removeCallbacks(this);
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED &&
+                        mWasConnected && mRefCount > 0) {
+                    if (mConnected) {
+                        mConnected = false;
+                        mLostTime = now;
+                    } else if (!mAutoConnect) {
+                        mDirectFailures++;
+                    }
+                    scheduleReconnect();
+                }
+            }
+        }
+
+        private void scheduleReconnect() {
+            mHandler.removeCallbacks(this);
+            boolean direct = mDirectFailures < MAX_DIRECT_FAILURES
+                    && mMeanDowntime < DIRECT_CONNECT_WINDOW;
+            if (!direct) {
+                // A background attempt stays pending, only a failed one is retried.
+                long delay = mAutoConnect ? RECONNECT_DELAY_MAX : 0;
+                mAutoConnect = true;
+                Log.d(TAG, "link lost, waiting in background, mean downtime "
+                        + mMeanDowntime + "ms");
+                mHandler.postDelayed(this, delay);
+                return;
+            }
+            long delay = Math.min(RECONNECT_DELAY_MIN << Math.min(mReconnectAttempts, 16),
+                    RECONNECT_DELAY_MAX);
+            mReconnectAttempts++;
+            mAutoConnect = false;
+            Log.d(TAG, "link lost, reconnecting directly in " + delay + "ms");
+            mHandler.postDelayed(this, delay);
+        }
+
+        @Override
+        public void run() {
+            synchronized (BleConnectionManager.this) {
+                if (mRefCount > 0 && mEntries.containsValue(this)) {
+                    mConnection.connect(mAutoConnect);
+                }
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int mPreferredMtu = DEFAULT_PREFERRED_MTU;
+    private long mOperationTimeout = DEFAULT_OPERATION_TIMEOUT;
+    private BleGattOperationCallback mOperationCallback = new BleGattOperationCallback() {
+        @Override
+        public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+            Log.d(TAG, "GATT op type=" + operation.getType() + " status=" + status
+                    + " latency=" + operation.getLatencyMillis() + "ms"
+                    + " queued=" + operation.getQueuedMillis() + "ms");
+        }
+    };
+    private final HashMap<String, Integer> mAddressIndexes = new HashMap<String, Integer>();
+    private final ArrayList<String> mAddresses = new ArrayList<String>();
+
+    public static synchronized BleConnectionManager getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BleConnectionManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BleConnectionManager(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Limit the number of links, e.g. to the maximum the controller supports.
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+        evictIdle(0);
+    }
+
+    /**
+     * MTU asked for on every new link, applies to connections created from now on.
+     *
+     * @param mtu the MTU, or 0 to keep the default of the link.
+     */
+    public synchronized void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * Timeout of GATT operations, see {@link BleGattConnection#setOperationTimeout(long)}.
+     * Applies to connections created from now on.
+     */
+    public synchronized void setOperationTimeout(long timeoutMillis) {
+        mOperationTimeout = timeoutMillis;
+    }
+
+    /**
+     * Observe the operations of every pooled connection, the default logs their
+     * latency. Applies to connections created from now on.
+     *
+     * @param callback the callback, or null to remove it.
+     */
+    public synchronized void setOperationCallback(BleGattOperationCallback callback) {
+        mOperationCallback = callback;
+    }
+
+    public synchronized int getConnectionCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get the stable index of a device address, assigned on first use. Indexes
+     * let per-device state live in primitive arrays and callbacks carry an int
+     * instead of the address string.
+     */
+    public synchronized int getAddressIndex(String address) {
+        Integer index = mAddressIndexes.get(address);
+        if (null == index) {
+            index = mAddresses.size();
+            mAddresses.add(address);
+            mAddressIndexes.put(address, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return the device address of an index, or null if it was never assigned.
+     */
+    public synchronized String getAddress(int addressIndex) {
+        if (addressIndex < 0 || addressIndex >= mAddresses.size()) {
+            return null;
+        }
+        return mAddresses.get(addressIndex);
+    }
+
+    /**
+     * Get the shared connection of a device, creating it if needed. The link is
+     * only established once a role connects it.
+     *
+     * <p>Each call must be balanced by {@link #release(BluetoothDevice)}.
+     *
+     * @return the connection, or null if the pool is full of busy links.
+     */
+    public synchronized BleGattConnection acquire(BluetoothDevice device) {
+        if (null == device) {
+            return null;
+        }
+
+        Entry entry = mEntries.get(device.getAddress());
+        if (null == entry) {
+            if (!evictIdle(1)) {
+                Log.w(TAG, "no idle link to evict, " + mEntries.size() + " links in use");
+                return null;
+            }
+            BleGattConnection connection = new BleGattConnection(mContext, device);
+            connection.setOperationCallback(mOperationCallback);
+            connection.setOperationTimeout(mOperationTimeout);
+            connection.setPreferredMtu(mPreferredMtu);
+            entry = new Entry(connection);
+            connection.addCallback(entry);
+            mEntries.put(device.getAddress(), entry);
+        }
+        entry.mRefCount++;
+        return entry.mConnection;
+    }
+
+    /**
+     * Release a connection acquired by {@link #acquire(BluetoothDevice)}. The link
+     * stays up while idle so it can be reused, until the pool needs the slot.
+     */
+    public synchronized void release(BluetoothDevice device) {
+        if (null == device) {
+            return;
+        }
+
+        Entry entry = mEntries.get(device.getAddress());
+        if (null == entry || entry.mRefCount == 0) {
+            return;
+        }
+        entry.mRefCount--;
+        if (entry.mRefCount == 0) {
+            mHandler.removeCallbacks(entry);
+        }
+    }
+
+    /**
+     * @return number of {@link #acquire(BluetoothDevice)} calls of a device not
+     *         released yet, 0 if the device has no pooled connection.
+     */
+    public synchronized int getRefCount(String address) {
+        Entry entry = mEntries.get(address);
+        return (null == entry) ? 0 : entry.mRefCount;
+    }
+
+    /**
+     * Get the FindMe client of a pooled device. All roles sharing the link also
+     * share this client, so they see a single alert level.
+     *
+     * @return the client, or null if the device has no pooled connection.
+     */
+    public synchronized BleFindMeProfile getFindMeProfile(BluetoothDevice device) {
+        if (null == device) {
+            return null;
+        }
+
+        Entry entry = mEntries.get(device.getAddress());
+        if (null == entry) {
+            return null;
+        }
+        if (null == entry.mFindMe) {
+            entry.mFindMe = new BleFindMeProfile(entry.mConnection, null);
+        }
+        return entry.mFindMe;
+    }
+
+    /**
+     * Set the alert level of every connected FindMe device.
+     *
+     * <p>Each write goes to the operation queue of its own link, so the writes
+     * go out to all devices at once instead of one after the other.
+     *
+     * @param callback called once for every write queued, may be null. A write
+     *                 replaced by a later alert completes with
+     *                 {@link BluetoothGatt#GATT_FAILURE}, so the fan-out is
+     *                 finished after as many calls as the returned count.
+     * @return number of devices the write was queued for.
+     */
+    public int alertAll(int alertLevel, BleGattOperationCallback callback) {
+        ArrayList<BleFindMeProfile> profiles;
+        synchronized (this) {
+            profiles = new ArrayList<BleFindMeProfile>(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                if (entry.mConnection.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+                    continue;
+                }
+                if (null == entry.mFindMe) {
+                    entry.mFindMe = new BleFindMeProfile(entry.mConnection, null);
+                }
+                profiles.add(entry.mFindMe);
+            }
+        }
+
+        // Queue outside the lock, a write may complete on the binder thread right away.
+        int queued = 0;
+        for (BleFindMeProfile profile : profiles) {
+            if (profile.findMe(alertLevel, callback)) {
+                queued++;
+            }
+        }
+        Log.d(TAG, "alert level " + alertLevel + " queued for " + queued + " of "
+                + profiles.size() + " connected devices");
+        return queued;
+    }
+
+    /**
+     * Close every link of the pool.
+     */
+    public synchronized void closeAll() {
+        for (Entry entry : mEntries.values()) {
+            mHandler.removeCallbacks(entry);
+            closeEntry(entry);
+        }
+        mEntries.clear();
+    }
+
+    private void closeEntry(Entry entry) {
+        if (null != entry.mFindMe) {
+            entry.mFindMe.close();
+            entry.mFindMe = null;
+        }
+        entry.mConnection.removeCallback(entry);
+        entry.mConnection.close();
+    }
+
+    private boolean evictIdle(int slotsNeeded) {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mEntries.size() + slotsNeeded > mMaxConnections && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.mRefCount == 0 && entry.mConnection.isIdle()) {
+                Log.d(TAG, "evicting idle link " + entry.mConnection.getDevice().getAddress());
+                it.remove();
+                mHandler.removeCallbacks(entry);
+                closeEntry(entry);
+            }
+        }
+        return mEntries.size() + slotsNeeded <= mMaxConnections;
+    }
+}
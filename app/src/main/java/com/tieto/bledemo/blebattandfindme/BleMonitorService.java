@@ -0,0 +1,618 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.app.Service;
+import android.bluetooth.BleBatteryLevelHelper;
+import android.bluetooth.BleFindMeProfile;
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Owns scanning, connections and the monitoring pipelines, so they keep
+ * running without any activity and an activity attaches to them instantly.
+ *
+ * <p>Activities start the service, then bind to it and talk to it through
+ * {@link LocalBinder#getService()}. Every method must be called on the main
+ * thread. The service stops once no activity is bound and no device is
+ * monitored.
+ */
+public class BleMonitorService extends Service {
+
+    private static final String TAG = "BleMonitorService";
+
+    // Scan results are ingested in batches, at most one listener call per batch.
+    private static final long SCAN_REPORT_DELAY = 1000;
+    // RSSI sampling is slowed down while no activity is visible.
+    private static final long BACKGROUND_RSSI_PERIOD = 1000;
+    // Default FindMe rules: alert when the tag is left behind or drops the link.
+    private static final float ALERT_MID_DISTANCE = 5f;
+    private static final float ALERT_HIGH_DISTANCE = 10f;
+    private static final long ALERT_LINK_LOSS_TIME = 10000;
+    // An unchanged battery level is written to the history at most this often.
+    private static final long HISTORY_INTERVAL = 10 * 60 * 1000;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Receives service events. Scan results arrive on the main thread, other
+     * events may arrive on the Bluetooth binder thread.
+     */
+    public static abstract class Listener {
+
+        /**
+         * A batch of scan results that passed the service filter.
+         *
+         * <p>The arrays are only valid during the call.
+         */
+        public void onScanResults(BluetoothDevice[] devices, long[] addresses, int[] rssi,
+                                  long[] timestamps, int count) {
+
+        }
+
+        public void onConnectionStateChanged(int addressIndex, int status, int newState) {
+
+        }
+
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public BleMonitorService getService() {
+            return BleMonitorService.this;
+        }
+    }
+
+    private class MonitoredDevice extends DemoBatteryHelperUsageCallback {
+        final BluetoothDevice mDevice;
+        final int mAddressIndex;
+        DemoBatteryHelperUsage mUsage=null;
+        boolean mPooled=false;
+
+        MonitoredDevice(BluetoothDevice device, int addressIndex) {
+            mDevice = device;
+            mAddressIndex = addressIndex;
+        }
+
+        @Override
+        public void onConnectionStateChanged(int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                boolean ret = mUsage.setBattNotification(true);
+                Log.i(TAG, "batt notification status=" + (ret ? "on" : "off")
+                        + " mode=" + mUsage.getBattUpdateMode());
+            }
+            for (Listener listener : mListeners) {
+                listener.onConnectionStateChanged(mAddressIndex, status, newState);
+            }
+        }
+
+        @Override
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            reportBatteryLevel(addressIndex, level, namespace, description);
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private BleConnectionManager mConnectionManager=null;
+    private BluetoothAdapter mBluetoothAdapter=null;
+    private int mForegroundClients=0;
+    private boolean mBound=false;
+
+    // Scanning.
+    private boolean mScanning=false;
+    private ScanScheduler mScanScheduler=null;
+    private final ScanScheduler.Callback mScanSchedulerCallback = new ScanScheduler.Callback() {
+        @Override
+        public void onStartScan(int scanMode) {
+            startScan(scanMode);
+        }
+
+        @Override
+        public void onStopScan() {
+            BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (null == scanner) {
+                return;
+            }
+            if (mHardwareBatching) {
+                // Deliver results still held by the controller.
+                scanner.flushPendingScanResults(mScanCallback);
+            }
+            scanner.stopScan(mScanCallback);
+        }
+    };
+    private HandlerThread mScanThread=null;
+    private Handler mScanHandler=null;
+    private boolean mHardwareBatching=false;
+    // Filter in the controller, or in ingestScanResults() once the controller ran out of filters.
+    private volatile boolean mHardwareFiltering=false;
+    // Only devices offering the battery or FindMe services are reported.
+    private final LeScanFilter mScanFilter = new LeScanFilter()
+            .addServiceUuid(BleBatteryLevelHelper.BATTERY_SERVICE_UUID)
+            .addServiceUuid(BleFindMeProfile.IMMEDIATE_ALERT_SERVICE_UUID);
+    // Scan thread only.
+    private final LeAdvertisement mAdvertisement = new LeAdvertisement();
+    private final LeDeviceRegistry mSeenDevices = new LeDeviceRegistry();
+    private final ArrayList<ScanResult> mPendingResults = new ArrayList<ScanResult>();
+    private final Runnable mFlushPendingResults = new Runnable() {
+        @Override
+        public void run() {
+            ingestScanResults(mPendingResults);
+            mPendingResults.clear();
+        }
+    };
+    private final ScanCallback mScanCallback = new ScanCallback() {
+
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+            mScanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPendingResults.isEmpty()) {
+                        mScanHandler.postDelayed(mFlushPendingResults, SCAN_REPORT_DELAY);
+                    }
+                    mPendingResults.add(result);
+                }
+            });
+        }
+
+        @Override
+        public void onBatchScanResults(final List<ScanResult> results) {
+            Log.d(TAG, "onBatchScanResults: " + results.size());
+            mScanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ingestScanResults(results);
+                }
+            });
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.d(TAG, "onScanFailed: " + errorCode);
+            if (errorCode == SCAN_FAILED_OUT_OF_HARDWARE_RESOURCES && mHardwareFiltering) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "out of hardware filters, filtering in software");
+                        mHardwareFiltering = false;
+                        // Through the scheduler, so the restart respects the start limit.
+                        mScanScheduler.restart();
+                    }
+                });
+            }
+        }
+    };
+
+    // Monitoring.
+    private PassiveBatteryMonitor mPassiveBatteryMonitor=null;
+    private RssiSampler mRssiSampler=null;
+    private AlertPolicyEngine mAlertPolicyEngine=null;
+    private final HashMap<String, MonitoredDevice> mMonitored = new HashMap<String, MonitoredDevice>();
+    // Last battery level of each address index, from any source.
+    private int[] mBatteryLevels = new int[INITIAL_CAPACITY];
+    private long[] mHistoryTimes = new long[INITIAL_CAPACITY];
+    private BatteryHistoryStore mBatteryHistory=null;
+    // Appends may compact the whole history, they run here instead of on the binder or scan thread.
+    private HandlerThread mHistoryThread=null;
+    private Handler mHistoryHandler=null;
+    private final DrainEstimator mDrainEstimator = new DrainEstimator();
+    private final DemoBatteryHelperUsageCallback mPassiveCallback = new DemoBatteryHelperUsageCallback() {
+        @Override
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            reportBatteryLevel(addressIndex, level, namespace, description);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Arrays.fill(mBatteryLevels, LeAdvertisement.NO_BATTERY_LEVEL);
+        mConnectionManager = BleConnectionManager.getInstance(this);
+
+        BluetoothManager bluetoothManager =
+                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        mBluetoothAdapter = bluetoothManager.getAdapter();
+        mHardwareBatching = mBluetoothAdapter.isOffloadedScanBatchingSupported();
+        mHardwareFiltering = mBluetoothAdapter.isOffloadedFilteringSupported();
+
+        mScanScheduler = new ScanScheduler(mScanSchedulerCallback);
+        mScanScheduler.setForeground(false);
+        mScanThread = new HandlerThread(TAG);
+        mScanThread.start();
+        mScanHandler = new Handler(mScanThread.getLooper());
+        mHistoryThread = new HandlerThread(TAG + ".history");
+        mHistoryThread.start();
+        mHistoryHandler = new Handler(mHistoryThread.getLooper());
+
+        mPassiveBatteryMonitor = new PassiveBatteryMonitor(this, mPassiveCallback);
+        mRssiSampler = new RssiSampler(this, new RssiEstimator());
+        mRssiSampler.setPeriod(BACKGROUND_RSSI_PERIOD);
+        mAlertPolicyEngine = new AlertPolicyEngine(mRssiSampler.getEstimator());
+
+        try {
+            mBatteryHistory = new BatteryHistoryStore(new File(getFilesDir(), "battery_history"));
+        } catch (IOException e) {
+            Log.e(TAG, "battery history not available", e);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Monitored devices are not persisted, a restarted service would have nothing to do.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        mBound = true;
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mBound = false;
+        stopIfIdle();
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScanScheduler.stop();
+        Log.d(TAG, "scan starts " + mScanScheduler.getStartCount()
+                + " throttled " + mScanScheduler.getThrottledCount()
+                + " discovered " + mScanScheduler.getDiscoveryCount()
+                + " discovery latency " + mScanScheduler.getMeanDiscoveryLatencyMillis() + "ms"
+                + " scanning " + mScanScheduler.getScanMillis() + "ms"
+                + " radio on " + mScanScheduler.getRadioOnMillis() + "ms");
+        mScanThread.quit();
+
+        mRssiSampler.close();
+        mAlertPolicyEngine.stop();
+        Log.d(TAG, "alert rules evaluated " + mAlertPolicyEngine.getEvaluationCount()
+                + " writes " + mAlertPolicyEngine.getWriteCount()
+                + " deferred " + mAlertPolicyEngine.getDeferredCount());
+        for (MonitoredDevice monitored : mMonitored.values()) {
+            closeMonitored(monitored);
+        }
+        mMonitored.clear();
+        mPassiveBatteryMonitor.stop();
+        Log.d(TAG, "battery polls " + BatteryPollScheduler.getInstance(this).getReadCount()
+                + " deferred " + BatteryPollScheduler.getInstance(this).getDeferredCount());
+        Log.d(TAG, "drain samples rejected " + mDrainEstimator.getRejectedCount()
+                + " fits restarted " + mDrainEstimator.getResetCount());
+        final BatteryHistoryStore history = mBatteryHistory;
+        if (null != history) {
+            // After the appends still queued.
+            mHistoryHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    history.close();
+                }
+            });
+        }
+        mHistoryThread.quitSafely();
+        mListeners.clear();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * An activity became visible (true) or was hidden (false). Calls must be balanced.
+     */
+    public void setForeground(boolean foreground) {
+        mForegroundClients = Math.max(0, mForegroundClients + (foreground ? 1 : -1));
+        boolean visible = mForegroundClients > 0;
+        mScanScheduler.setForeground(visible);
+        mRssiSampler.setPeriod(visible ? RssiSampler.DEFAULT_PERIOD : BACKGROUND_RSSI_PERIOD);
+    }
+
+    /**
+     * Start or stop the duty cycled scan. Starting again forgets the devices
+     * seen so far, so they are reported as discovered again.
+     */
+    public void setScanning(boolean enable) {
+        if (enable == mScanning) {
+            return;
+        }
+        mScanning = enable;
+        if (enable) {
+            mScanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSeenDevices.clear();
+                }
+            });
+            mScanScheduler.start();
+        } else {
+            mScanScheduler.stop();
+            stopIfIdle();
+        }
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * @return last battery level of a device, or {@link LeAdvertisement#NO_BATTERY_LEVEL}.
+     */
+    public synchronized int getBatteryLevel(int addressIndex) {
+        if (addressIndex < 0 || addressIndex >= mBatteryLevels.length) {
+            return LeAdvertisement.NO_BATTERY_LEVEL;
+        }
+        return mBatteryLevels[addressIndex];
+    }
+
+    public RssiEstimator getEstimator() {
+        return mRssiSampler.getEstimator();
+    }
+
+    /**
+     * Set the longest time a connected device that cannot notify its battery
+     * level goes without a fresh reading, see {@link BatteryPollScheduler}.
+     */
+    public void setBatteryFreshness(long maxAgeMillis) {
+        BatteryPollScheduler.getInstance(this).setFreshness(maxAgeMillis);
+    }
+
+    public DrainEstimator getDrainEstimator() {
+        return mDrainEstimator;
+    }
+
+    /**
+     * @return battery level history of all devices, or null if it could not be opened.
+     */
+    public BatteryHistoryStore getBatteryHistory() {
+        return mBatteryHistory;
+    }
+
+    /**
+     * Monitor battery, proximity and link loss of a device until
+     * {@link #unmonitor(BluetoothDevice)}, whether or not an activity shows it.
+     *
+     * @return the battery and FindMe roles of the device, shared by every caller.
+     */
+    public DemoBatteryHelperUsage monitor(BluetoothDevice device) {
+        MonitoredDevice monitored = mMonitored.get(device.getAddress());
+        if (null != monitored) {
+            return monitored.mUsage;
+        }
+
+        int addressIndex = mConnectionManager.getAddressIndex(device.getAddress());
+        monitored = new MonitoredDevice(device, addressIndex);
+        // Battery and FindMe run over the same pooled GATT connection of the device.
+        BleGattConnection connection = mConnectionManager.acquire(device);
+        if (null != connection) {
+            monitored.mPooled = true;
+            // Notifications of the link now reach the service through this usage.
+            mPassiveBatteryMonitor.release(device);
+            monitored.mUsage = new DemoBatteryHelperUsage(this, connection, monitored);
+            mRssiSampler.addConnection(connection);
+            mAlertPolicyEngine.addDevice(monitored.mUsage);
+            mAlertPolicyEngine.addRule(addressIndex, AlertPolicyEngine.CONDITION_FARTHER_THAN,
+                    ALERT_MID_DISTANCE, BleFindMeProfile.ALERT_LEVEL_MID);
+            mAlertPolicyEngine.addRule(addressIndex, AlertPolicyEngine.CONDITION_FARTHER_THAN,
+                    ALERT_HIGH_DISTANCE, BleFindMeProfile.ALERT_LEVEL_HIGH);
+            mAlertPolicyEngine.addRule(addressIndex, AlertPolicyEngine.CONDITION_LINK_LOST,
+                    ALERT_LINK_LOSS_TIME, BleFindMeProfile.ALERT_LEVEL_HIGH);
+        } else {
+            Log.w(TAG, "connection pool full, " + device.getAddress()
+                    + " monitored without RSSI sampling and alert rules");
+            monitored.mUsage = new DemoBatteryHelperUsage(this, monitored);
+        }
+        mMonitored.put(device.getAddress(), monitored);
+
+        if (mMonitored.size() == 1) {
+            mRssiSampler.start();
+            mAlertPolicyEngine.start();
+        }
+        return monitored.mUsage;
+    }
+
+    /**
+     * Stop monitoring a device and close its roles.
+     */
+    public void unmonitor(BluetoothDevice device) {
+        MonitoredDevice monitored = mMonitored.remove(device.getAddress());
+        if (null == monitored) {
+            return;
+        }
+        closeMonitored(monitored);
+        if (mMonitored.isEmpty()) {
+            mRssiSampler.stop();
+            mAlertPolicyEngine.stop();
+        }
+        stopIfIdle();
+    }
+
+    public boolean isMonitored(BluetoothDevice device) {
+        return mMonitored.containsKey(device.getAddress());
+    }
+
+    private void closeMonitored(MonitoredDevice monitored) {
+        DemoBatteryHelperUsage usage = monitored.mUsage;
+        mAlertPolicyEngine.removeDevice(usage);
+        mAlertPolicyEngine.removeRules(monitored.mAddressIndex);
+        BleGattConnection connection = usage.getConnection();
+        if (connection != null) {
+            mRssiSampler.removeConnection(connection);
+            Log.d(TAG, "link mtu " + connection.getMtu() + " burst " + connection.getBurstMillis()
+                    + "ms profile switches " + connection.getProfileSwitchCount());
+            Log.d(TAG, "last reconnect " + connection.getLastReconnectMillis()
+                    + "ms first notification " + connection.getLastFirstNotificationMillis()
+                    + "ms discoveries skipped " + connection.getDiscoverySkipCount());
+            Log.d(TAG, "cccd writes " + connection.getCccdWriteCount()
+                    + " skipped " + connection.getCccdSkipCount());
+        }
+        usage.close();
+        if (monitored.mPooled) {
+            mConnectionManager.release(monitored.mDevice);
+        }
+    }
+
+    private void stopIfIdle() {
+        if (!mBound && !mScanning && mMonitored.isEmpty()) {
+            Log.d(TAG, "nothing to monitor, stopping");
+            stopSelf();
+        }
+    }
+
+    private void reportBatteryLevel(int addressIndex, int level, int namespace, int description) {
+        long now = System.currentTimeMillis();
+        boolean record;
+        synchronized (this) {
+            if (addressIndex >= mBatteryLevels.length) {
+                int oldCapacity = mBatteryLevels.length;
+                int capacity = Math.max(addressIndex + 1, oldCapacity * 2);
+                mBatteryLevels = Arrays.copyOf(mBatteryLevels, capacity);
+                mHistoryTimes = Arrays.copyOf(mHistoryTimes, capacity);
+                Arrays.fill(mBatteryLevels, oldCapacity, capacity, LeAdvertisement.NO_BATTERY_LEVEL);
+            }
+            // Advertisements repeat the same level many times a minute, keep changes only.
+            record = mBatteryLevels[addressIndex] != level
+                    || now - mHistoryTimes[addressIndex] >= HISTORY_INTERVAL;
+            if (record) {
+                mHistoryTimes[addressIndex] = now;
+            }
+            mBatteryLevels[addressIndex] = level;
+        }
+        if (record) {
+            recordBatteryLevel(addressIndex, level, now);
+        }
+        for (Listener listener : mListeners) {
+            listener.onBatteryLevel(addressIndex, level, namespace, description);
+        }
+    }
+
+    private void recordBatteryLevel(int addressIndex, final int level, final long timeMillis) {
+        mDrainEstimator.addSample(addressIndex, timeMillis, level);
+        final String address = mConnectionManager.getAddress(addressIndex);
+        final BatteryHistoryStore history = mBatteryHistory;
+        if (null == history || null == address) {
+            return;
+        }
+        mHistoryHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    history.append(address, timeMillis, level);
+                } catch (IOException e) {
+                    Log.e(TAG, "cannot record battery level of " + address, e);
+                }
+            }
+        });
+    }
+
+    private void startScan(int scanMode) {
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (null == scanner) {
+            // Bluetooth is off, the next cycle tries again.
+            return;
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(scanMode);
+        if (mHardwareBatching) {
+            settings.setReportDelay(SCAN_REPORT_DELAY);
+        }
+        // A restart after a failure replaces the failed scan of the same callback.
+        scanner.stopScan(mScanCallback);
+        scanner.startScan(mHardwareFiltering ? mScanFilter.buildScanFilters() : null,
+                settings.build(), mScanCallback);
+    }
+
+    /**
+     * Ingest a batch of scan results on the scan thread, then hand the matching
+     * ones to the listeners with a single main thread call.
+     */
+    private void ingestScanResults(List<ScanResult> results) {
+        final boolean softwareFiltering = !mHardwareFiltering;
+        final BluetoothDevice[] devices = new BluetoothDevice[results.size()];
+        final long[] addresses = new long[devices.length];
+        final int[] rssi = new int[devices.length];
+        final long[] timestamps = new long[devices.length];
+        int matched = 0;
+        int discovered = 0;
+        for (ScanResult result : results) {
+            if (null == result.getScanRecord()) {
+                if (softwareFiltering) {
+                    continue;
+                }
+            } else {
+                // A truncated record is still matched on the structures before the bad one.
+                mAdvertisement.wrap(result.getScanRecord().getBytes());
+                if (softwareFiltering && !mScanFilter.matches(mAdvertisement)) {
+                    continue;
+                }
+                mPassiveBatteryMonitor.onAdvertisement(result.getDevice(), mAdvertisement);
+            }
+            devices[matched] = result.getDevice();
+            addresses[matched] = LeDeviceRegistry.packAddress(result.getDevice().getAddress());
+            rssi[matched] = result.getRssi();
+            timestamps[matched] = result.getTimestampNanos();
+            if (addresses[matched] >= 0) {
+                int seen = mSeenDevices.size();
+                mSeenDevices.update(addresses[matched], devices[matched], rssi[matched],
+                        timestamps[matched]);
+                if (mSeenDevices.size() != seen) {
+                    discovered++;
+                }
+            }
+            matched++;
+        }
+        if (matched == 0) {
+            return;
+        }
+
+        final int count = matched;
+        final int newDevices = discovered;
+        final int seenDevices = mSeenDevices.size();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < newDevices; i++) {
+                    mScanScheduler.onDeviceDiscovered();
+                }
+                mScanScheduler.setTrackedDeviceCount(seenDevices);
+                for (Listener listener : mListeners) {
+                    listener.onScanResults(devices, addresses, rssi, timestamps, count);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,201 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+/**
+ * Delivers battery and connection events to the UI thread at most once per frame.
+ *
+ * <p>Events are posted from the Bluetooth binder thread. Only the latest value
+ * of each device is kept, a value replaced before the next frame is dropped and
+ * counted. Values live in primitive arrays indexed by
+ * {@link BleConnectionManager#getAddressIndex(String)}, so posting does not allocate.
+ */
+public class CoalescingUiDispatcher {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Receives the coalesced events on the UI thread.
+     */
+    public static abstract class Callback {
+
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+
+        }
+
+        public void onConnectionStateChanged(int addressIndex, int status, int newState) {
+
+        }
+    }
+
+    private final Choreographer mChoreographer;
+    private final Callback mCallback;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+
+    private boolean mFrameScheduled=false;
+    private long mDroppedCount=0;
+
+    // Pending values, written by the binder thread under the lock.
+    private int[] mBatteryLevel = new int[INITIAL_CAPACITY];
+    private int[] mConnectionState = new int[INITIAL_CAPACITY];
+    private int[] mConnectionStatus = new int[INITIAL_CAPACITY];
+    private boolean[] mBatteryDirty = new boolean[INITIAL_CAPACITY];
+    private boolean[] mConnectionDirty = new boolean[INITIAL_CAPACITY];
+    private int[] mDirtyIndexes = new int[INITIAL_CAPACITY];
+    private int mDirtyCount=0;
+
+    // Snapshot handed to the callback, only touched by the UI thread.
+    private int[] mFlushIndexes = new int[INITIAL_CAPACITY];
+    private int[] mFlushBatteryLevel = new int[INITIAL_CAPACITY];
+    private int[] mFlushConnectionState = new int[INITIAL_CAPACITY];
+    private int[] mFlushConnectionStatus = new int[INITIAL_CAPACITY];
+    private boolean[] mFlushBattery = new boolean[INITIAL_CAPACITY];
+    private boolean[] mFlushConnection = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * Must be created on the UI thread.
+     */
+    public CoalescingUiDispatcher(Callback callback) {
+        mChoreographer = Choreographer.getInstance();
+        mCallback = callback;
+    }
+
+    /**
+     * Post the latest battery level of a device, callable from any thread.
+     */
+    public void postBatteryLevel(int addressIndex, int level, int namespace, int description) {
+        if (addressIndex < 0) {
+            return;
+        }
+        synchronized (this) {
+            ensureCapacity(addressIndex);
+            if (mBatteryDirty[addressIndex]) {
+                mDroppedCount++;
+            } else {
+                mBatteryDirty[addressIndex] = true;
+                markDirty(addressIndex);
+            }
+            mBatteryLevel[addressIndex] = level | (namespace << 8) | (description << 16);
+            scheduleFrame();
+        }
+    }
+
+    /**
+     * Post the latest connection state of a device, callable from any thread.
+     */
+    public void postConnectionState(int addressIndex, int status, int newState) {
+        if (addressIndex < 0) {
+            return;
+        }
+        synchronized (this) {
+            ensureCapacity(addressIndex);
+            if (mConnectionDirty[addressIndex]) {
+                mDroppedCount++;
+            } else {
+                mConnectionDirty[addressIndex] = true;
+                markDirty(addressIndex);
+            }
+            mConnectionStatus[addressIndex] = status;
+            mConnectionState[addressIndex] = newState;
+            scheduleFrame();
+        }
+    }
+
+    /**
+     * @return number of values superseded before they reached the UI.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Drop pending values and stop delivering, e.g. when the activity is destroyed.
+     */
+    public void cancel() {
+        synchronized (this) {
+            for (int i = 0; i < mDirtyCount; i++) {
+                mBatteryDirty[mDirtyIndexes[i]] = false;
+                mConnectionDirty[mDirtyIndexes[i]] = false;
+            }
+            mDirtyCount = 0;
+            mFrameScheduled = false;
+        }
+        mChoreographer.removeFrameCallback(mFrameCallback);
+    }
+
+    private void flush() {
+        int count;
+        synchronized (this) {
+            mFrameScheduled = false;
+            count = mDirtyCount;
+            if (mFlushIndexes.length < count) {
+                int capacity = mDirtyIndexes.length;
+                mFlushIndexes = new int[capacity];
+                mFlushBatteryLevel = new int[capacity];
+                mFlushConnectionState = new int[capacity];
+                mFlushConnectionStatus = new int[capacity];
+                mFlushBattery = new boolean[capacity];
+                mFlushConnection = new boolean[capacity];
+            }
+            for (int i = 0; i < count; i++) {
+                int index = mDirtyIndexes[i];
+                mFlushIndexes[i] = index;
+                mFlushBattery[i] = mBatteryDirty[index];
+                mFlushBatteryLevel[i] = mBatteryLevel[index];
+                mFlushConnection[i] = mConnectionDirty[index];
+                mFlushConnectionState[i] = mConnectionState[index];
+                mFlushConnectionStatus[i] = mConnectionStatus[index];
+                mBatteryDirty[index] = false;
+                mConnectionDirty[index] = false;
+            }
+            mDirtyCount = 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (mFlushConnection[i]) {
+                mCallback.onConnectionStateChanged(mFlushIndexes[i], mFlushConnectionStatus[i],
+                        mFlushConnectionState[i]);
+            }
+            if (mFlushBattery[i]) {
+                int packed = mFlushBatteryLevel[i];
+                mCallback.onBatteryLevel(mFlushIndexes[i], packed & 0xFF, (packed >>> 8) & 0xFF,
+                        packed >>> 16);
+            }
+        }
+    }
+
+    private void markDirty(int addressIndex) {
+        if (mBatteryDirty[addressIndex] && mConnectionDirty[addressIndex]) {
+            // Already listed for the other kind of event.
+            return;
+        }
+        mDirtyIndexes[mDirtyCount++] = addressIndex;
+    }
+
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private void ensureCapacity(int addressIndex) {
+        if (addressIndex < mBatteryLevel.length) {
+            return;
+        }
+        int capacity = Math.max(addressIndex + 1, mBatteryLevel.length * 2);
+        mBatteryLevel = Arrays.copyOf(mBatteryLevel, capacity);
+        mConnectionState = Arrays.copyOf(mConnectionState, capacity);
+        mConnectionStatus = Arrays.copyOf(mConnectionStatus, capacity);
+        mBatteryDirty = Arrays.copyOf(mBatteryDirty, capacity);
+        mConnectionDirty = Arrays.copyOf(mConnectionDirty, capacity);
+        mDirtyIndexes = Arrays.copyOf(mDirtyIndexes, capacity);
+    }
+}
@@ -2,6 +2,12 @@ package com.tieto.bledemo.blebattandfindme;
 
 
 import android.bluetooth.BleBatteryLevelHelper;
+import android.bluetooth.BleFindMeProfile;
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BleGattFuture;
+import android.bluetooth.BleGattOperationCallback;
+import android.bluetooth.BleGattOperationQueue;
+import android.bluetooth.BlePresentationFormatCache;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -13,24 +19,43 @@ import android.util.Log;
 
 /**
  * Created by chennhua on 4/27/15.
+ *
+ * Battery level and FindMe alerts of one device, multiplexed over a single
+ * GATT connection: battery notifications and alert writes share the
+ * connection's callback dispatcher and operation queue.
  */
 public class DemoBatteryHelperUsage {
 
     private static final String TAG = "DemoBatteryHelperUsage";
+    private static final long GATT_OPERATION_TIMEOUT = 5000;
 
     private Context mContext=null;
-    private BluetoothDevice mBluetoothDevice=null;
-    private BluetoothGatt mBluetoothGatt=null;
+    private BleGattConnection mConnection=null;
+    private boolean mOwnsConnection=false;
     private BleBatteryLevelHelper mBleBatteryLevelHelper=null;
+    private BleFindMeProfile mBleFindMeProfile=null;
+    private boolean mOwnsFindMeProfile=false;
     private DemoBatteryHelperUsageCallback mClientCallback=null;
+    private int mAddressIndex=-1;
+    // Notification asked for before the battery service was discovered.
+    private volatile boolean mBattNotificationPending=false;
+    private volatile int mBattUpdateMode = BleBatteryLevelHelper.UPDATE_MODE_NONE;
+    private final BleGattOperationCallback mLatencyCallback = new BleGattOperationCallback() {
+
+        @Override
+        public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+            Log.d(TAG, "GATT op type=" + operation.getType() + " status=" + status
+                    + " latency=" + operation.getLatencyMillis() + "ms"
+                    + " queued=" + operation.getQueuedMillis() + "ms");
+        }
+    };
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                if (mBluetoothGatt != null) {
-                    mBluetoothGatt.discoverServices();
-                }
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mBleBatteryLevelHelper.invalidateHandles();
+                mBattNotificationPending = false;
             }
             if (mClientCallback != null) {
                 mClientCallback.onConnectionStateChanged(status, newState);
@@ -40,6 +65,15 @@ public class DemoBatteryHelperUsage {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             Log.d(TAG, "onServicesDiscovered");
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mBleBatteryLevelHelper.onServicesDiscovered(gatt);
+                if (mBattNotificationPending) {
+                    mBattNotificationPending = false;
+                    enableBattUpdates();
+                }
+            } else {
+                mBleBatteryLevelHelper.invalidateHandles();
+            }
         }
 
         @Override
@@ -62,19 +96,15 @@ public class DemoBatteryHelperUsage {
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(TAG, "onCharacteristicRead");
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                notifyBatteryLevel(characteristic);
+            }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            BleBatteryLevelHelper.BatteryLevelData data=
-                    mBleBatteryLevelHelper.readBatteryLevel(gatt, characteristic);
-            if(null!=mClientCallback&&null!=data) {
-                mClientCallback.onBatteryLevelChanged(data.getBatteryLevel(),
-                        data.getNamespace(),data.getDescription());
-            }
-            Log.d(TAG, "onCharacteristicChanged");
+            notifyBatteryLevel(characteristic);
         }
 
         @Override
@@ -97,6 +127,24 @@ public class DemoBatteryHelperUsage {
         mContext = context;
         mClientCallback = callback;
         mBleBatteryLevelHelper=new BleBatteryLevelHelper();
+        mBleBatteryLevelHelper.setPresentationFormatCache(
+                BlePresentationFormatCache.getInstance(context));
+    }
+
+    /**
+     * Use the battery helper on a connection shared with other profiles, e.g.
+     * one handed out by {@link BleConnectionManager}. {@link #disconnect()} leaves
+     * the link up and {@link #close()} only detaches from it.
+     */
+    public DemoBatteryHelperUsage(Context context, BleGattConnection connection,
+                                  DemoBatteryHelperUsageCallback callback) {
+        mContext = context;
+        mConnection = connection;
+        mClientCallback = callback;
+        mBleBatteryLevelHelper=new BleBatteryLevelHelper();
+        mBleBatteryLevelHelper.setPresentationFormatCache(
+                BlePresentationFormatCache.getInstance(context));
+        attach();
     }
 
     public boolean connect(BluetoothDevice device, boolean autoConnect) {
@@ -104,41 +152,196 @@ public class DemoBatteryHelperUsage {
             return false;
         }
 
-        if (mBluetoothDevice != null && device.equals(mBluetoothDevice) &&
-                mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
+        if (mConnection != null && device.equals(mConnection.getDevice())) {
+            if (mConnection.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+                if (mClientCallback != null) {
+                    mClientCallback.onConnectionStateChanged(BluetoothGatt.GATT_SUCCESS,
+                            BluetoothProfile.STATE_CONNECTED);
+                }
                 return true;
-            } else {
-                return false;
             }
+            return mConnection.connect(autoConnect);
         }
 
-        mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDevice = device;
-        return true;
+        if (!mOwnsConnection && mConnection != null) {
+            Log.w(TAG, "Shared connection belongs to another device.");
+            return false;
+        }
+
+        close();
+        mConnection = new BleGattConnection(mContext, device);
+        mConnection.setOperationCallback(mLatencyCallback);
+        mConnection.setOperationTimeout(GATT_OPERATION_TIMEOUT);
+        mOwnsConnection = true;
+        attach();
+        return mConnection.connect(autoConnect);
     }
 
+    /**
+     * Disconnect a connection created by {@link #connect(BluetoothDevice, boolean)}.
+     *
+     * <p>Does nothing on a connection passed in, e.g. one pooled by
+     * {@link BleConnectionManager}: the link is shared with other roles and
+     * stays up until its owner releases it.
+     */
     public void disconnect() {
-        if (mBluetoothGatt == null) {
+        if (mConnection == null || !mOwnsConnection) {
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnection.disconnect();
     }
 
     public boolean close() {
-        if (mBluetoothGatt == null) {
+        if (mConnection == null) {
             return false;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
-        mBluetoothDevice = null;
+        mConnection.removeCallback(mGattCallback);
+        BatteryPollScheduler.getInstance(mContext).remove(this);
+        mBattUpdateMode = BleBatteryLevelHelper.UPDATE_MODE_NONE;
+        if (mOwnsFindMeProfile) {
+            mBleFindMeProfile.close();
+        }
+        mBleFindMeProfile = null;
+        if (mOwnsConnection) {
+            mConnection.close();
+        }
+        mConnection = null;
+        mOwnsConnection = false;
 
         return true;
     }
 
+    /**
+     * Enable or disable battery level updates. Enabling before the battery
+     * service is discovered is deferred until discovery completes.
+     *
+     * <p>A device that cannot notify its battery level is polled instead by
+     * {@link BatteryPollScheduler}, see {@link #getBattUpdateMode()}. Either
+     * way levels arrive through the callback.
+     */
     public boolean setBattNotification(boolean enable) {
-        return mBleBatteryLevelHelper.setNotification(mBluetoothGatt, enable);
+        mBattNotificationPending = false;
+        if (!enable) {
+            BatteryPollScheduler.getInstance(mContext).remove(this);
+            mBattUpdateMode = BleBatteryLevelHelper.UPDATE_MODE_NONE;
+            return mBleBatteryLevelHelper.setNotification(mConnection, false, null);
+        }
+        if (enableBattUpdates()) {
+            return true;
+        }
+        if (mConnection != null) {
+            mBattNotificationPending = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return how battery levels are received, one of the
+     *         {@link BleBatteryLevelHelper} UPDATE_MODE constants.
+     */
+    public int getBattUpdateMode() {
+        return mBattUpdateMode;
+    }
+
+    /**
+     * Read battery level without blocking, see
+     * {@link BleBatteryLevelHelper#readBatteryLevelAsync(BleGattOperationQueue)}.
+     */
+    public BleGattFuture<BleBatteryLevelHelper.BatteryLevelData> readBattLevel() {
+        return mBleBatteryLevelHelper.readBatteryLevelAsync(getOperationQueue());
+    }
+
+    /**
+     * Read battery level through the operation queue, the level is reported to
+     * the callback as well.
+     *
+     * @param callback receives the completion of the read.
+     */
+    public boolean readBattLevel(BleGattOperationCallback callback) {
+        return mBleBatteryLevelHelper.readBatteryLevel(getOperationQueue(), callback);
+    }
+
+    /**
+     * Set alert level of the device over the shared connection, see
+     * {@link BleFindMeProfile#findMe(int)}.
+     */
+    public boolean findMe(int alertLevel) {
+        if (mBleFindMeProfile == null) {
+            return false;
+        }
+        return mBleFindMeProfile.findMe(alertLevel);
+    }
+
+    public int getAlertLevel() {
+        if (mBleFindMeProfile == null) {
+            return BleFindMeProfile.ALERT_LEVEL_NO_ALERT;
+        }
+        return mBleFindMeProfile.getAlertLevel();
+    }
+
+    /**
+     * @return the connection in use, or null before {@link #connect(BluetoothDevice, boolean)}.
+     */
+    public BleGattConnection getConnection() {
+        return mConnection;
+    }
+
+    public BluetoothDevice getDevice() {
+        return (mConnection == null) ? null : mConnection.getDevice();
+    }
+
+    public int getAddressIndex() {
+        return mAddressIndex;
+    }
+
+    BleBatteryLevelHelper getBatteryLevelHelper() {
+        return mBleBatteryLevelHelper;
+    }
+
+    private void attach() {
+        mAddressIndex = BleConnectionManager.getInstance(mContext)
+                .getAddressIndex(mConnection.getDevice().getAddress());
+        mConnection.addCallback(mGattCallback);
+        // A pooled link shares one FindMe client, so alerts raised through
+        // BleConnectionManager#alertAll show up in getAlertLevel().
+        mBleFindMeProfile = mOwnsConnection ? null :
+                BleConnectionManager.getInstance(mContext).getFindMeProfile(mConnection.getDevice());
+        mOwnsFindMeProfile = (null == mBleFindMeProfile);
+        if (mOwnsFindMeProfile) {
+            // Connection state is reported once, through mGattCallback.
+            mBleFindMeProfile = new BleFindMeProfile(mConnection, null);
+        }
+    }
+
+    private boolean enableBattUpdates() {
+        BleGattOperationQueue queue = getOperationQueue();
+        int mode = mBleBatteryLevelHelper.getUpdateMode((null == queue) ? null : queue.getGatt());
+        mBattUpdateMode = mode;
+        switch (mode) {
+            case BleBatteryLevelHelper.UPDATE_MODE_NOTIFY:
+                // The connection restores it after a reconnect.
+                return mBleBatteryLevelHelper.setNotification(mConnection, true, null);
+            case BleBatteryLevelHelper.UPDATE_MODE_READ:
+                Log.d(TAG, "battery level cannot notify, polling");
+                BatteryPollScheduler.getInstance(mContext).add(this);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private BleGattOperationQueue getOperationQueue() {
+        return (mConnection == null) ? null : mConnection.getOperationQueue();
+    }
+
+    void notifyBatteryLevel(BluetoothGattCharacteristic characteristic) {
+        long packed = mBleBatteryLevelHelper.readBatteryLevelPacked(characteristic);
+        if(null!=mClientCallback&&packed>=0) {
+            int level = BleBatteryLevelHelper.unpackBatteryLevel(packed);
+            int namespace = BleBatteryLevelHelper.unpackNamespace(packed);
+            int description = BleBatteryLevelHelper.unpackDescription(packed);
+            mClientCallback.onBatteryLevel(mAddressIndex, level, namespace, description);
+        }
     }
-}
\ No newline at end of file
+}
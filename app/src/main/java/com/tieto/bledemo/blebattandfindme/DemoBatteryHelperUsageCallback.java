@@ -12,4 +12,18 @@ public abstract class DemoBatteryHelperUsageCallback {
     public void onBatteryLevelChanged(int batteryLevel,int namespace,int description) {
 
     }
+
+    /**
+     * Battery level of a device, called on the Bluetooth binder thread without
+     * allocating so it can keep up with many devices notifying at once.
+     *
+     * <p>The default passes the level on to
+     * {@link #onBatteryLevelChanged(int, int, int)}, a callback overriding this
+     * method no longer receives that call.
+     *
+     * @param addressIndex device index, see {@link BleConnectionManager#getAddressIndex(String)}.
+     */
+    public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+        onBatteryLevelChanged(level, namespace, description);
+    }
 }
@@ -2,14 +2,19 @@ package com.tieto.bledemo.blebattandfindme;
 
 import android.app.Activity;
 import android.bluetooth.BleFindMeProfile;
-import android.bluetooth.BleFindMeProfileCallback;
+import android.bluetooth.BleGattConnection;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -20,7 +25,6 @@ import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
-import android.os.Handler;
 
 public class DeviceControlActivity extends Activity {
 
@@ -28,66 +32,93 @@ public class DeviceControlActivity extends Activity {
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    private static final long PROXIMITY_REFRESH_PERIOD = 1000;
 
     private BluetoothManager mBluetoothManager=null;
     private BluetoothAdapter mBluetoothAdapter=null;
     private BluetoothDevice mDevice=null;
-    private BleFindMeProfile mBleFindMeProfile=null;
+    private BleMonitorService mService=null;
+    private boolean mServiceBound=false;
+    private boolean mResumed=false;
     private TextView mTxtConnectionState=null;
     private TextView mTxtDeviceAddress=null;
     private Spinner mSpinnerAlertLevel=null;
-    private Button mBtnConnFindMe=null;
-    private Button mBtnConnBatt=null;
+    private Button mBtnConnect=null;
     private TextView mTxtBattryLevel=null;
+    private TextView mTxtProximity=null;
 
     private boolean mConnected = false;
-    private boolean mBattConnected = false;
-    private boolean mFindMeConnected = false;
     private boolean mNotificationOn = false;
-    private Handler callbackHandler=null;
+    private CoalescingUiDispatcher mUiDispatcher=null;
+    private final char[] mBatteryLevelText = new char[4];
+    private final Handler mHandler = new Handler();
+    private final Runnable mShowProximity = new Runnable() {
+        @Override
+        public void run() {
+            showProximity();
+            mHandler.postDelayed(this, PROXIMITY_REFRESH_PERIOD);
+        }
+    };
 
-    private DemoBatteryHelperUsage mDemoBatteryHelperUsage=null;
-    private DemoBatteryHelperUsageCallback mDemoBatteryCallback=new DemoBatteryHelperUsageCallback(){
+    // Owned by the service, shared with the background monitoring of the device.
+    private volatile DemoBatteryHelperUsage mDemoBatteryHelperUsage=null;
+    private final BleMonitorService.Listener mServiceListener = new BleMonitorService.Listener() {
 
         @Override
-        public void onConnectionStateChanged(final int status,final int newState) {
-            callbackHandler.postDelayed(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                                mConnected = true;
-                                mBattConnected=true;
-                                updateConnectionState(R.string.connected);
-                                invalidateOptionsMenu();
-
-                                boolean ret=mDemoBatteryHelperUsage.setBattNotification(true);
-                                Log.i(TAG, "batt notification status="+(ret?"on":"off"));
-
-                            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                                mConnected = false;
-                                mBattConnected=false;
-                                updateConnectionState(R.string.disconnected);
-                                invalidateOptionsMenu();
-                            }
-
-                            invalidateUIState();
-                        }
-                    }
-                    ,10);
+        public void onConnectionStateChanged(int addressIndex, int status, int newState) {
+            if (isShown(addressIndex)) {
+                mUiDispatcher.postConnectionState(addressIndex, status, newState);
+            }
         }
 
         @Override
-        public void onBatteryLevelChanged(final int batteryLevel,final int namespace,final int description) {
-
-            callbackHandler.postDelayed(            new Runnable(){
-                @Override
-                public void run() {
-                    if(null!=mTxtBattryLevel) {
-                        mTxtBattryLevel.setText(batteryLevel+"%");
-                    }
-                }
-            },10);
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            if (isShown(addressIndex)) {
+                mUiDispatcher.postBatteryLevel(addressIndex, level, namespace, description);
+            }
+        }
+    };
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((BleMonitorService.LocalBinder) binder).getService();
+            mService.addListener(mServiceListener);
+            if (mResumed) {
+                mService.setForeground(true);
+            }
+            if (mDevice != null) {
+                mDemoBatteryHelperUsage = mService.monitor(mDevice);
+                showCurrentState();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+            mDemoBatteryHelperUsage = null;
+        }
+    };
+
+    private final CoalescingUiDispatcher.Callback mUiCallback = new CoalescingUiDispatcher.Callback() {
+
+        @Override
+        public void onConnectionStateChanged(int addressIndex, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnected = true;
+                updateConnectionState(R.string.connected);
+                invalidateOptionsMenu();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnected = false;
+                updateConnectionState(R.string.disconnected);
+                invalidateOptionsMenu();
+            }
+
+            invalidateUIState();
+        }
+
+        @Override
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            showBatteryLevel(level);
         }
     };
 
@@ -95,16 +126,16 @@ public class DeviceControlActivity extends Activity {
 
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos,long id) {
-            if(mBleFindMeProfile!=null&&mFindMeConnected) {
+            if(mDemoBatteryHelperUsage!=null&&mConnected) {
                 switch (pos) {
                     case 1:
-                        mBleFindMeProfile.findMe(BleFindMeProfile.ALERT_LEVEL_MID);
+                        mDemoBatteryHelperUsage.findMe(BleFindMeProfile.ALERT_LEVEL_MID);
                         break;
                     case 2:
-                        mBleFindMeProfile.findMe(BleFindMeProfile.ALERT_LEVEL_HIGH);
+                        mDemoBatteryHelperUsage.findMe(BleFindMeProfile.ALERT_LEVEL_HIGH);
                         break;
                     default:
-                        mBleFindMeProfile.findMe(BleFindMeProfile.ALERT_LEVEL_NO_ALERT);
+                        mDemoBatteryHelperUsage.findMe(BleFindMeProfile.ALERT_LEVEL_NO_ALERT);
                         break;
                 }
             }
@@ -116,34 +147,6 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
-    private final BleFindMeProfileCallback
-            mBleFindMeProfileCallback = new BleFindMeProfileCallback() {
-        @Override
-        public void onConnectionStateChanged(final int status,final int newState) {
-
-            callbackHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        mConnected = true;
-                        mFindMeConnected=true;
-                        updateConnectionState(R.string.connected);
-                        invalidateOptionsMenu();
-                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        mConnected = false;
-                        mFindMeConnected=false;
-                        updateConnectionState(R.string.disconnected);
-                        invalidateOptionsMenu();
-                    }
-
-                    Log.i(TAG, "onConnectionStateChanged.");
-
-                    invalidateUIState();
-                }
-            } ,10);
-        }
-    };
-
     private String mDeviceAddress;
 
     @Override
@@ -151,7 +154,7 @@ public class DeviceControlActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_device_control);
 
-        callbackHandler=new Handler();
+        mUiDispatcher=new CoalescingUiDispatcher(mUiCallback);
 
         mSpinnerAlertLevel=(Spinner) findViewById(R.id.spin_alert_level);
         mSpinnerAlertLevel.setOnItemSelectedListener(new AlertLevelSelectedListener());
@@ -159,21 +162,15 @@ public class DeviceControlActivity extends Activity {
         mTxtConnectionState = (TextView) findViewById(R.id.connection_state);
         mTxtDeviceAddress = (TextView) findViewById(R.id.device_address);
 
-        mBtnConnFindMe=(Button) findViewById(R.id.btnConnFindMe);
-        mBtnConnFindMe.setOnClickListener(new OnClickListener(){
-            public void onClick(android.view.View view)  {
-                disableUI();
-                connectFindMe(mDeviceAddress);
-            }
-        });
-        mBtnConnBatt=(Button) findViewById(R.id.btnConnBatt);
-        mBtnConnBatt.setOnClickListener(new OnClickListener(){
+        mBtnConnect=(Button) findViewById(R.id.btnConnect);
+        mBtnConnect.setOnClickListener(new OnClickListener(){
             public void onClick(android.view.View view)  {
                 disableUI();
-                connectBattService(mDeviceAddress);
+                connect(mDeviceAddress);
             }
         });
         mTxtBattryLevel=(TextView) findViewById(R.id.battery_level);
+        mTxtProximity=(TextView) findViewById(R.id.proximity);
 
         final Intent intent = getIntent();
         String deviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
@@ -195,14 +192,53 @@ public class DeviceControlActivity extends Activity {
 
         mTxtDeviceAddress.setText(mDeviceAddress);
 
-        mBleFindMeProfile=new BleFindMeProfile(getBaseContext(), mBleFindMeProfileCallback);
-        mDemoBatteryHelperUsage=new DemoBatteryHelperUsage(getBaseContext(),mDemoBatteryCallback);
-
+        if (mBluetoothAdapter != null && mDeviceAddress != null) {
+            mDevice = mBluetoothAdapter.getRemoteDevice(mDeviceAddress);
+        }
+        // The service keeps monitoring the device after this activity is gone.
+        Intent service = new Intent(this, BleMonitorService.class);
+        startService(service);
+        mServiceBound = bindService(service, mServiceConnection, Context.BIND_AUTO_CREATE);
 
         getActionBar().setTitle(deviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if (mService != null) {
+            mService.setForeground(true);
+        }
+        mHandler.post(mShowProximity);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+        if (mService != null) {
+            mService.setForeground(false);
+        }
+        mHandler.removeCallbacks(mShowProximity);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mService != null) {
+            mService.removeListener(mServiceListener);
+            mService = null;
+        }
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+        }
+        mDemoBatteryHelperUsage = null;
+        mUiDispatcher.cancel();
+        Log.d(TAG, "superseded UI updates dropped: " + mUiDispatcher.getDroppedCount());
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -220,6 +256,24 @@ public class DeviceControlActivity extends Activity {
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_alert_all) {
+            BleConnectionManager.getInstance(this)
+                    .alertAll(BleFindMeProfile.ALERT_LEVEL_HIGH, null);
+            return true;
+        } else if (id == R.id.action_silence_all) {
+            BleConnectionManager.getInstance(this)
+                    .alertAll(BleFindMeProfile.ALERT_LEVEL_NO_ALERT, null);
+            return true;
+        } else if (id == R.id.action_stop_monitoring) {
+            if (mService != null && mDevice != null) {
+                mService.unmonitor(mDevice);
+                mDemoBatteryHelperUsage = null;
+            }
+            Intent intent =new Intent();
+            intent.setClass(this,MainActivity.class);
+            startActivity(intent);
+            finish();
+            return true;
         } else if( id == android.R.id.home) {
             Intent intent =new Intent();
             intent.setClass(this,MainActivity.class);
@@ -230,22 +284,15 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
-    private boolean connectFindMe(final String address) {
+    private boolean connect(final String address) {
+
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        mBleFindMeProfile.connect(device, false);
-        Log.d(TAG, "Trying to create a connection.");
-        return true;
-    }
-
-    private boolean connectBattService(final String address) {
-
-        if (mBluetoothAdapter == null || address == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+        if (mDemoBatteryHelperUsage == null) {
+            Log.w(TAG, "Monitor service not bound yet.");
             return false;
         }
 
@@ -256,34 +303,63 @@ public class DeviceControlActivity extends Activity {
     }
 
     private void invalidateUIState() {
+        mBtnConnect.setEnabled(!mConnected);
+    }
 
-        if(mFindMeConnected){
-            mBtnConnFindMe.setEnabled(false);
-        } else if(!mBattConnected){
-            mBtnConnFindMe.setEnabled(true);
-        } else {
-            mBtnConnFindMe.setEnabled(false);
+    private void disableUI() {
+        mBtnConnect.setEnabled(false);
+    }
+
+    private void showBatteryLevel(int batteryLevel) {
+        if(null==mTxtBattryLevel) {
+            return;
+        }
+        int len = 0;
+        if (batteryLevel >= 100) {
+            mBatteryLevelText[len++] = (char) ('0' + batteryLevel / 100);
+        }
+        if (batteryLevel >= 10) {
+            mBatteryLevelText[len++] = (char) ('0' + batteryLevel / 10 % 10);
         }
+        mBatteryLevelText[len++] = (char) ('0' + batteryLevel % 10);
+        mBatteryLevelText[len++] = '%';
+        mTxtBattryLevel.setText(mBatteryLevelText, 0, len);
+    }
 
-        if(mBattConnected){
-            mBtnConnBatt.setEnabled(false);
-        } else if(!mFindMeConnected) {
-            mBtnConnBatt.setEnabled(true);
-        } else {
-            mBtnConnBatt.setEnabled(false);
+    /**
+     * Show the state the service already has, a device monitored in the
+     * background is shown without waiting for new events.
+     */
+    private void showCurrentState() {
+        BleGattConnection connection = mDemoBatteryHelperUsage.getConnection();
+        int state = (connection == null) ?
+                BluetoothProfile.STATE_DISCONNECTED : connection.getConnectionState();
+        int addressIndex = mDemoBatteryHelperUsage.getAddressIndex();
+        mUiCallback.onConnectionStateChanged(addressIndex, BluetoothGatt.GATT_SUCCESS, state);
+        int batteryLevel = mService.getBatteryLevel(addressIndex);
+        if (batteryLevel >= 0) {
+            showBatteryLevel(batteryLevel);
         }
     }
 
-    private void disableUI() {
-        mBtnConnFindMe.setEnabled(false);
-        mBtnConnBatt.setEnabled(false);
+    private boolean isShown(int addressIndex) {
+        DemoBatteryHelperUsage usage = mDemoBatteryHelperUsage;
+        return usage != null && usage.getAddressIndex() == addressIndex;
     }
 
-    private void enableUI() {
-        mBtnConnFindMe.setEnabled(true);
-        mBtnConnFindMe.setText(R.string.button_findme_connect);
-        mBtnConnBatt.setEnabled(true);
-        mBtnConnBatt.setText(R.string.button_batt_connect);
+    private void showProximity() {
+        if (mService == null || mDemoBatteryHelperUsage == null) {
+            mTxtProximity.setText(null);
+            return;
+        }
+        RssiEstimator estimator = mService.getEstimator();
+        int addressIndex = mDemoBatteryHelperUsage.getAddressIndex();
+        if (!estimator.hasSamples(addressIndex)) {
+            mTxtProximity.setText(null);
+            return;
+        }
+        mTxtProximity.setText(getString(R.string.proximity, estimator.getDistance(addressIndex),
+                Math.round(estimator.getFilteredRssi(addressIndex))));
     }
 
     private void updateConnectionState(final int resourceId) {
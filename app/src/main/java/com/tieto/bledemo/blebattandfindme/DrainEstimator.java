@@ -0,0 +1,319 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import java.util.Arrays;
+
+/**
+ * Battery drain rate and time to empty of many devices.
+ *
+ * <p>Each device keeps the running sums of a weighted least squares fit of
+ * level against time. Older samples fade out with a half-life of
+ * {@link #HALF_LIFE}, so the rate follows changes in usage and memory stays at
+ * a few numbers per device. Battery levels are coarse and jumpy, a sample far
+ * from the fitted line is rejected. A run of rejected samples means a new
+ * trend, typically a replaced battery, and restarts the fit.
+ *
+ * <p>The fleet view orders devices by the time their battery runs out. That
+ * time is absolute, so the order only changes when a sample arrives. A refresh
+ * insertion-sorts the previous order when few devices changed, which is close
+ * to linear, and sorts packed keys otherwise.
+ *
+ * <p>State lives in primitive arrays indexed by
+ * {@link BleConnectionManager#getAddressIndex(String)}. Adding a sample does
+ * not allocate unless a new index grows the arrays. Methods are thread safe.
+ */
+public class DrainEstimator {
+
+    /** Returned when there is no estimate, or the battery is not draining. */
+    public static final long UNKNOWN = -1;
+
+    public static final long HALF_LIFE = 3 * 24 * 3600 * 1000L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final double HOUR = 3600 * 1000.0;
+    // A fit needs this many samples spread over this many hours.
+    private static final int MIN_SAMPLES = 3;
+    private static final double MIN_SPAN_HOURS = 1;
+    // Residuals beyond this many standard deviations are outliers...
+    private static final double OUTLIER_SIGMAS = 3;
+    // ...but never within this many percent, the level is an integer.
+    private static final double MIN_OUTLIER_BAND = 3;
+    private static final double RESIDUAL_ALPHA = 0.1;
+    // Slower than this, in percent per hour, is not draining; about 10 years from full.
+    private static final double MIN_DRAIN_RATE = 0.001;
+    // This many outliers in a row are a new trend rather than noise.
+    private static final int MAX_CONSECUTIVE_OUTLIERS = 3;
+    // Above this many changes a refresh sorts from scratch.
+    private static final int SORT_THRESHOLD = 64;
+    private static final int INDEX_BITS = 24;
+    private static final long MAX_SORT_SECONDS = (1L << (63 - INDEX_BITS)) - 1;
+
+    // Weighted sums of 1, t, t^2, level and t * level, t in hours since the origin.
+    private double[] mWeights = new double[INITIAL_CAPACITY];
+    private double[] mSumT = new double[INITIAL_CAPACITY];
+    private double[] mSumTT = new double[INITIAL_CAPACITY];
+    private double[] mSumL = new double[INITIAL_CAPACITY];
+    private double[] mSumTL = new double[INITIAL_CAPACITY];
+    private double[] mResidualVariance = new double[INITIAL_CAPACITY];
+    private long[] mOrigin = new long[INITIAL_CAPACITY];
+    private long[] mLastTime = new long[INITIAL_CAPACITY];
+    private int[] mSampleCount = new int[INITIAL_CAPACITY];
+    private int[] mOutliers = new int[INITIAL_CAPACITY];
+    // Fit of the last sample, updated on every sample.
+    private double[] mSlope = new double[INITIAL_CAPACITY];
+    private double[] mIntercept = new double[INITIAL_CAPACITY];
+    private long[] mEmptyTime = new long[INITIAL_CAPACITY];
+    private long mRejectedCount=0;
+    private long mResetCount=0;
+
+    // Devices with samples, by ascending empty time once refreshed.
+    private int[] mOrder = new int[INITIAL_CAPACITY];
+    private boolean[] mOrdered = new boolean[INITIAL_CAPACITY];
+    private long[] mSortKeys = new long[INITIAL_CAPACITY];
+    private int mOrderCount=0;
+    // Samples since the last refresh.
+    private int mOrderChanges=0;
+
+    public DrainEstimator() {
+        Arrays.fill(mEmptyTime, UNKNOWN);
+    }
+
+    /**
+     * Add a battery level sample.
+     *
+     * @param timeMillis wall clock time, see {@link System#currentTimeMillis()}.
+     * @return false if the sample was rejected as an outlier.
+     */
+    public synchronized boolean addSample(int addressIndex, long timeMillis, int level) {
+        ensureCapacity(addressIndex);
+        if (!mOrdered[addressIndex]) {
+            mOrdered[addressIndex] = true;
+            mOrder[mOrderCount++] = addressIndex;
+        }
+        mOrderChanges++;
+
+        if (mSampleCount[addressIndex] > 0) {
+            double t = (timeMillis - mOrigin[addressIndex]) / HOUR;
+            double residual = level - (mIntercept[addressIndex] + mSlope[addressIndex] * t);
+            if (timeMillis < mLastTime[addressIndex]) {
+                reset(addressIndex);
+            } else if (isFitted(addressIndex)
+                    && Math.abs(residual) > Math.max(MIN_OUTLIER_BAND,
+                    OUTLIER_SIGMAS * Math.sqrt(mResidualVariance[addressIndex]))) {
+                mRejectedCount++;
+                if (++mOutliers[addressIndex] < MAX_CONSECUTIVE_OUTLIERS) {
+                    return false;
+                }
+                reset(addressIndex);
+            } else {
+                mOutliers[addressIndex] = 0;
+                mResidualVariance[addressIndex] += RESIDUAL_ALPHA
+                        * (residual * residual - mResidualVariance[addressIndex]);
+            }
+        }
+
+        if (mSampleCount[addressIndex] == 0) {
+            mOrigin[addressIndex] = timeMillis;
+            mLastTime[addressIndex] = timeMillis;
+        }
+        double decay = Math.pow(0.5, (timeMillis - mLastTime[addressIndex]) / (double) HALF_LIFE);
+        double t = (timeMillis - mOrigin[addressIndex]) / HOUR;
+        mWeights[addressIndex] = mWeights[addressIndex] * decay + 1;
+        mSumT[addressIndex] = mSumT[addressIndex] * decay + t;
+        mSumTT[addressIndex] = mSumTT[addressIndex] * decay + t * t;
+        mSumL[addressIndex] = mSumL[addressIndex] * decay + level;
+        mSumTL[addressIndex] = mSumTL[addressIndex] * decay + t * level;
+        mLastTime[addressIndex] = timeMillis;
+        if (mSampleCount[addressIndex] < Integer.MAX_VALUE) {
+            mSampleCount[addressIndex]++;
+        }
+        fit(addressIndex, t, level);
+        return true;
+    }
+
+    /**
+     * Forget the samples of a device, e.g. when its battery was replaced.
+     */
+    public synchronized void reset(int addressIndex) {
+        if (addressIndex < 0 || addressIndex >= mSampleCount.length) {
+            return;
+        }
+        if (mSampleCount[addressIndex] > 0) {
+            mResetCount++;
+        }
+        mWeights[addressIndex] = 0;
+        mSumT[addressIndex] = 0;
+        mSumTT[addressIndex] = 0;
+        mSumL[addressIndex] = 0;
+        mSumTL[addressIndex] = 0;
+        mResidualVariance[addressIndex] = 0;
+        mSampleCount[addressIndex] = 0;
+        mOutliers[addressIndex] = 0;
+        mSlope[addressIndex] = 0;
+        mIntercept[addressIndex] = 0;
+        mEmptyTime[addressIndex] = UNKNOWN;
+        mOrderChanges++;
+    }
+
+    /**
+     * @return drain rate in percent per hour, positive while draining, 0 without a fit.
+     */
+    public synchronized float getDrainRate(int addressIndex) {
+        if (!isFitted(addressIndex)) {
+            return 0;
+        }
+        return (float) -mSlope[addressIndex];
+    }
+
+    /**
+     * @return wall clock time the battery is expected to run out, or {@link #UNKNOWN}.
+     */
+    public synchronized long getEmptyTime(int addressIndex) {
+        if (addressIndex < 0 || addressIndex >= mEmptyTime.length) {
+            return UNKNOWN;
+        }
+        return mEmptyTime[addressIndex];
+    }
+
+    /**
+     * @return milliseconds until the battery runs out, 0 if overdue, or {@link #UNKNOWN}.
+     */
+    public synchronized long getTimeToEmpty(int addressIndex, long nowMillis) {
+        long emptyTime = getEmptyTime(addressIndex);
+        if (emptyTime == UNKNOWN) {
+            return UNKNOWN;
+        }
+        return Math.max(0, emptyTime - nowMillis);
+    }
+
+    /**
+     * @return number of samples rejected as outliers, over all devices.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * @return number of fits restarted by a replaced battery or a new trend.
+     */
+    public synchronized long getResetCount() {
+        return mResetCount;
+    }
+
+    /**
+     * Devices with an estimate, the one running out first first.
+     *
+     * @param addressIndexes receives the devices.
+     * @param emptyTimes receives their empty times, see {@link #getEmptyTime(int)}; may be null.
+     * @return number of devices with an estimate; at most the array length are read.
+     */
+    public synchronized int getFleet(int[] addressIndexes, long[] emptyTimes) {
+        if (mOrderChanges > 0) {
+            sortOrder();
+            mOrderChanges = 0;
+        }
+        int found = 0;
+        for (int i = 0; i < mOrderCount; i++) {
+            int addressIndex = mOrder[i];
+            long emptyTime = mEmptyTime[addressIndex];
+            if (emptyTime == UNKNOWN) {
+                // Unknown sorts last.
+                break;
+            }
+            if (found < addressIndexes.length) {
+                addressIndexes[found] = addressIndex;
+                if (null != emptyTimes && found < emptyTimes.length) {
+                    emptyTimes[found] = emptyTime;
+                }
+            }
+            found++;
+        }
+        return found;
+    }
+
+    private boolean isFitted(int addressIndex) {
+        return addressIndex >= 0 && addressIndex < mSampleCount.length
+                && mSampleCount[addressIndex] >= MIN_SAMPLES
+                && mLastTime[addressIndex] - mOrigin[addressIndex] >= MIN_SPAN_HOURS * HOUR;
+    }
+
+    private void fit(int addressIndex, double t, int level) {
+        double weights = mWeights[addressIndex];
+        double sumT = mSumT[addressIndex];
+        double sumL = mSumL[addressIndex];
+        double denominator = weights * mSumTT[addressIndex] - sumT * sumT;
+        if (mSampleCount[addressIndex] < 2 || denominator <= 1e-9) {
+            // Flat line through the last level until the samples spread out.
+            mSlope[addressIndex] = 0;
+            mIntercept[addressIndex] = level;
+            mEmptyTime[addressIndex] = UNKNOWN;
+            return;
+        }
+        double slope = (weights * mSumTL[addressIndex] - sumT * sumL) / denominator;
+        double intercept = (sumL - slope * sumT) / weights;
+        mSlope[addressIndex] = slope;
+        mIntercept[addressIndex] = intercept;
+
+        if (!isFitted(addressIndex) || -slope < MIN_DRAIN_RATE) {
+            mEmptyTime[addressIndex] = UNKNOWN;
+            return;
+        }
+        double current = Math.max(0, intercept + slope * t);
+        mEmptyTime[addressIndex] = mLastTime[addressIndex] + (long) (-current / slope * HOUR);
+    }
+
+    private void sortOrder() {
+        if (mOrderChanges > SORT_THRESHOLD) {
+            // Empty time in seconds above the address index, in one long.
+            for (int i = 0; i < mOrderCount; i++) {
+                long seconds = Math.min(sortKey(mOrder[i]) / 1000, MAX_SORT_SECONDS);
+                mSortKeys[i] = (seconds << INDEX_BITS) | mOrder[i];
+            }
+            Arrays.sort(mSortKeys, 0, mOrderCount);
+            for (int i = 0; i < mOrderCount; i++) {
+                mOrder[i] = (int) (mSortKeys[i] & ((1 << INDEX_BITS) - 1));
+            }
+            return;
+        }
+        // Few devices moved since the last refresh, insertion sort is near linear.
+        for (int i = 1; i < mOrderCount; i++) {
+            int addressIndex = mOrder[i];
+            long key = sortKey(addressIndex);
+            int j = i - 1;
+            while (j >= 0 && sortKey(mOrder[j]) > key) {
+                mOrder[j + 1] = mOrder[j];
+                j--;
+            }
+            mOrder[j + 1] = addressIndex;
+        }
+    }
+
+    private long sortKey(int addressIndex) {
+        long emptyTime = mEmptyTime[addressIndex];
+        return (emptyTime == UNKNOWN) ? Long.MAX_VALUE : emptyTime;
+    }
+
+    private void ensureCapacity(int addressIndex) {
+        if (addressIndex < mSampleCount.length) {
+            return;
+        }
+        int oldCapacity = mSampleCount.length;
+        int capacity = Math.max(addressIndex + 1, oldCapacity * 2);
+        mWeights = Arrays.copyOf(mWeights, capacity);
+        mSumT = Arrays.copyOf(mSumT, capacity);
+        mSumTT = Arrays.copyOf(mSumTT, capacity);
+        mSumL = Arrays.copyOf(mSumL, capacity);
+        mSumTL = Arrays.copyOf(mSumTL, capacity);
+        mResidualVariance = Arrays.copyOf(mResidualVariance, capacity);
+        mOrigin = Arrays.copyOf(mOrigin, capacity);
+        mLastTime = Arrays.copyOf(mLastTime, capacity);
+        mSampleCount = Arrays.copyOf(mSampleCount, capacity);
+        mOutliers = Arrays.copyOf(mOutliers, capacity);
+        mSlope = Arrays.copyOf(mSlope, capacity);
+        mIntercept = Arrays.copyOf(mIntercept, capacity);
+        mEmptyTime = Arrays.copyOf(mEmptyTime, capacity);
+        Arrays.fill(mEmptyTime, oldCapacity, capacity, UNKNOWN);
+        mOrder = Arrays.copyOf(mOrder, capacity);
+        mOrdered = Arrays.copyOf(mOrdered, capacity);
+        mSortKeys = Arrays.copyOf(mSortKeys, capacity);
+    }
+}
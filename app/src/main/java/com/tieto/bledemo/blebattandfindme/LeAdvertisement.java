@@ -0,0 +1,332 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import java.util.Arrays;
+
+/**
+ * Reusable view over the AD structures of a raw advertisement.
+ *
+ * <p>{@link #wrap(byte[])} walks the bytes once and only records where the
+ * interesting structures are; values are decoded from the wrapped array when
+ * asked for. One instance is meant to be reused for every scan result of a
+ * thread, so parsing does not allocate once its offset tables are big enough.
+ *
+ * <p>Not thread safe. The wrapped array must not change while it is viewed.
+ */
+public class LeAdvertisement {
+
+    public static final int NO_FLAGS = -1;
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+    public static final int NO_BATTERY_LEVEL = -1;
+
+    private static final int AD_TYPE_FLAGS = 0x01;
+    private static final int AD_TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int AD_TYPE_UUID16_COMPLETE = 0x03;
+    private static final int AD_TYPE_UUID32_INCOMPLETE = 0x04;
+    private static final int AD_TYPE_UUID32_COMPLETE = 0x05;
+    private static final int AD_TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_TYPE_UUID128_COMPLETE = 0x07;
+    private static final int AD_TYPE_TX_POWER_LEVEL = 0x0A;
+    private static final int AD_TYPE_SERVICE_DATA_UUID16 = 0x16;
+    private static final int AD_TYPE_SERVICE_DATA_UUID32 = 0x20;
+    private static final int AD_TYPE_SERVICE_DATA_UUID128 = 0x21;
+
+    private static final int BATTERY_SERVICE_UUID16 = 0x180F;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private byte[] mBytes=null;
+    private int mFlags=NO_FLAGS;
+    private int mTxPower=NO_TX_POWER;
+
+    // Offsets into mBytes of each 16-bit, 32-bit and 128-bit service UUID.
+    private int[] mUuid16Offsets = new int[INITIAL_CAPACITY];
+    private int mUuid16Count=0;
+    private int[] mUuid32Offsets = new int[INITIAL_CAPACITY];
+    private int mUuid32Count=0;
+    private int[] mUuid128Offsets = new int[INITIAL_CAPACITY];
+    private int mUuid128Count=0;
+
+    // Offset of the UUID of each service data structure, the UUID length in bytes and the data length.
+    private int[] mServiceDataOffsets = new int[INITIAL_CAPACITY];
+    private int[] mServiceDataUuidLengths = new int[INITIAL_CAPACITY];
+    private int[] mServiceDataLengths = new int[INITIAL_CAPACITY];
+    private int mServiceDataCount=0;
+
+    /**
+     * View another advertisement.
+     *
+     * @param bytes advertisement and scan response bytes, {@code ScanRecord#getBytes()}.
+     * @return false if the record is malformed, the structures before the
+     *         malformed one are still viewed.
+     */
+    public boolean wrap(byte[] bytes) {
+        mBytes = bytes;
+        mFlags = NO_FLAGS;
+        mTxPower = NO_TX_POWER;
+        mUuid16Count = 0;
+        mUuid32Count = 0;
+        mUuid128Count = 0;
+        mServiceDataCount = 0;
+        if (null == bytes) {
+            return false;
+        }
+
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = bytes[offset] & 0xFF;
+            if (length == 0) {
+                // Zero padding after the significant part.
+                return true;
+            }
+            int end = offset + 1 + length;
+            if (end > bytes.length) {
+                return false;
+            }
+            int data = offset + 2;
+            switch (bytes[offset + 1] & 0xFF) {
+                case AD_TYPE_FLAGS:
+                    if (data < end) {
+                        mFlags = bytes[data] & 0xFF;
+                    }
+                    break;
+                case AD_TYPE_TX_POWER_LEVEL:
+                    if (data < end) {
+                        mTxPower = bytes[data];
+                    }
+                    break;
+                case AD_TYPE_UUID16_INCOMPLETE:
+                case AD_TYPE_UUID16_COMPLETE:
+                    for (int i = data; i + 2 <= end; i += 2) {
+                        if (mUuid16Count == mUuid16Offsets.length) {
+                            mUuid16Offsets = Arrays.copyOf(mUuid16Offsets, mUuid16Count * 2);
+                        }
+                        mUuid16Offsets[mUuid16Count++] = i;
+                    }
+                    break;
+                case AD_TYPE_UUID32_INCOMPLETE:
+                case AD_TYPE_UUID32_COMPLETE:
+                    for (int i = data; i + 4 <= end; i += 4) {
+                        if (mUuid32Count == mUuid32Offsets.length) {
+                            mUuid32Offsets = Arrays.copyOf(mUuid32Offsets, mUuid32Count * 2);
+                        }
+                        mUuid32Offsets[mUuid32Count++] = i;
+                    }
+                    break;
+                case AD_TYPE_UUID128_INCOMPLETE:
+                case AD_TYPE_UUID128_COMPLETE:
+                    for (int i = data; i + 16 <= end; i += 16) {
+                        if (mUuid128Count == mUuid128Offsets.length) {
+                            mUuid128Offsets = Arrays.copyOf(mUuid128Offsets, mUuid128Count * 2);
+                        }
+                        mUuid128Offsets[mUuid128Count++] = i;
+                    }
+                    break;
+                case AD_TYPE_SERVICE_DATA_UUID16:
+                    addServiceData(data, end, 2);
+                    break;
+                case AD_TYPE_SERVICE_DATA_UUID32:
+                    addServiceData(data, end, 4);
+                    break;
+                case AD_TYPE_SERVICE_DATA_UUID128:
+                    addServiceData(data, end, 16);
+                    break;
+            }
+            offset = end;
+        }
+        return true;
+    }
+
+    /**
+     * @return the wrapped bytes, values below are offsets into them.
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return the flags byte, or {@link #NO_FLAGS}.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return TX power level in dBm, or {@link #NO_TX_POWER}.
+     */
+    public int getTxPowerLevel() {
+        return mTxPower;
+    }
+
+    public int getServiceUuid16Count() {
+        return mUuid16Count;
+    }
+
+    public int getServiceUuid16(int index) {
+        return readUuid16(mUuid16Offsets[index]);
+    }
+
+    public boolean hasServiceUuid16(int uuid) {
+        for (int i = 0; i < mUuid16Count; i++) {
+            if (readUuid16(mUuid16Offsets[i]) == uuid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getServiceUuid32Count() {
+        return mUuid32Count;
+    }
+
+    /**
+     * @return the 32-bit UUID, values above 0x7FFFFFFF come out negative.
+     */
+    public int getServiceUuid32(int index) {
+        return readUuid32(mUuid32Offsets[index]);
+    }
+
+    public boolean hasServiceUuid32(int uuid) {
+        for (int i = 0; i < mUuid32Count; i++) {
+            if (readUuid32(mUuid32Offsets[i]) == uuid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getServiceUuid128Count() {
+        return mUuid128Count;
+    }
+
+    public long getServiceUuid128MostSignificantBits(int index) {
+        return readLong(mUuid128Offsets[index] + 8);
+    }
+
+    public long getServiceUuid128LeastSignificantBits(int index) {
+        // Little endian on air: least significant half first.
+        return readLong(mUuid128Offsets[index]);
+    }
+
+    public boolean hasServiceUuid128(long msb, long lsb) {
+        for (int i = 0; i < mUuid128Count; i++) {
+            if (readLong(mUuid128Offsets[i]) == lsb && readLong(mUuid128Offsets[i] + 8) == msb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    /**
+     * @return length of the UUID of the service data in bytes, 2, 4 or 16.
+     */
+    public int getServiceDataUuidLength(int index) {
+        return mServiceDataUuidLengths[index];
+    }
+
+    /**
+     * @return the 16-bit UUID of the service data, only meaningful if
+     *         {@link #getServiceDataUuidLength(int)} is 2.
+     */
+    public int getServiceDataUuid16(int index) {
+        return readUuid16(mServiceDataOffsets[index]);
+    }
+
+    /**
+     * @return offset of the service data in {@link #getBytes()}, past its UUID.
+     */
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffsets[index] + mServiceDataUuidLengths[index];
+    }
+
+    public int getServiceDataLength(int index) {
+        return mServiceDataLengths[index];
+    }
+
+    /**
+     * @return index of the service data of a 16-bit UUID, or -1.
+     */
+    public int indexOfServiceData16(int uuid) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (mServiceDataUuidLengths[i] == 2 && readUuid16(mServiceDataOffsets[i]) == uuid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the service data of a 32-bit UUID, or -1.
+     */
+    public int indexOfServiceData32(int uuid) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            if (mServiceDataUuidLengths[i] == 4 && readUuid32(mServiceDataOffsets[i]) == uuid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the service data of a 128-bit UUID, or -1.
+     */
+    public int indexOfServiceData128(long msb, long lsb) {
+        for (int i = 0; i < mServiceDataCount; i++) {
+            int offset = mServiceDataOffsets[i];
+            if (mServiceDataUuidLengths[i] == 16
+                    && readLong(offset) == lsb && readLong(offset + 8) == msb) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Battery level advertised as Battery Service (0x180F) service data, whose
+     * first byte is the Battery Level characteristic value.
+     *
+     * @return level in percent, or {@link #NO_BATTERY_LEVEL}.
+     */
+    public int getBatteryLevel() {
+        int index = indexOfServiceData16(BATTERY_SERVICE_UUID16);
+        if (index < 0 || mServiceDataLengths[index] < 1) {
+            return NO_BATTERY_LEVEL;
+        }
+        int level = mBytes[getServiceDataOffset(index)] & 0xFF;
+        return (level > 100) ? NO_BATTERY_LEVEL : level;
+    }
+
+    private void addServiceData(int data, int end, int uuidLength) {
+        if (data + uuidLength > end) {
+            return;
+        }
+        if (mServiceDataCount == mServiceDataOffsets.length) {
+            int capacity = mServiceDataCount * 2;
+            mServiceDataOffsets = Arrays.copyOf(mServiceDataOffsets, capacity);
+            mServiceDataUuidLengths = Arrays.copyOf(mServiceDataUuidLengths, capacity);
+            mServiceDataLengths = Arrays.copyOf(mServiceDataLengths, capacity);
+        }
+        mServiceDataOffsets[mServiceDataCount] = data;
+        mServiceDataUuidLengths[mServiceDataCount] = uuidLength;
+        mServiceDataLengths[mServiceDataCount] = end - data - uuidLength;
+        mServiceDataCount++;
+    }
+
+    private int readUuid16(int offset) {
+        return (mBytes[offset] & 0xFF) | ((mBytes[offset + 1] & 0xFF) << 8);
+    }
+
+    private int readUuid32(int offset) {
+        return readUuid16(offset) | (readUuid16(offset + 2) << 16);
+    }
+
+    private long readLong(int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (mBytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
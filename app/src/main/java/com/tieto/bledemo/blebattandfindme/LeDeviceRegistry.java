@@ -0,0 +1,180 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+
+/**
+ * Devices seen while scanning, in the order they were first seen.
+ *
+ * <p>Devices are indexed by their 48-bit address packed into a long, in an
+ * open addressing hash table with linear probing, so looking up a device per
+ * advertisement is O(1) and does not allocate. Per-device values are kept in
+ * parallel arrays; a device keeps its position until {@link #clear()}.
+ *
+ * <p>Not thread safe, confine it to one thread.
+ */
+public class LeDeviceRegistry {
+
+    private static final int INITIAL_CAPACITY = 64;
+    // Set on every stored key so that 0 marks an empty slot, even for address 00:00:00:00:00:00.
+    private static final long KEY_PRESENT = 1L << 48;
+
+    // Hash table, mKeys[i] is an address | KEY_PRESENT and mSlots[i] its position.
+    private long[] mKeys = new long[INITIAL_CAPACITY * 2];
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+    private BluetoothDevice[] mDevices = new BluetoothDevice[INITIAL_CAPACITY];
+    private long[] mAddresses = new long[INITIAL_CAPACITY];
+    private int[] mRssi = new int[INITIAL_CAPACITY];
+    private long[] mLastSeen = new long[INITIAL_CAPACITY];
+    private int[] mBatteryLevel = new int[INITIAL_CAPACITY];
+    private int mCount=0;
+
+    /**
+     * Pack an address of the form "00:11:22:AA:BB:CC" into the low 48 bits of a long.
+     *
+     * @return the packed address, or -1 if the address is malformed.
+     */
+    public static long packAddress(String address) {
+        if (null == address || address.length() != 17) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Add a device, or update it if it is already known.
+     *
+     * @param address device address packed by {@link #packAddress(String)}.
+     * @param device the device, kept from the first time it is seen.
+     * @param rssi received signal strength of the last advertisement.
+     * @param lastSeen time of the last advertisement, e.g. {@code ScanResult#getTimestampNanos()}.
+     * @return position of the device, {@link #size()} grows when it was added.
+     */
+    public int update(long address, BluetoothDevice device, int rssi, long lastSeen) {
+        long key = address | KEY_PRESENT;
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != 0) {
+            if (mKeys[i] == key) {
+                int position = mSlots[i];
+                mRssi[position] = rssi;
+                mLastSeen[position] = lastSeen;
+                return position;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (mCount == mDevices.length) {
+            grow();
+            return update(address, device, rssi, lastSeen);
+        }
+        int position = mCount++;
+        mKeys[i] = key;
+        mSlots[i] = position;
+        mDevices[position] = device;
+        mAddresses[position] = address;
+        mRssi[position] = rssi;
+        mLastSeen[position] = lastSeen;
+        mBatteryLevel[position] = -1;
+        return position;
+    }
+
+    /**
+     * @return position of the device, or -1 if it is not known.
+     */
+    public int indexOf(long address) {
+        long key = address | KEY_PRESENT;
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != 0) {
+            if (mKeys[i] == key) {
+                return mSlots[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public BluetoothDevice getDevice(int position) {
+        return mDevices[position];
+    }
+
+    public long getAddress(int position) {
+        return mAddresses[position];
+    }
+
+    public int getRssi(int position) {
+        return mRssi[position];
+    }
+
+    public long getLastSeen(int position) {
+        return mLastSeen[position];
+    }
+
+    /**
+     * @return battery level in percent, or -1 if it is not known.
+     */
+    public int getBatteryLevel(int position) {
+        return mBatteryLevel[position];
+    }
+
+    public void setBatteryLevel(int position, int level) {
+        mBatteryLevel[position] = level;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, 0);
+        Arrays.fill(mDevices, 0, mCount, null);
+        mCount = 0;
+    }
+
+    private void grow() {
+        int capacity = mDevices.length * 2;
+        mDevices = Arrays.copyOf(mDevices, capacity);
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mRssi = Arrays.copyOf(mRssi, capacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+        mBatteryLevel = Arrays.copyOf(mBatteryLevel, capacity);
+
+        // Keep the table at most half full.
+        mKeys = new long[capacity * 2];
+        mSlots = new int[capacity * 2];
+        int mask = mKeys.length - 1;
+        for (int position = 0; position < mCount; position++) {
+            long key = mAddresses[position] | KEY_PRESENT;
+            int i = hash(key) & mask;
+            while (mKeys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = key;
+            mSlots[i] = position;
+        }
+    }
+
+    private static int hash(long key) {
+        // Vendor prefixes repeat in the high bytes, mix every bit into the low ones.
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,101 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Service UUIDs a scan is interested in.
+ *
+ * <p>The same set is offered as {@link ScanFilter}s, so the controller can drop
+ * other advertisers before they wake the application processor, and as a
+ * software pre-filter over {@link LeAdvertisement} for when the controller runs
+ * out of filter slots. A device matches if it advertises one of the services
+ * in a UUID list or in service data, in any of the 16-bit, 32-bit or 128-bit
+ * forms the UUID has.
+ */
+public class LeScanFilter {
+
+    // Bluetooth Base UUID xxxxxxxx-0000-1000-8000-00805F9B34FB.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private final ArrayList<UUID> mUuids = new ArrayList<UUID>();
+    // Same UUIDs for the software filter: the 32-bit alias of each Base UUID,
+    // and every UUID in its 128-bit form, most significant half first.
+    private int[] mUuids32 = new int[0];
+    private long[] mUuids128 = new long[0];
+
+    public LeScanFilter() {
+
+    }
+
+    public LeScanFilter addServiceUuid(UUID uuid) {
+        if (mUuids.contains(uuid)) {
+            return this;
+        }
+        mUuids.add(uuid);
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if ((msb & 0x00000000FFFFFFFFL) == BASE_UUID_MSB && lsb == BASE_UUID_LSB) {
+            mUuids32 = Arrays.copyOf(mUuids32, mUuids32.length + 1);
+            mUuids32[mUuids32.length - 1] = (int) (msb >>> 32);
+        }
+        mUuids128 = Arrays.copyOf(mUuids128, mUuids128.length + 2);
+        mUuids128[mUuids128.length - 2] = msb;
+        mUuids128[mUuids128.length - 1] = lsb;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mUuids.isEmpty();
+    }
+
+    /**
+     * Build the filters for {@code BluetoothLeScanner#startScan(List, ScanSettings, ScanCallback)}.
+     * Each UUID takes two controller slots, one for UUID lists and one for service data.
+     */
+    public List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>(mUuids.size() * 2);
+        for (UUID uuid : mUuids) {
+            ParcelUuid parcelUuid = new ParcelUuid(uuid);
+            filters.add(new ScanFilter.Builder().setServiceUuid(parcelUuid).build());
+            // Empty data matches any service data of the UUID.
+            filters.add(new ScanFilter.Builder().setServiceData(parcelUuid, new byte[0]).build());
+        }
+        return filters;
+    }
+
+    /**
+     * Software pre-filter over an advertisement already walked in place.
+     *
+     * @return true if the advertisement offers one of the services, or if the filter is empty.
+     */
+    public boolean matches(LeAdvertisement advertisement) {
+        if (mUuids.isEmpty()) {
+            return true;
+        }
+        for (int uuid : mUuids32) {
+            // A 16-bit UUID is the 32-bit one with the upper half zero.
+            if ((uuid & 0xFFFF0000) == 0 && (advertisement.hasServiceUuid16(uuid)
+                    || advertisement.indexOfServiceData16(uuid) >= 0)) {
+                return true;
+            }
+            if (advertisement.hasServiceUuid32(uuid)
+                    || advertisement.indexOfServiceData32(uuid) >= 0) {
+                return true;
+            }
+        }
+        for (int i = 0; i < mUuids128.length; i += 2) {
+            if (advertisement.hasServiceUuid128(mUuids128[i], mUuids128[i + 1])
+                    || advertisement.indexOfServiceData128(mUuids128[i], mUuids128[i + 1]) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -5,16 +5,13 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.ParcelUuid;
-import android.util.Log;
+import android.os.IBinder;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -25,63 +22,57 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
 public class MainActivity extends ListActivity {
 
     private final static String TAG = MainActivity.class.getSimpleName();
     private static final int REQUEST_ENABLE_BT = 1;
 
-    private BluetoothLeScanner mBluetoothLeScanner=null;
     private BluetoothAdapter mBluetoothAdapter=null;
     private boolean mScanning=false;
-    private Handler mHandler=null;
-
-    private static final long SCAN_PERIOD = 10000;
+    private boolean mResumed=false;
+    private BleMonitorService mService=null;
+    private boolean mServiceBound=false;
     private LeDeviceListAdapter mLeDeviceListAdapter;
-
-    private ScanCallback mScanCallback=new ScanCallback(){
-
+    private CoalescingUiDispatcher mUiDispatcher=null;
+    private final CoalescingUiDispatcher.Callback mUiCallback = new CoalescingUiDispatcher.Callback() {
         @Override
-        public void onScanResult(int callbackType,final ScanResult result) {
-            Log.d(TAG, "onScanResult: result=" + result.toString() + ", callbackType=" + callbackType);
-
-/*            if (result.getDevice().getName().equals("Keyfobdemo") ||
-                    result.getDevice().getName().equals("Heart Rate Sensor")
-                    || result.getDevice().getName().equals("HID Keyboard")) {
-                Log.d(TAG, "onScanResult: onScanResult found, stop scan now");
-                mBluetoothLeScanner.stopScan(this);
-            }*/
-
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(result.getDevice());
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                    {
-                        ParcelUuid[] uuids = result.getDevice().getUuids();
-                        if (uuids != null) {
-                            for (ParcelUuid uuid: uuids) {
-                                Log.d(TAG, "UUID = " + uuid.toString());
-                            }
-                        } else {
-                            Log.d(TAG, "uuids is null.");
-                        }
-                    }
-                }
-            });
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            String address = BleConnectionManager.getInstance(MainActivity.this)
+                    .getAddress(addressIndex);
+            if (null != mLeDeviceListAdapter &&
+                    mLeDeviceListAdapter.setBatteryLevel(LeDeviceRegistry.packAddress(address), level)) {
+                mLeDeviceListAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+    private final BleMonitorService.Listener mServiceListener = new BleMonitorService.Listener() {
+        @Override
+        public void onScanResults(BluetoothDevice[] devices, long[] addresses, int[] rssi,
+                                  long[] timestamps, int count) {
+            addDevices(devices, addresses, rssi, timestamps, count);
         }
 
         @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            Log.d(TAG, "onBatchScanResults");
+        public void onBatteryLevel(int addressIndex, int level, int namespace, int description) {
+            mUiDispatcher.postBatteryLevel(addressIndex, level, namespace, description);
+        }
+    };
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((BleMonitorService.LocalBinder) binder).getService();
+            mService.addListener(mServiceListener);
+            if (mResumed) {
+                mService.setForeground(true);
+            }
+            mScanning = mService.isScanning();
+            invalidateOptionsMenu();
         }
 
         @Override
-        public void onScanFailed(int errorCode) {
-            Log.d(TAG, "onScanFailed");
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
         }
     };
 
@@ -90,8 +81,6 @@ public class MainActivity extends ListActivity {
         getActionBar().setTitle(R.string.title_devices);
         super.onCreate(savedInstanceState);
 
-        mHandler = new Handler();
-
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_SHORT).show();
             finish();
@@ -105,21 +94,50 @@ public class MainActivity extends ListActivity {
         if (mBluetoothAdapter == null) {
             Toast.makeText(this, R.string.error_bluetooth_not_supported, Toast.LENGTH_SHORT).show();
             finish();
+            return;
         }
 
-        mBluetoothLeScanner =mBluetoothAdapter.getBluetoothLeScanner();
+        mUiDispatcher = new CoalescingUiDispatcher(mUiCallback);
+
+        // Started as well as bound, so scanning and monitoring outlive this activity.
+        Intent service = new Intent(this, BleMonitorService.class);
+        startService(service);
+        mServiceBound = bindService(service, mServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mService != null) {
+            mService.removeListener(mServiceListener);
+            mService = null;
+        }
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+        }
+        if (mUiDispatcher != null) {
+            mUiDispatcher.cancel();
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        scanLeDevice(false);
+        // Keep scanning at low power for the monitored devices.
+        mResumed = false;
+        if (mService != null) {
+            mService.setForeground(false);
+        }
         mLeDeviceListAdapter.clear();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
+        if (mService != null) {
+            mService.setForeground(true);
+        }
 
         // Ensures Bluetooth is enabled on the device.  If Bluetooth is not currently enabled,
         // fire an intent to display a dialog asking the user to grant permission to enable it.
@@ -171,8 +189,6 @@ public class MainActivity extends ListActivity {
             if(resultCode == Activity.RESULT_CANCELED) {
                 finish();
                 return;
-            } else {
-                mBluetoothLeScanner =mBluetoothAdapter.getBluetoothLeScanner();
             }
         }
         super.onActivityResult(requestCode, resultCode, data);
@@ -185,57 +201,80 @@ public class MainActivity extends ListActivity {
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothLeScanner.stopScan(mScanCallback);
-            mScanning = false;
-        }
+        scanLeDevice(false);
         startActivity(intent);
         finish();
     }
 
     private void scanLeDevice(final boolean enable) {
 
-        if(null==mBluetoothLeScanner)
+        if(null==mService)
         {
             return;
         }
-        if (enable) {
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothLeScanner.stopScan(mScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothLeScanner.startScan(mScanCallback);
-        } else {
-            mScanning = false;
-            mBluetoothLeScanner.stopScan(mScanCallback);
-        }
+        mScanning = enable;
+        mService.setScanning(enable);
         invalidateOptionsMenu();
     }
 
+    /**
+     * Apply a batch of scan results with a single adapter update if it added any device.
+     */
+    private void addDevices(BluetoothDevice[] devices, long[] addresses, int[] rssi,
+                            long[] timestamps, int count) {
+        if (null == mLeDeviceListAdapter) {
+            return;
+        }
+        boolean changed = false;
+        for (int i = 0; i < count; i++) {
+            if (addresses[i] >= 0 && mLeDeviceListAdapter.addDevice(addresses[i],
+                    devices[i], rssi[i], timestamps[i])) {
+                // The level may have been reported before the device was listed.
+                int addressIndex = BleConnectionManager.getInstance(MainActivity.this)
+                        .getAddressIndex(devices[i].getAddress());
+                mLeDeviceListAdapter.setBatteryLevel(addresses[i],
+                        mService.getBatteryLevel(addressIndex));
+                changed = true;
+            }
+        }
+        if (changed) {
+            mLeDeviceListAdapter.notifyDataSetChanged();
+        }
+    }
+
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private LeDeviceRegistry mLeDevices;
         private LayoutInflater mInflater;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new LeDeviceRegistry();
             mInflater = MainActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        /**
+         * @return true if the device was not listed yet.
+         */
+        public boolean addDevice(long address, BluetoothDevice device, int rssi, long lastSeen) {
+            int count = mLeDevices.size();
+            mLeDevices.update(address, device, rssi, lastSeen);
+            return mLeDevices.size() != count;
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.getDevice(position);
+        }
+
+        /**
+         * @return true if the level of a listed device changed.
+         */
+        public boolean setBatteryLevel(long address, int level) {
+            int position = mLeDevices.indexOf(address);
+            if (position < 0 || mLeDevices.getBatteryLevel(position) == level) {
+                return false;
+            }
+            mLeDevices.setBatteryLevel(position, level);
+            return true;
         }
 
         public void clear() {
@@ -249,7 +288,7 @@ public class MainActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.getDevice(i);
         }
 
         @Override
@@ -266,18 +305,24 @@ public class MainActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceBattery = (TextView) view.findViewById(R.id.device_battery);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            BluetoothDevice device = mLeDevices.getDevice(i);
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            int batteryLevel = mLeDevices.getBatteryLevel(i);
+            if (batteryLevel >= 0)
+                viewHolder.deviceBattery.setText(getString(R.string.battery_level, batteryLevel));
+            else
+                viewHolder.deviceBattery.setText(null);
 
             return view;
         }
@@ -286,5 +331,6 @@ public class MainActivity extends ListActivity {
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceBattery;
     }
 }
@@ -0,0 +1,274 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Battery levels of scanned devices, read from advertisements where possible.
+ *
+ * <p>A device that puts its battery level in Battery Service service data is
+ * monitored from its advertisements alone, no connection is made. A device that
+ * offers the Battery Service without the service data is promoted to a GATT
+ * connection with battery notifications, and demoted again if it later
+ * advertises the level. Levels of both sources are reported through
+ * {@link DemoBatteryHelperUsageCallback#onBatteryLevel(int, int, int, int)}, with
+ * namespace and description 0 for advertised levels.
+ *
+ * <p>Promotion only takes links nobody else holds in the
+ * {@link BleConnectionManager} pool, and only a few of them, so monitored
+ * devices still find room. A promoted device that is neither connected nor
+ * seen by the scan for a while is released again.
+ */
+public class PassiveBatteryMonitor {
+
+    private static final String TAG = "PassiveBatteryMonitor";
+
+    private static final int BATTERY_SERVICE_UUID16 = 0x180F;
+    // Wait before trying again to promote a device the pool had no room for.
+    private static final long PROMOTION_RETRY_DELAY = 30000;
+    // Most of the pool is left to the devices monitored by BleMonitorService.
+    public static final int DEFAULT_MAX_PROMOTED = BleConnectionManager.DEFAULT_MAX_CONNECTIONS / 2;
+    // Release a promoted device neither connected nor advertising for this long.
+    private static final long SCAN_LOSS_TIMEOUT = 60000;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Context mContext;
+    private final BleConnectionManager mConnectionManager;
+    private final DemoBatteryHelperUsageCallback mCallback;
+    private final Handler mHandler;
+
+    // Per address index, written by the scan thread under the lock.
+    private int[] mLevels = new int[INITIAL_CAPACITY];
+    private boolean[] mPromoted = new boolean[INITIAL_CAPACITY];
+    private long[] mNextPromotion = new long[INITIAL_CAPACITY];
+    private long[] mLastSeen = new long[INITIAL_CAPACITY];
+
+    // Promoted devices, only touched on the main thread.
+    private final HashMap<String, DemoBatteryHelperUsage> mConnections =
+            new HashMap<String, DemoBatteryHelperUsage>();
+    private int mMaxPromoted = DEFAULT_MAX_PROMOTED;
+    private final Runnable mCheckScanLoss = new Runnable() {
+        @Override
+        public void run() {
+            releaseLost();
+            if (!mConnections.isEmpty()) {
+                mHandler.postDelayed(this, SCAN_LOSS_TIMEOUT / 2);
+            }
+        }
+    };
+
+    public PassiveBatteryMonitor(Context context, DemoBatteryHelperUsageCallback callback) {
+        mContext = context.getApplicationContext();
+        mConnectionManager = BleConnectionManager.getInstance(context);
+        mCallback = callback;
+        mHandler = new Handler(Looper.getMainLooper());
+        Arrays.fill(mLevels, LeAdvertisement.NO_BATTERY_LEVEL);
+    }
+
+    /**
+     * Feed an advertisement of a device, callable from the scan thread.
+     */
+    public void onAdvertisement(final BluetoothDevice device, LeAdvertisement advertisement) {
+        int addressIndex = mConnectionManager.getAddressIndex(device.getAddress());
+        int level = advertisement.getBatteryLevel();
+        long now = SystemClock.elapsedRealtime();
+        boolean changed = false;
+        boolean demote = false;
+        boolean promote = false;
+        synchronized (this) {
+            ensureCapacity(addressIndex);
+            mLastSeen[addressIndex] = now;
+            if (level != LeAdvertisement.NO_BATTERY_LEVEL) {
+                changed = mLevels[addressIndex] != level;
+                mLevels[addressIndex] = level;
+                demote = mPromoted[addressIndex];
+                mPromoted[addressIndex] = false;
+            } else if (!mPromoted[addressIndex]
+                    && advertisement.hasServiceUuid16(BATTERY_SERVICE_UUID16)
+                    && now >= mNextPromotion[addressIndex]) {
+                mPromoted[addressIndex] = true;
+                promote = true;
+            }
+        }
+
+        if (changed && null != mCallback) {
+            mCallback.onBatteryLevel(addressIndex, level, 0, 0);
+        }
+        if (demote) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    demote(device);
+                }
+            });
+        } else if (promote) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    promote(device);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return last level of a device, or {@link LeAdvertisement#NO_BATTERY_LEVEL}.
+     */
+    public synchronized int getBatteryLevel(int addressIndex) {
+        if (addressIndex < 0 || addressIndex >= mLevels.length) {
+            return LeAdvertisement.NO_BATTERY_LEVEL;
+        }
+        return mLevels[addressIndex];
+    }
+
+    /**
+     * @return number of devices currently monitored over a connection.
+     */
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Limit the number of promoted devices, must be called on the main thread.
+     * Devices already promoted are kept.
+     */
+    public void setMaxPromoted(int maxPromoted) {
+        mMaxPromoted = maxPromoted;
+    }
+
+    /**
+     * Give up the connection of a device taken over by another role, e.g. one
+     * monitored by {@link BleMonitorService}. Must be called on the main thread.
+     * The device is not promoted again while another role holds its link.
+     */
+    public void release(BluetoothDevice device) {
+        int addressIndex = mConnectionManager.getAddressIndex(device.getAddress());
+        synchronized (this) {
+            ensureCapacity(addressIndex);
+            mPromoted[addressIndex] = false;
+        }
+        leave(device);
+    }
+
+    /**
+     * Close every promoted connection, must be called on the main thread.
+     */
+    public void stop() {
+        mHandler.removeCallbacksAndMessages(null);
+        for (DemoBatteryHelperUsage usage : mConnections.values()) {
+            BluetoothDevice device = usage.getDevice();
+            usage.close();
+            mConnectionManager.release(device);
+        }
+        mConnections.clear();
+        synchronized (this) {
+            Arrays.fill(mPromoted, false);
+        }
+    }
+
+    private void promote(BluetoothDevice device) {
+        String address = device.getAddress();
+        if (mConnections.containsKey(address)) {
+            return;
+        }
+
+        // Another role monitors the device already, its notifications reach the service.
+        BleGattConnection connection = null;
+        if (mConnections.size() < mMaxPromoted && mConnectionManager.getRefCount(address) == 0) {
+            connection = mConnectionManager.acquire(device);
+        }
+        if (null == connection) {
+            int addressIndex = mConnectionManager.getAddressIndex(address);
+            synchronized (this) {
+                mPromoted[addressIndex] = false;
+                mNextPromotion[addressIndex] = SystemClock.elapsedRealtime() + PROMOTION_RETRY_DELAY;
+            }
+            return;
+        }
+
+        Log.d(TAG, "no battery level advertised, connecting " + address);
+        DemoBatteryHelperUsage usage = new DemoBatteryHelperUsage(mContext, connection, mCallback);
+        mConnections.put(address, usage);
+        usage.connect(device, true);
+        usage.setBattNotification(true);
+        if (mConnections.size() == 1) {
+            mHandler.postDelayed(mCheckScanLoss, SCAN_LOSS_TIMEOUT / 2);
+        }
+    }
+
+    private void demote(BluetoothDevice device) {
+        if (mConnections.containsKey(device.getAddress())) {
+            Log.d(TAG, "battery level advertised, leaving " + device.getAddress());
+        }
+        leave(device);
+    }
+
+    private void leave(BluetoothDevice device) {
+        DemoBatteryHelperUsage usage = mConnections.remove(device.getAddress());
+        if (null == usage) {
+            return;
+        }
+
+        // The CCCD is shared by all roles of the link, leave it on while another one holds it.
+        if (mConnectionManager.getRefCount(device.getAddress()) <= 1) {
+            usage.setBattNotification(false);
+        }
+        usage.close();
+        mConnectionManager.release(device);
+        if (mConnections.isEmpty()) {
+            mHandler.removeCallbacks(mCheckScanLoss);
+        }
+    }
+
+    /**
+     * Release promoted devices neither connected nor advertising for
+     * {@link #SCAN_LOSS_TIMEOUT}. A connected device counts as seen, many stop
+     * advertising while connected.
+     */
+    private void releaseLost() {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<BluetoothDevice> lost = new ArrayList<BluetoothDevice>();
+        synchronized (this) {
+            for (Map.Entry<String, DemoBatteryHelperUsage> entry : mConnections.entrySet()) {
+                int addressIndex = mConnectionManager.getAddressIndex(entry.getKey());
+                ensureCapacity(addressIndex);
+                BleGattConnection connection = entry.getValue().getConnection();
+                if (null != connection
+                        && connection.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+                    mLastSeen[addressIndex] = now;
+                } else if (now - mLastSeen[addressIndex] >= SCAN_LOSS_TIMEOUT) {
+                    mPromoted[addressIndex] = false;
+                    lost.add(entry.getValue().getDevice());
+                }
+            }
+        }
+        for (BluetoothDevice device : lost) {
+            Log.d(TAG, "out of range, leaving " + device.getAddress());
+            leave(device);
+        }
+    }
+
+    private void ensureCapacity(int addressIndex) {
+        if (addressIndex < mLevels.length) {
+            return;
+        }
+        int capacity = Math.max(addressIndex + 1, mLevels.length * 2);
+        int oldCapacity = mLevels.length;
+        mLevels = Arrays.copyOf(mLevels, capacity);
+        Arrays.fill(mLevels, oldCapacity, capacity, LeAdvertisement.NO_BATTERY_LEVEL);
+        mPromoted = Arrays.copyOf(mPromoted, capacity);
+        mNextPromotion = Arrays.copyOf(mNextPromotion, capacity);
+        mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+    }
+}
@@ -0,0 +1,157 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import java.util.Arrays;
+
+/**
+ * Streaming RSSI filters and distance estimate for many devices.
+ *
+ * <p>For each device the last {@link #WINDOW} raw samples are kept in a ring
+ * buffer. Every sample updates an exponential moving average and a scalar
+ * Kalman filter. The Kalman measurement noise is the sample variance over the
+ * ring, so a device whose signal fluctuates is trusted less. Distance comes
+ * from the log-distance path loss model applied to the Kalman estimate.
+ *
+ * <p>State lives in primitive arrays indexed by
+ * {@link BleConnectionManager#getAddressIndex(String)}. Adding a sample does
+ * not allocate unless a new index grows the arrays. Methods are thread safe.
+ */
+public class RssiEstimator {
+
+    public static final int WINDOW = 16;
+    // Received power at 1 m when the device does not advertise its TX power.
+    public static final int DEFAULT_MEASURED_POWER = -59;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float EMA_ALPHA = 0.2f;
+    // Process noise, how much the true RSSI is expected to drift between samples.
+    private static final float KALMAN_Q = 0.05f;
+    private static final float MIN_MEASUREMENT_NOISE = 1f;
+    // Free space is 2, indoor spaces are between 2 and 4.
+    private static final float DEFAULT_PATH_LOSS_EXPONENT = 2.5f;
+
+    private int[] mSamples = new int[INITIAL_CAPACITY * WINDOW];
+    private int[] mSampleCount = new int[INITIAL_CAPACITY];
+    private int[] mLatest = new int[INITIAL_CAPACITY];
+    private float[] mEma = new float[INITIAL_CAPACITY];
+    private float[] mEstimate = new float[INITIAL_CAPACITY];
+    private float[] mCovariance = new float[INITIAL_CAPACITY];
+    private int[] mMeasuredPower = new int[INITIAL_CAPACITY];
+    private float mPathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+
+    public RssiEstimator() {
+        Arrays.fill(mMeasuredPower, DEFAULT_MEASURED_POWER);
+    }
+
+    public synchronized void setPathLossExponent(float exponent) {
+        mPathLossExponent = exponent;
+    }
+
+    /**
+     * Calibrate a device, e.g. from the TX power level it advertises.
+     *
+     * @param measuredPower expected RSSI at 1 m, in dBm.
+     */
+    public synchronized void setMeasuredPower(int addressIndex, int measuredPower) {
+        ensureCapacity(addressIndex);
+        mMeasuredPower[addressIndex] = measuredPower;
+    }
+
+    public synchronized void addSample(int addressIndex, int rssi) {
+        ensureCapacity(addressIndex);
+        int count = mSampleCount[addressIndex];
+        mSamples[addressIndex * WINDOW + (count % WINDOW)] = rssi;
+        // Wraps after 2^31 samples, only its modulo and the first few values matter.
+        mSampleCount[addressIndex] = (count == Integer.MAX_VALUE) ? WINDOW : count + 1;
+        mLatest[addressIndex] = rssi;
+
+        if (count == 0) {
+            mEma[addressIndex] = rssi;
+            mEstimate[addressIndex] = rssi;
+            mCovariance[addressIndex] = variance(addressIndex, 1) + MIN_MEASUREMENT_NOISE;
+            return;
+        }
+
+        mEma[addressIndex] += EMA_ALPHA * (rssi - mEma[addressIndex]);
+
+        float covariance = mCovariance[addressIndex] + KALMAN_Q;
+        float noise = Math.max(variance(addressIndex, Math.min(count + 1, WINDOW)),
+                MIN_MEASUREMENT_NOISE);
+        float gain = covariance / (covariance + noise);
+        mEstimate[addressIndex] += gain * (rssi - mEstimate[addressIndex]);
+        mCovariance[addressIndex] = (1 - gain) * covariance;
+    }
+
+    /**
+     * Forget the samples of a device, e.g. when its link is lost.
+     */
+    public synchronized void reset(int addressIndex) {
+        if (addressIndex >= 0 && addressIndex < mSampleCount.length) {
+            mSampleCount[addressIndex] = 0;
+        }
+    }
+
+    public synchronized boolean hasSamples(int addressIndex) {
+        return addressIndex >= 0 && addressIndex < mSampleCount.length
+                && mSampleCount[addressIndex] > 0;
+    }
+
+    /**
+     * Values below are 0 until the device has a sample, see {@link #hasSamples(int)}.
+     */
+    public synchronized int getLatestRssi(int addressIndex) {
+        ensureCapacity(addressIndex);
+        return mLatest[addressIndex];
+    }
+
+    public synchronized float getEmaRssi(int addressIndex) {
+        ensureCapacity(addressIndex);
+        return mEma[addressIndex];
+    }
+
+    public synchronized float getFilteredRssi(int addressIndex) {
+        ensureCapacity(addressIndex);
+        return mEstimate[addressIndex];
+    }
+
+    /**
+     * @return estimated distance in meters, or a negative value without samples.
+     */
+    public synchronized float getDistance(int addressIndex) {
+        if (!hasSamples(addressIndex)) {
+            return -1;
+        }
+        return (float) Math.pow(10,
+                (mMeasuredPower[addressIndex] - mEstimate[addressIndex]) / (10 * mPathLossExponent));
+    }
+
+    private float variance(int addressIndex, int count) {
+        int base = addressIndex * WINDOW;
+        float sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += mSamples[base + i];
+        }
+        float mean = sum / count;
+        float squares = 0;
+        for (int i = 0; i < count; i++) {
+            float delta = mSamples[base + i] - mean;
+            squares += delta * delta;
+        }
+        return squares / count;
+    }
+
+    private void ensureCapacity(int addressIndex) {
+        if (addressIndex < mSampleCount.length) {
+            return;
+        }
+        int oldCapacity = mSampleCount.length;
+        int capacity = Math.max(addressIndex + 1, oldCapacity * 2);
+        mSamples = Arrays.copyOf(mSamples, capacity * WINDOW);
+        mSampleCount = Arrays.copyOf(mSampleCount, capacity);
+        mLatest = Arrays.copyOf(mLatest, capacity);
+        mEma = Arrays.copyOf(mEma, capacity);
+        mEstimate = Arrays.copyOf(mEstimate, capacity);
+        mCovariance = Arrays.copyOf(mCovariance, capacity);
+        mMeasuredPower = Arrays.copyOf(mMeasuredPower, capacity);
+        Arrays.fill(mMeasuredPower, oldCapacity, capacity, DEFAULT_MEASURED_POWER);
+    }
+}
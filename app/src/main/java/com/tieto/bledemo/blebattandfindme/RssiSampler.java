@@ -0,0 +1,191 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleGattConnection;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Samples the RSSI of connected devices at a fixed rate.
+ *
+ * <p>On every tick one {@link BluetoothGatt#readRemoteRssi()} is issued per
+ * connected device that has no read outstanding, so a slow link skips ticks
+ * instead of piling up requests. Results feed an {@link RssiEstimator}.
+ * Ticks run on a private thread and walk a plain array of connections, so
+ * sampling does not allocate.
+ */
+public class RssiSampler {
+
+    private static final String TAG = "RssiSampler";
+
+    public static final long DEFAULT_PERIOD = 100;
+
+    /**
+     * Receives every RSSI sample, on the Bluetooth binder thread.
+     */
+    public static abstract class Callback {
+
+        public void onRssiSample(int addressIndex, int rssi, RssiEstimator estimator) {
+
+        }
+    }
+
+    private class Device extends BluetoothGattCallback {
+        final BleGattConnection mConnection;
+        final int mAddressIndex;
+        volatile boolean mPending=false;
+        volatile long mRequestTime=0;
+
+        Device(BleGattConnection connection, int addressIndex) {
+            mConnection = connection;
+            mAddressIndex = addressIndex;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mPending = false;
+                mEstimator.reset(mAddressIndex);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mPending = false;
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                return;
+            }
+            mEstimator.addSample(mAddressIndex, rssi);
+            Callback callback = mCallback;
+            if (null != callback) {
+                callback.onRssiSample(mAddressIndex, rssi, mEstimator);
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final RssiEstimator mEstimator;
+    private volatile Callback mCallback=null;
+    private HandlerThread mThread=null;
+    private volatile Handler mHandler=null;
+    private volatile long mPeriod = DEFAULT_PERIOD;
+    // Copy on write, the tick reads the array without locking.
+    private volatile Device[] mDevices = new Device[0];
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            Handler handler = mHandler;
+            if (null != handler) {
+                handler.postDelayed(this, mPeriod);
+            }
+        }
+    };
+
+    public RssiSampler(Context context, RssiEstimator estimator) {
+        mContext = context.getApplicationContext();
+        mEstimator = estimator;
+    }
+
+    public RssiEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param periodMillis time between two reads of each device, 100 for 10 Hz.
+     */
+    public synchronized void setPeriod(long periodMillis) {
+        mPeriod = periodMillis;
+    }
+
+    /**
+     * Sample a connection while it is connected.
+     */
+    public synchronized void addConnection(BleGattConnection connection) {
+        for (Device device : mDevices) {
+            if (device.mConnection == connection) {
+                return;
+            }
+        }
+        int addressIndex = BleConnectionManager.getInstance(mContext)
+                .getAddressIndex(connection.getDevice().getAddress());
+        Device device = new Device(connection, addressIndex);
+        connection.addCallback(device);
+        Device[] devices = Arrays.copyOf(mDevices, mDevices.length + 1);
+        devices[devices.length - 1] = device;
+        mDevices = devices;
+    }
+
+    public synchronized void removeConnection(BleGattConnection connection) {
+        Device[] devices = mDevices;
+        for (int i = 0; i < devices.length; i++) {
+            if (devices[i].mConnection == connection) {
+                connection.removeCallback(devices[i]);
+                Device[] remaining = new Device[devices.length - 1];
+                System.arraycopy(devices, 0, remaining, 0, i);
+                System.arraycopy(devices, i + 1, remaining, i, devices.length - i - 1);
+                mDevices = remaining;
+                return;
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (null != mThread) {
+            return;
+        }
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mTick);
+    }
+
+    public synchronized void stop() {
+        if (null == mThread) {
+            return;
+        }
+        mHandler.removeCallbacks(mTick);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Remove every connection and stop sampling.
+     */
+    public synchronized void close() {
+        stop();
+        for (Device device : mDevices) {
+            device.mConnection.removeCallback(device);
+        }
+        mDevices = new Device[0];
+    }
+
+    private void sample() {
+        long now = SystemClock.elapsedRealtime();
+        for (Device device : mDevices) {
+            if (device.mConnection.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+                continue;
+            }
+            // A read the stack never answered is given up after a few periods.
+            if (device.mPending && now - device.mRequestTime < 4 * mPeriod) {
+                continue;
+            }
+            BluetoothGatt gatt = device.mConnection.getGatt();
+            if (null != gatt && gatt.readRemoteRssi()) {
+                device.mPending = true;
+                device.mRequestTime = now;
+            }
+        }
+    }
+}
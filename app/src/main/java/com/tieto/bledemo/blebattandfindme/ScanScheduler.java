@@ -0,0 +1,308 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Duty cycles LE scanning instead of scanning once for a fixed period.
+ *
+ * <p>The scan runs for a window out of every interval. Window, interval and
+ * scan mode are picked at the start of each cycle:
+ * <ul>
+ * <li>foreground, still discovering devices: low latency, scanning continuously;</li>
+ * <li>foreground, nothing new for a while: balanced, half of the time;</li>
+ * <li>background with tracked devices: low power, a short window every minute;</li>
+ * <li>background with nothing to track: low power, a short window every five minutes.</li>
+ * </ul>
+ *
+ * <p>Android blocks an app that starts scanning more than 5 times in 30
+ * seconds, so starts are delayed to stay under that limit.
+ *
+ * <p>Must be used from the main thread.
+ */
+public class ScanScheduler {
+
+    private static final String TAG = "ScanScheduler";
+
+    // Platform limit on scan starts, see BluetoothLeScanner throttling.
+    private static final int MAX_STARTS = 5;
+    private static final long MAX_STARTS_PERIOD = 30000;
+
+    // A device found within this time of the last cycle keeps the scan in discovery mode.
+    private static final long DISCOVERY_QUIET_TIME = 30000;
+    private static final long FOREGROUND_WINDOW = 10000;
+    private static final long FOREGROUND_INTERVAL = 20000;
+    private static final long BACKGROUND_WINDOW = 5000;
+    private static final long BACKGROUND_INTERVAL = 60000;
+    private static final long IDLE_INTERVAL = 300000;
+
+    // Fraction of the scan time the radio listens in each mode, in per mille.
+    private static final int DUTY_LOW_POWER = 100;
+    private static final int DUTY_BALANCED = 250;
+    private static final int DUTY_LOW_LATENCY = 1000;
+
+    /**
+     * Starts and stops the actual scan.
+     */
+    public static abstract class Callback {
+
+        public void onStartScan(int scanMode) {
+
+        }
+
+        public void onStopScan() {
+
+        }
+    }
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+    private final Runnable mStartCycle = new Runnable() {
+        @Override
+        public void run() {
+            startCycle();
+        }
+    };
+    private final Runnable mStopCycle = new Runnable() {
+        @Override
+        public void run() {
+            stopCycle();
+        }
+    };
+
+    private boolean mRunning=false;
+    private boolean mScanning=false;
+    private boolean mForeground=true;
+    private int mTrackedDevices=0;
+    private int mScanMode=ScanSettings.SCAN_MODE_LOW_POWER;
+    private long mLastDiscoveryTime=0;
+    private long mScanStartTime=0;
+    private boolean mDiscoveredInCycle=false;
+
+    // Ring of the last MAX_STARTS start times.
+    private final long[] mStartTimes = new long[MAX_STARTS];
+    private int mStartIndex=0;
+
+    // Metrics.
+    private int mStartCount=0;
+    private int mThrottledCount=0;
+    private int mDiscoveryCount=0;
+    private long mScanMillis=0;
+    private long mRadioOnMillis=0;
+    private long mDiscoveryLatencyMillis=0;
+    private int mDiscoveryLatencyCount=0;
+
+    public ScanScheduler(Callback callback) {
+        mCallback = callback;
+        mHandler = new Handler(Looper.getMainLooper());
+        for (int i = 0; i < MAX_STARTS; i++) {
+            mStartTimes[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        // A fresh start is a request to find devices now.
+        mLastDiscoveryTime = SystemClock.elapsedRealtime();
+        startCycle();
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mHandler.removeCallbacks(mStartCycle);
+        mHandler.removeCallbacks(mStopCycle);
+        if (mScanning) {
+            stopCycle();
+        }
+    }
+
+    /**
+     * Start the scan again now, e.g. after it failed and its settings changed.
+     * The start counts against the platform limit like any other and is
+     * delayed if the limit is reached.
+     */
+    public void restart() {
+        if (!mRunning) {
+            return;
+        }
+        mHandler.removeCallbacks(mStartCycle);
+        mHandler.removeCallbacks(mStopCycle);
+        if (mScanning) {
+            stopCycle();
+        }
+        startCycle();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * The UI is visible, a user is waiting for devices to show up.
+     */
+    public void setForeground(boolean foreground) {
+        if (mForeground == foreground) {
+            return;
+        }
+        mForeground = foreground;
+        reschedule();
+    }
+
+    /**
+     * Number of devices being monitored, they need regular advertisements.
+     */
+    public void setTrackedDeviceCount(int count) {
+        mTrackedDevices = count;
+    }
+
+    /**
+     * A device not seen before was found.
+     */
+    public void onDeviceDiscovered() {
+        long now = SystemClock.elapsedRealtime();
+        mDiscoveryCount++;
+        mLastDiscoveryTime = now;
+        if (mScanning && !mDiscoveredInCycle) {
+            mDiscoveredInCycle = true;
+            mDiscoveryLatencyMillis += now - mScanStartTime;
+            mDiscoveryLatencyCount++;
+        }
+        if (mScanning && mScanMode != ScanSettings.SCAN_MODE_LOW_LATENCY && mForeground) {
+            // Still discovering, switch to the fast mode right away.
+            reschedule();
+        }
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public int getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * @return number of starts delayed by the platform start limit.
+     */
+    public int getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    public int getDiscoveryCount() {
+        return mDiscoveryCount;
+    }
+
+    /**
+     * @return time spent scanning, whatever the mode.
+     */
+    public long getScanMillis() {
+        return mScanMillis + (mScanning ? SystemClock.elapsedRealtime() - mScanStartTime : 0);
+    }
+
+    /**
+     * @return estimated time the radio listened, scan time weighted by the mode duty cycle.
+     */
+    public long getRadioOnMillis() {
+        return mRadioOnMillis + (mScanning ?
+                (SystemClock.elapsedRealtime() - mScanStartTime) * getDuty(mScanMode) / 1000 : 0);
+    }
+
+    /**
+     * @return mean time from the start of a cycle to its first new device, or -1.
+     */
+    public long getMeanDiscoveryLatencyMillis() {
+        return (mDiscoveryLatencyCount == 0) ? -1 : mDiscoveryLatencyMillis / mDiscoveryLatencyCount;
+    }
+
+    private void reschedule() {
+        if (!mRunning) {
+            return;
+        }
+        mHandler.removeCallbacks(mStartCycle);
+        mHandler.removeCallbacks(mStopCycle);
+        startCycle();
+    }
+
+    private void startCycle() {
+        if (!mRunning) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        int scanMode;
+        long window;
+        long interval;
+        if (mForeground && now - mLastDiscoveryTime < DISCOVERY_QUIET_TIME) {
+            scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+            window = DISCOVERY_QUIET_TIME;
+            interval = window;
+        } else if (mForeground) {
+            scanMode = ScanSettings.SCAN_MODE_BALANCED;
+            window = FOREGROUND_WINDOW;
+            interval = FOREGROUND_INTERVAL;
+        } else {
+            scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+            window = BACKGROUND_WINDOW;
+            interval = (mTrackedDevices > 0) ? BACKGROUND_INTERVAL : IDLE_INTERVAL;
+        }
+
+        if (mScanning) {
+            if (scanMode == mScanMode && window == interval) {
+                // Continuous scan in the same mode, keep it without spending a start.
+                mHandler.postDelayed(mStartCycle, interval);
+                return;
+            }
+            stopCycle();
+        }
+
+        long oldestStart = mStartTimes[mStartIndex];
+        if (now - oldestStart < MAX_STARTS_PERIOD) {
+            mThrottledCount++;
+            mHandler.postDelayed(mStartCycle, oldestStart + MAX_STARTS_PERIOD - now);
+            return;
+        }
+
+        mStartTimes[mStartIndex] = now;
+        mStartIndex = (mStartIndex + 1) % MAX_STARTS;
+        mStartCount++;
+        mScanMode = scanMode;
+        mScanning = true;
+        mScanStartTime = now;
+        mDiscoveredInCycle = false;
+        Log.d(TAG, "scan mode " + scanMode + " for " + window + "ms every " + interval + "ms");
+        mCallback.onStartScan(scanMode);
+
+        if (window < interval) {
+            mHandler.postDelayed(mStopCycle, window);
+        }
+        mHandler.postDelayed(mStartCycle, interval);
+    }
+
+    private void stopCycle() {
+        long elapsed = SystemClock.elapsedRealtime() - mScanStartTime;
+        mScanMillis += elapsed;
+        mRadioOnMillis += elapsed * getDuty(mScanMode) / 1000;
+        mScanning = false;
+        mCallback.onStopScan();
+    }
+
+    private static int getDuty(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return DUTY_LOW_LATENCY;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return DUTY_BALANCED;
+            default:
+                return DUTY_LOW_POWER;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.tieto.bledemo.blebattandfindme;
+
+import android.bluetooth.BleBatteryLevelHelper;
+import android.bluetooth.BleFindMeProfile;
+import android.bluetooth.BleGattTransport;
+import android.bluetooth.BleSimulatedPeripheral;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many simulated tags through the battery and alert sequence of
+ * {@link BleBatteryLevelHelper} and {@link BleFindMeProfile} on the JVM.
+ *
+ * <p>The transport paths of the profiles use only compile time constants of
+ * the Android classes, so the test needs no device.
+ */
+public class SimulatedPeripheralLoadTest {
+
+    private static final int TAGS = 1000;
+    private static final int READS = 20;
+
+    /**
+     * Connects, enables battery notification, raises the alert and reads the
+     * battery level once, in that order.
+     */
+    private static class TagSession extends BleGattTransport.Callback {
+        final BleBatteryLevelHelper mBatteryLevelHelper = new BleBatteryLevelHelper();
+        final CountDownLatch mDone;
+        final AtomicInteger mFailures;
+        final AtomicInteger mNotifications;
+        volatile int mLevel=-1;
+
+        TagSession(CountDownLatch done, AtomicInteger failures, AtomicInteger notifications) {
+            mDone = done;
+            mFailures = failures;
+            mNotifications = notifications;
+        }
+
+        @Override
+        public void onConnectionStateChange(BleGattTransport transport, int status, int newState) {
+            if (newState != BluetoothProfile.STATE_CONNECTED) {
+                return;
+            }
+            if (mBatteryLevelHelper.getUpdateMode(transport)
+                    != BleBatteryLevelHelper.UPDATE_MODE_NOTIFY
+                    || !mBatteryLevelHelper.setNotification(transport, true)) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onNotificationStateChanged(BleGattTransport transport, UUID service,
+                                               UUID characteristic, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS
+                    || !BleFindMeProfile.findMe(transport, BleFindMeProfile.ALERT_LEVEL_HIGH)) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BleGattTransport transport, UUID service,
+                                          UUID characteristic, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS
+                    || !mBatteryLevelHelper.readBatteryLevel(transport)) {
+                fail();
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BleGattTransport transport, UUID service,
+                                         UUID characteristic, byte[] value, int status) {
+            long packed = BleBatteryLevelHelper.packBatteryLevel(value, null);
+            if (status != BluetoothGatt.GATT_SUCCESS || packed < 0) {
+                fail();
+                return;
+            }
+            mLevel = BleBatteryLevelHelper.unpackBatteryLevel(packed);
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCharacteristicChanged(BleGattTransport transport, UUID service,
+                                            UUID characteristic, byte[] value) {
+            mNotifications.incrementAndGet();
+        }
+
+        private void fail() {
+            mFailures.incrementAndGet();
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Issues {@link #READS} battery reads back to back and counts how they end.
+     */
+    private static class ReadLoop extends BleGattTransport.Callback {
+        final BleBatteryLevelHelper mBatteryLevelHelper = new BleBatteryLevelHelper();
+        final CountDownLatch mDone;
+        final AtomicInteger mSucceeded;
+        final AtomicInteger mFailed;
+        int mRemaining = READS;
+
+        ReadLoop(CountDownLatch done, AtomicInteger succeeded, AtomicInteger failed) {
+            mDone = done;
+            mSucceeded = succeeded;
+            mFailed = failed;
+        }
+
+        @Override
+        public void onConnectionStateChange(BleGattTransport transport, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                next(transport);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BleGattTransport transport, UUID service,
+                                         UUID characteristic, byte[] value, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mSucceeded.incrementAndGet();
+            } else {
+                mFailed.incrementAndGet();
+            }
+            next(transport);
+        }
+
+        private void next(BleGattTransport transport) {
+            if (mRemaining-- > 0 && mBatteryLevelHelper.readBatteryLevel(transport)) {
+                return;
+            }
+            mDone.countDown();
+        }
+    }
+
+    @Test
+    public void testManyTags() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TAGS);
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger notifications = new AtomicInteger();
+        BleSimulatedPeripheral[] tags = new BleSimulatedPeripheral[TAGS];
+        TagSession[] sessions = new TagSession[TAGS];
+
+        for (int i = 0; i < TAGS; i++) {
+            tags[i] = new BleSimulatedPeripheral(getAddress(i), i);
+            tags[i].setLatency(7500, 5000);
+            tags[i].setNotifyInterval(100);
+            tags[i].setBattery(50 + i % 50, 0);
+            sessions[i] = new TagSession(done, failures, notifications);
+            tags[i].setCallback(sessions[i]);
+            assertTrue(tags[i].connect());
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        assertEquals(0, failures.get());
+        for (int i = 0; i < TAGS; i++) {
+            assertEquals(BleFindMeProfile.ALERT_LEVEL_HIGH, tags[i].getAlertLevel());
+            assertEquals(50 + i % 50, sessions[i].mLevel);
+        }
+
+        // Give every tag time for a few notifications.
+        Thread.sleep(500);
+        for (BleSimulatedPeripheral tag : tags) {
+            tag.close();
+        }
+        assertTrue(notifications.get() >= TAGS);
+    }
+
+    @Test
+    public void testReadOnlyTag() throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        BleBatteryLevelHelper helper = new BleBatteryLevelHelper();
+        BleSimulatedPeripheral tag = new BleSimulatedPeripheral(getAddress(0), 0);
+        tag.setNotifySupported(false);
+        tag.setCallback(new BleGattTransport.Callback() {
+            @Override
+            public void onConnectionStateChange(BleGattTransport transport, int status,
+                                                int newState) {
+                connected.countDown();
+            }
+        });
+        assertTrue(tag.connect());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        // The level has to be polled, notification cannot be enabled.
+        assertEquals(BleBatteryLevelHelper.UPDATE_MODE_READ, helper.getUpdateMode(tag));
+        assertFalse(helper.setNotification(tag, true));
+        assertTrue(helper.readBatteryLevel(tag));
+        tag.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAlertLevelOutOfRange() {
+        BleSimulatedPeripheral tag = new BleSimulatedPeripheral(getAddress(0), 0);
+        try {
+            BleFindMeProfile.findMe(tag, BleFindMeProfile.ALERT_LEVEL_HIGH + 1);
+        } finally {
+            tag.close();
+        }
+    }
+
+    @Test
+    public void testDroppedReadsFail() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TAGS);
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        BleSimulatedPeripheral[] tags = new BleSimulatedPeripheral[TAGS];
+
+        for (int i = 0; i < TAGS; i++) {
+            tags[i] = new BleSimulatedPeripheral(getAddress(i), i);
+            tags[i].setLatency(7500, 2500);
+            tags[i].setDropRate(0.05f);
+            tags[i].setOperationTimeout(100);
+            tags[i].setCallback(new ReadLoop(done, succeeded, failed));
+            assertTrue(tags[i].connect());
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        long dropped = 0;
+        for (BleSimulatedPeripheral tag : tags) {
+            dropped += tag.getDroppedCount();
+            tag.close();
+        }
+        // Every read completes, a dropped one through its timeout.
+        assertEquals(TAGS * READS, succeeded.get() + failed.get());
+        assertEquals(dropped, failed.get());
+        assertTrue(failed.get() > 0);
+    }
+
+    private static String getAddress(int i) {
+        return String.format("00:00:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+    }
+}
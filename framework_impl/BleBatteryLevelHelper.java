@@ -42,6 +42,58 @@ public class BleBatteryLevelHelper  {
     private static final UUID REPORT_REFERENCE_DESCRIPTOR_UUID =
             UUID.fromString("00002908-0000-1000-8000-00805f9b34fb");
 
+    /** No battery level characteristic, or its services are not discovered yet. */
+    public static final int UPDATE_MODE_NONE = 0;
+    /** The battery level is notified, see {@link #setNotification(BluetoothGatt, boolean)}. */
+    public static final int UPDATE_MODE_NOTIFY = 1;
+    /** The battery level can only be read, it has to be polled. */
+    public static final int UPDATE_MODE_READ = 2;
+
+    /**
+     * Battery service handles of one Bluetooth GATT, stable until the
+     * connection is lost or services are discovered again.
+     */
+    private static final class Handles {
+        final BluetoothGatt mGatt;
+        final BluetoothGattCharacteristic mBatteryLevelCharacter;
+        final BluetoothGattDescriptor mCccDescriptor;
+        final BluetoothGattDescriptor mCpfDescriptor;
+
+        Handles(BluetoothGatt gatt, BluetoothGattCharacteristic batteryLevelCharacter) {
+            mGatt = gatt;
+            mBatteryLevelCharacter = batteryLevelCharacter;
+            mCccDescriptor = batteryLevelCharacter.getDescriptor(
+                    CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR_UUID);
+            mCpfDescriptor = batteryLevelCharacter.getDescriptor(
+                    CHARACTERISTIC_PRESENTATION_FORMAT_DESCRIPTOR_UUID);
+        }
+    }
+
+    private volatile Handles mHandles=null;
+    private BlePresentationFormatCache mPresentationFormatCache=null;
+    private final BleGattOperationCallback mPresentationFormatReadCallback =
+            new BleGattOperationCallback() {
+        @Override
+        public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+            BlePresentationFormatCache cache = mPresentationFormatCache;
+            Handles handles = mHandles;
+            if (status == BluetoothGatt.GATT_SUCCESS && null != cache && null != handles &&
+                    null != handles.mGatt && handles.mCpfDescriptor == operation.getDescriptor()) {
+                cache.put(handles.mGatt.getDevice().getAddress(), operation.getDescriptor());
+            }
+        }
+    };
+
+    /**
+     * Keep presentation format descriptor values across connections, so the
+     * descriptor is read from a device only once.
+     *
+     * @param cache the persistent cache, or null to always read the descriptor.
+     */
+    public void setPresentationFormatCache(BlePresentationFormatCache cache) {
+        mPresentationFormatCache = cache;
+    }
+
     public class BatteryLevelData {
         private int mBatteryLevel;
 
@@ -88,108 +140,442 @@ public class BleBatteryLevelHelper  {
      * @return true, if the notification status was set successfully.
      */
     public boolean setNotification(BluetoothGatt gatt, boolean enable) {
-        if (null == gatt) {
+        Handles handles = getHandles(gatt);
+        if (null == handles) {
             return false;
         }
 
-        BluetoothGattService batteryService = gatt.getService(BATTERY_SERVICE_UUID);
-        if (null == batteryService) {
+        BluetoothGattCharacteristic batteryLevelCharacter = handles.mBatteryLevelCharacter;
+        if (!gatt.setCharacteristicNotification(batteryLevelCharacter, enable)) {
             return false;
         }
 
-        BluetoothGattCharacteristic batteryLevelCharacter =
-                batteryService.getCharacteristic(BATTERY_LEVEL_CHARACTER_UUID);
-        if (null == batteryLevelCharacter) {
+        BluetoothGattDescriptor cccDescriptor = handles.mCccDescriptor;
+        if (null == cccDescriptor)
+            return false;
+
+        if (enable) {
+            cccDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        } else {
+            cccDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+
+        return gatt.writeDescriptor(cccDescriptor);
+    }
+
+    /**
+     * Enable or disable notification for battery level measurement through an
+     * operation queue.
+     *
+     * <p>When enabling, the presentation format descriptor is read ahead of the
+     * CCCD write if it is not known yet, so notified values can be parsed by
+     * {@link BleBatteryLevelHelper#readBatteryLevel(BluetoothGatt,BluetoothGattCharacteristic)}
+     * without issuing any further GATT operation.
+     *
+     * @param queue operation queue of the Bluetooth GATT.
+     * @param enable Set to true to enable notification.
+     * @param callback receives the completion of the CCCD write, may be null.
+     * @return true, if the CCCD write was queued successfully.
+     */
+    public boolean setNotification(BleGattOperationQueue queue, boolean enable,
+                                   BleGattOperationCallback callback) {
+        if (null == queue) {
             return false;
         }
 
-        if (!gatt.setCharacteristicNotification(batteryLevelCharacter, enable)) {
+        Handles handles = getHandles(queue.getGatt());
+        if (null == handles) {
+            return false;
+        }
+
+        if (!queue.getGatt().setCharacteristicNotification(handles.mBatteryLevelCharacter, enable)) {
             return false;
         }
 
-        BluetoothGattDescriptor cccDescriptor =
-                batteryLevelCharacter.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR_UUID);
+        BluetoothGattDescriptor cccDescriptor = handles.mCccDescriptor;
         if (null == cccDescriptor)
             return false;
 
         if (enable) {
-            cccDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        } else {
-            cccDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            readPresentationFormat(queue, handles);
         }
 
-        return gatt.writeDescriptor(cccDescriptor);
+        return queue.writeDescriptor(cccDescriptor, enable ?
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
+                BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, callback);
     }
 
     /**
-     * Read battery data directly.
+     * Enable or disable notification for battery level measurement on a
+     * shared connection, which restores it after every reconnect.
+     *
+     * <p>Like {@link #setNotification(BleGattOperationQueue, boolean, BleGattOperationCallback)},
+     * but the CCCD write is skipped when the device already holds the value, see
+     * {@link BleGattConnection#setNotification(BluetoothGattCharacteristic, boolean,
+     * BleGattOperationCallback)}.
+     *
+     * @param connection connection to the remote device.
+     * @param enable Set to true to enable notification.
+     * @param callback receives the completion of the CCCD write if one is issued, may be null.
+     * @return true, if the CCCD holds the value or its write was queued.
+     */
+    public boolean setNotification(BleGattConnection connection, boolean enable,
+                                   BleGattOperationCallback callback) {
+        if (null == connection) {
+            return false;
+        }
+
+        BleGattOperationQueue queue = connection.getOperationQueue();
+        Handles handles = getHandles(connection.getGatt());
+        if (null == queue || null == handles) {
+            return false;
+        }
+
+        if (enable) {
+            readPresentationFormat(queue, handles);
+        }
+        return connection.setNotification(handles.mBatteryLevelCharacter, enable, callback);
+    }
+
+    /**
+     * Tell how battery level updates can be received from the remote device.
+     *
+     * <p>Notification needs both the notify property and a CCCD. The Battery
+     * Service makes notification optional, many devices only allow reads.
+     *
+     * @param gatt Bluetooth GATT.
+     * @return one of the UPDATE_MODE constants.
+     */
+    public int getUpdateMode(BluetoothGatt gatt) {
+        Handles handles = getHandles(gatt);
+        if (null == handles) {
+            return UPDATE_MODE_NONE;
+        }
+
+        int properties = handles.mBatteryLevelCharacter.getProperties();
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0
+                && null != handles.mCccDescriptor) {
+            return UPDATE_MODE_NOTIFY;
+        }
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+            return UPDATE_MODE_READ;
+        }
+        return UPDATE_MODE_NONE;
+    }
+
+    /**
+     * Tell how battery level updates can be received over a transport, see
+     * {@link #getUpdateMode(BluetoothGatt)}.
+     *
+     * @param transport GATT transport, connected.
+     * @return one of the UPDATE_MODE constants.
+     */
+    public int getUpdateMode(BleGattTransport transport) {
+        int properties = transport.getProperties(BATTERY_SERVICE_UUID,
+                BATTERY_LEVEL_CHARACTER_UUID);
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            return UPDATE_MODE_NOTIFY;
+        }
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+            return UPDATE_MODE_READ;
+        }
+        return UPDATE_MODE_NONE;
+    }
+
+    /**
+     * Read the battery level over a transport. The value arrives through
+     * {@link BleGattTransport.Callback#onCharacteristicRead}, use
+     * {@link #packBatteryLevel(byte[], byte[])} to parse it.
+     *
+     * @param transport GATT transport, connected.
+     * @return true, if the read was queued successfully.
+     */
+    public boolean readBatteryLevel(BleGattTransport transport) {
+        return transport.readCharacteristic(BATTERY_SERVICE_UUID, BATTERY_LEVEL_CHARACTER_UUID);
+    }
+
+    /**
+     * Enable or disable battery level notification over a transport. Values
+     * arrive through {@link BleGattTransport.Callback#onCharacteristicChanged}.
+     *
+     * @param transport GATT transport, connected.
+     * @param enable Set to true to enable notification.
+     * @return true, if the change was queued successfully.
+     */
+    public boolean setNotification(BleGattTransport transport, boolean enable) {
+        return transport.setNotification(BATTERY_SERVICE_UUID, BATTERY_LEVEL_CHARACTER_UUID,
+                enable);
+    }
+
+    /**
+     * Get the last battery data read or notified, no GATT operation is issued.
+     *
+     * <p>Use {@link BleBatteryLevelHelper#readBatteryLevel(BleGattOperationQueue,
+     * BleGattOperationCallback)} to refresh the value from the remote device.
      *
      * @param gatt Bluetooth GATT.
      * @return battery level data.
      */
     public BatteryLevelData readBatteryLevel(BluetoothGatt gatt) {
-
-        BluetoothGattService batteryService = gatt.getService(BATTERY_SERVICE_UUID);
-        if (null == batteryService) {
+        Handles handles = getHandles(gatt);
+        if (null == handles) {
             return null;
         }
+        return parseBatteryLevelData(handles.mBatteryLevelCharacter);
+    }
 
-        BluetoothGattCharacteristic battLevelCharacter =
-                batteryService.getCharacteristic(BATTERY_LEVEL_CHARACTER_UUID);
-        if (null == battLevelCharacter) {
-            return null;
+    /**
+     * Read battery data from the remote device through an operation queue.
+     *
+     * <p>The presentation format descriptor is read first if it is not known yet,
+     * then the battery level characteristic. Once the callback reports the
+     * characteristic read, use {@link BleBatteryLevelHelper#readBatteryLevel
+     * (BluetoothGatt,BluetoothGattCharacteristic)} to get the battery data.
+     *
+     * @param queue operation queue of the Bluetooth GATT.
+     * @param callback receives the completion of the characteristic read.
+     * @return true, if the read was queued successfully.
+     */
+    public boolean readBatteryLevel(BleGattOperationQueue queue, BleGattOperationCallback callback) {
+        if (null == queue) {
+            return false;
         }
 
-        return parseBatteryLevelData(gatt, battLevelCharacter);
+        Handles handles = getHandles(queue.getGatt());
+        if (null == handles) {
+            return false;
+        }
+
+        readPresentationFormat(queue, handles);
+        return queue.readCharacteristic(handles.mBatteryLevelCharacter, callback);
+    }
+
+    /**
+     * Read battery data from the remote device without blocking.
+     *
+     * <p>The returned future completes from
+     * {@link BluetoothGattCallback#onCharacteristicRead}, the caller either waits
+     * on it with a timeout or registers a listener through
+     * {@link BleGattFuture#addListener(Runnable)}. Cancelling the future withdraws
+     * the read if it is still queued, so reads to many devices can be issued
+     * concurrently and abandoned individually.
+     *
+     * @param queue operation queue of the Bluetooth GATT.
+     * @return future battery level data, failed right away if the read could not be queued.
+     */
+    public BleGattFuture<BatteryLevelData> readBatteryLevelAsync(BleGattOperationQueue queue) {
+        BleGattFuture<BatteryLevelData> future = new BleGattFuture<BatteryLevelData>() {
+            @Override
+            public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    set(parseBatteryLevelData(operation.getCharacteristic()));
+                } else {
+                    setFailure(status);
+                }
+            }
+        };
+        future.setQueue(queue);
+
+        if (!readBatteryLevel(queue, future)) {
+            future.setFailure(BluetoothGatt.GATT_FAILURE);
+        }
+        return future;
     }
 
     /**
      * Read battery data with in {@link BluetoothGattCallback#onCharacteristicChanged}
-     * callback
+     * or {@link BluetoothGattCallback#onCharacteristicRead} callback
      *
      * @param gatt Bluetooth GATT.
-     * @param characteristic Set to true to enable notification.
+     * @param characteristic the characteristic reported by the callback.
      * @return battery level data.
      */
     public BatteryLevelData readBatteryLevel(BluetoothGatt gatt,
                                         BluetoothGattCharacteristic characteristic) {
 
-        if(characteristic.getUuid().equals(BATTERY_LEVEL_CHARACTER_UUID)) {
-            return parseBatteryLevelData(gatt, characteristic);
+        if (null == gatt) {
+            return null;
+        }
+
+        Handles handles = mHandles;
+        if((null != handles && handles.mBatteryLevelCharacter == characteristic) ||
+                characteristic.getUuid().equals(BATTERY_LEVEL_CHARACTER_UUID)) {
+            return parseBatteryLevelData(characteristic);
         }
 
         return null;
     }
 
-    private BatteryLevelData parseBatteryLevelData(BluetoothGatt gatt,
-                                                   BluetoothGattCharacteristic battLevelCharacter) {
+    /**
+     * Read battery data within {@link BluetoothGattCallback#onCharacteristicChanged}
+     * without allocating, for high notification rates.
+     *
+     * <p>The level, namespace and description are packed into the low 32 bits
+     * of a long, use {@link #unpackBatteryLevel(long)}, {@link #unpackNamespace(long)}
+     * and {@link #unpackDescription(long)} to get them back. Valid data is never
+     * negative, whatever the description.
+     *
+     * @param characteristic the characteristic reported by the callback.
+     * @return packed battery level data, or -1 if the characteristic is not the
+     *         battery level or holds no value.
+     */
+    public long readBatteryLevelPacked(BluetoothGattCharacteristic characteristic) {
+        if (null == characteristic) {
+            return -1;
+        }
+
+        Handles handles = mHandles;
+        BluetoothGattDescriptor cpfDescriptor;
+        if (null != handles && handles.mBatteryLevelCharacter == characteristic) {
+            cpfDescriptor = handles.mCpfDescriptor;
+        } else if (characteristic.getUuid().equals(BATTERY_LEVEL_CHARACTER_UUID)) {
+            cpfDescriptor = characteristic.getDescriptor(
+                    CHARACTERISTIC_PRESENTATION_FORMAT_DESCRIPTOR_UUID);
+        } else {
+            return -1;
+        }
+
+        return packBatteryLevel(characteristic.getValue(),
+                (null == cpfDescriptor) ? null : cpfDescriptor.getValue());
+    }
+
+    /**
+     * Pack a battery level value as {@link #readBatteryLevelPacked} does, e.g.
+     * one reported by a {@link BleGattTransport}.
+     *
+     * @param value battery level characteristic value.
+     * @param cpfValue presentation format descriptor value, may be null.
+     * @return packed battery level data, or -1 if the value is empty.
+     */
+    public static long packBatteryLevel(byte[] value, byte[] cpfValue) {
+        if (null == value || value.length < 1) {
+            return -1;
+        }
+        long packed = value[0] & 0xFF;
+
+        if (null != cpfValue && cpfValue.length == 7) {
+            packed |= (cpfValue[4] & 0xFF) << 8;
+            packed |= (long) ((cpfValue[5] & 0xFF) | ((cpfValue[6] & 0xFF) << 8)) << 16;
+        }
+        return packed;
+    }
 
+    public static int unpackBatteryLevel(long packed) {
+        return (int) (packed & 0xFF);
+    }
+
+    public static int unpackNamespace(long packed) {
+        return (int) ((packed >>> 8) & 0xFF);
+    }
+
+    public static int unpackDescription(long packed) {
+        return (int) ((packed >>> 16) & 0xFFFF);
+    }
+
+    /**
+     * Resolve and cache the battery service handles, call it from
+     * {@link BluetoothGattCallback#onServicesDiscovered}.
+     *
+     * @param gatt Bluetooth GATT.
+     * @return true, if the remote device has a battery level characteristic.
+     */
+    public boolean onServicesDiscovered(BluetoothGatt gatt) {
+        mHandles = null;
+        return null != getHandles(gatt);
+    }
+
+    /**
+     * Drop the cached handles, call it once the connection is lost.
+     */
+    public void invalidateHandles() {
+        mHandles = null;
+    }
+
+    private Handles getHandles(BluetoothGatt gatt) {
         if (null == gatt) {
             return null;
         }
 
+        Handles handles = mHandles;
+        if (null != handles && handles.mGatt == gatt) {
+            return handles;
+        }
+
+        BluetoothGattService batteryService = gatt.getService(BATTERY_SERVICE_UUID);
+        if (null == batteryService) {
+            return null;
+        }
+
+        BluetoothGattCharacteristic battLevelCharacter =
+                batteryService.getCharacteristic(BATTERY_LEVEL_CHARACTER_UUID);
         if (null == battLevelCharacter) {
             return null;
         }
 
-        if (gatt.readCharacteristic(battLevelCharacter)) {
-            BatteryLevelData levelData = new BatteryLevelData();
+        return setHandles(gatt, battLevelCharacter);
+    }
 
-            levelData.setBatteryLevel(battLevelCharacter.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT8, 0));
+    /**
+     * Cache the handles of a battery level characteristic already resolved,
+     * as {@link #onServicesDiscovered(BluetoothGatt)} does once it found it.
+     *
+     * @param gatt Bluetooth GATT the characteristic belongs to, may be null
+     *             for a characteristic built locally.
+     * @param batteryLevelCharacteristic the battery level characteristic.
+     */
+    public void setBatteryLevelCharacteristic(BluetoothGatt gatt,
+                                              BluetoothGattCharacteristic batteryLevelCharacteristic) {
+        setHandles(gatt, batteryLevelCharacteristic);
+    }
 
-            BluetoothGattDescriptor cpfDescriptor =
-                    battLevelCharacter.getDescriptor(CHARACTERISTIC_PRESENTATION_FORMAT_DESCRIPTOR_UUID);
-            if (cpfDescriptor != null && gatt.readDescriptor(cpfDescriptor)) {
-                byte[] cpfVal = cpfDescriptor.getValue();
-                if (null != cpfVal && cpfVal.length == 7) {
-                    levelData.setNamespace(cpfVal[4] & 0xFF);
-                    levelData.setDescription(((cpfVal[5] & 0xFF) + (cpfVal[6] & 0xFF) << 8));
-                }
+    private Handles setHandles(BluetoothGatt gatt, BluetoothGattCharacteristic battLevelCharacter) {
+        Handles handles = new Handles(gatt, battLevelCharacter);
+        BlePresentationFormatCache cache = mPresentationFormatCache;
+        BluetoothGattDescriptor cpfDescriptor = handles.mCpfDescriptor;
+        if (null != cache && null != gatt && null != cpfDescriptor
+                && null == cpfDescriptor.getValue()) {
+            byte[] cpfVal = cache.get(gatt.getDevice().getAddress(), cpfDescriptor);
+            if (null != cpfVal) {
+                cpfDescriptor.setValue(cpfVal);
             }
-            return levelData;
-        } else {
+        }
+        mHandles = handles;
+        return handles;
+    }
+
+    private void readPresentationFormat(BleGattOperationQueue queue, Handles handles) {
+        BluetoothGattDescriptor cpfDescriptor = handles.mCpfDescriptor;
+        if (cpfDescriptor != null && null == cpfDescriptor.getValue()) {
+            queue.readDescriptor(cpfDescriptor, mPresentationFormatReadCallback);
+        }
+    }
+    private BatteryLevelData parseBatteryLevelData(BluetoothGattCharacteristic battLevelCharacter) {
+
+        if (null == battLevelCharacter) {
             return null;
         }
+
+        Integer batteryLevel = battLevelCharacter.getIntValue(
+                BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+        if (null == batteryLevel) {
+            return null;
+        }
+
+        BatteryLevelData levelData = new BatteryLevelData();
+        levelData.setBatteryLevel(batteryLevel);
+
+        Handles handles = mHandles;
+        BluetoothGattDescriptor cpfDescriptor =
+                (null != handles && handles.mBatteryLevelCharacter == battLevelCharacter) ?
+                        handles.mCpfDescriptor :
+                        battLevelCharacter.getDescriptor(CHARACTERISTIC_PRESENTATION_FORMAT_DESCRIPTOR_UUID);
+        if (cpfDescriptor != null) {
+            byte[] cpfVal = cpfDescriptor.getValue();
+            if (null != cpfVal && cpfVal.length == 7) {
+                levelData.setNamespace(cpfVal[4] & 0xFF);
+                levelData.setDescription((cpfVal[5] & 0xFF) | ((cpfVal[6] & 0xFF) << 8));
+            }
+        }
+        return levelData;
     }
 }
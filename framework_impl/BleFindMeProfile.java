@@ -24,6 +24,8 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BleFindMeProfileCallback;
+import android.bluetooth.BleGattOperationCallback;
+import android.bluetooth.BleGattOperationQueue;
 import android.content.Context;
 import android.util.Log;
 
@@ -40,7 +42,7 @@ public class BleFindMeProfile implements BluetoothProfile {
     private static final String TAG = "BleFindMeProfile";
     private static final String EX_MSG_ALERT_LEVEL_OUT_OF_RANGE="alert level out of range";
 
-    private static final UUID IMMEDIATE_ALERT_SERVICE_UUID=UUID.fromString("00001802-0000-1000-8000-00805f9b34fb");
+    public static final UUID IMMEDIATE_ALERT_SERVICE_UUID=UUID.fromString("00001802-0000-1000-8000-00805f9b34fb");
     private static final UUID ALERT_LEVEL_CHARACTER_UUID=UUID.fromString("00002a06-0000-1000-8000-00805f9b34fb");
 
     public static final int ALERT_LEVEL_NO_ALERT=0;
@@ -48,19 +50,19 @@ public class BleFindMeProfile implements BluetoothProfile {
     public static final int ALERT_LEVEL_HIGH=2;
 
     private Context mContext=null;
-    private BluetoothDevice mBluetoothDevice=null;
-    private BluetoothGatt mBluetoothGatt=null;
+    private BleGattConnection mConnection=null;
+    private boolean mOwnsConnection=false;
     private BleFindMeProfileCallback mBleFindMeProfileCallback=null;
+    private volatile BluetoothGattCharacteristic mAlertCharacter=null;
+    // Callback of the last alert write, until it completes.
+    private volatile BleGattOperationCallback mPendingAlertCallback=null;
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                if (mBluetoothGatt != null) {
-                    mBluetoothGatt.discoverServices();
-                }
-            } else if(newState==BleFindMeProfile.STATE_DISCONNECTED){
+            if(newState==BleFindMeProfile.STATE_DISCONNECTED){
                 mAlertLevel=ALERT_LEVEL_NO_ALERT;
+                mAlertCharacter=null;
             }
             if (mBleFindMeProfileCallback != null) {
                 mBleFindMeProfileCallback.onConnectionStateChanged(status, newState);
@@ -70,6 +72,10 @@ public class BleFindMeProfile implements BluetoothProfile {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             Log.d(TAG, "onServicesDiscovered");
+            mAlertCharacter=null;
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mAlertCharacter=findAlertCharacter(gatt);
+            }
         }
 
         @Override
@@ -139,6 +145,22 @@ public class BleFindMeProfile implements BluetoothProfile {
         mBleFindMeProfileCallback = callback;
     }
 
+    /**
+     * Create a FindMe client sharing a connection with other profiles.
+     *
+     * <p>The link is owned by whoever created the connection:
+     * {@link BleFindMeProfile#disconnect()} leaves it up and
+     * {@link BleFindMeProfile#close()} only detaches this client.
+     *
+     * @param connection the shared connection to the remote FindMe device.
+     * @param callback the handler that will receive asynchronous callbacks.
+     */
+    public BleFindMeProfile(BleGattConnection connection, BleFindMeProfileCallback callback) {
+        mConnection = connection;
+        mBleFindMeProfileCallback = callback;
+        mConnection.addCallback(mGattCallback);
+    }
+
     /**
      * Connect to a remote FindMe device.
      *
@@ -156,35 +178,49 @@ public class BleFindMeProfile implements BluetoothProfile {
             return false;
         }
 
-        if (mBluetoothDevice != null && device.equals(mBluetoothDevice) &&
-                mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
+        if (mConnection != null && device.equals(mConnection.getDevice())) {
+            if (mConnection.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+                if (mBleFindMeProfileCallback != null) {
+                    mBleFindMeProfileCallback.onConnectionStateChanged(
+                            BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                }
                 return true;
-            } else {
-                return false;
             }
+            return mConnection.connect(autoConnect);
         }
 
-        mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDevice = device;
-        return true;
+        if (!mOwnsConnection && mConnection != null) {
+            Log.w(TAG, "Shared connection belongs to another device.");
+            return false;
+        }
+
+        close();
+        mConnection = new BleGattConnection(mContext, device);
+        mConnection.addCallback(mGattCallback);
+        mOwnsConnection = true;
+        return mConnection.connect(autoConnect);
     }
 
     /**
      * Disconnect an established connection, or cancel a connection attemp
      * currently in progress.
      *
+     * <p>On a connection passed to
+     * {@link #BleFindMeProfile(BleGattConnection, BleFindMeProfileCallback)}
+     * only the alert level is reset: the link is shared and stays up until its
+     * owner, e.g. the connection pool, releases it.
+     *
      * <p>Requires {@link android.Manifest.permission#BLUETOOTH} permission.
      */
     public void disconnect() {
-        if (mBluetoothGatt == null) {
+        if (mConnection == null) {
             return;
         }
 
         mAlertLevel=ALERT_LEVEL_NO_ALERT;
-        mBluetoothGatt.disconnect();
+        if (mOwnsConnection) {
+            mConnection.disconnect();
+        }
     }
 
     /**
@@ -194,12 +230,16 @@ public class BleFindMeProfile implements BluetoothProfile {
      * @return true, if FindMe client was closed successfully.
      */
     public boolean close() {
-        if (mBluetoothGatt == null) {
+        if (mConnection == null) {
             return false;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
-        mBluetoothDevice = null;
+        mConnection.removeCallback(mGattCallback);
+        if (mOwnsConnection) {
+            mConnection.close();
+        }
+        mConnection = null;
+        mOwnsConnection = false;
+        mAlertCharacter = null;
         mAlertLevel=ALERT_LEVEL_NO_ALERT;
         return true;
     }
@@ -207,34 +247,125 @@ public class BleFindMeProfile implements BluetoothProfile {
     /**
      * Set alert level of remote FindMe device
      *
+     * <p>The write is serialized with the other GATT operations of the connection,
+     * {@link BleFindMeProfile#getAlertLevel()} reflects the new level once the
+     * write completed.
+     *
      * @param alertLevel Set to true to enable notification.
-     * @return true, if alert level was set successfully..
+     * @return true, if alert level write was queued successfully.
      */
     public boolean findMe(int alertLevel) {
+        return findMe(alertLevel, null);
+    }
+
+    /**
+     * Set alert level of remote FindMe device, see {@link BleFindMeProfile#findMe(int)}.
+     *
+     * <p>The Alert Level characteristic is written without response when the
+     * remote device allows it, which saves the acknowledgment round trip. A
+     * level still waiting in the queue is replaced by a newer one instead of
+     * being sent as well; the callback of a replaced write completes right away
+     * with {@link BluetoothGatt#GATT_FAILURE}.
+     *
+     * @param alertLevel alert level to set.
+     * @param callback called once the write completed, may be null.
+     * @return true, if alert level write was queued successfully.
+     */
+    public boolean findMe(final int alertLevel, final BleGattOperationCallback callback) {
         if(alertLevel<ALERT_LEVEL_NO_ALERT || alertLevel>ALERT_LEVEL_HIGH) {
             throw new IllegalArgumentException(EX_MSG_ALERT_LEVEL_OUT_OF_RANGE);
         }
 
-        BluetoothGattService immediateAlertService =
-                mBluetoothGatt.getService(IMMEDIATE_ALERT_SERVICE_UUID);
-        if (null == immediateAlertService) {
+        BluetoothGatt gatt = (mConnection == null) ? null : mConnection.getGatt();
+        if (gatt == null) {
             return false;
         }
 
-        BluetoothGattCharacteristic alertCharacter =
-                immediateAlertService.getCharacteristic(ALERT_LEVEL_CHARACTER_UUID);
+        BluetoothGattCharacteristic alertCharacter = mAlertCharacter;
         if (null == alertCharacter) {
-            return false;
+            // Attached after discovery completed, resolve once.
+            alertCharacter = findAlertCharacter(gatt);
+            if (null == alertCharacter) {
+                return false;
+            }
+            mAlertCharacter = alertCharacter;
         }
 
-        alertCharacter.setValue(alertLevel, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+        int writeType = getAlertWriteType(alertCharacter.getProperties());
+
+        BleGattOperationQueue queue = mConnection.getOperationQueue();
+        BleGattOperationCallback pending = mPendingAlertCallback;
+        if (null != pending && queue.cancel(pending, BluetoothGatt.GATT_FAILURE)) {
+            Log.d(TAG, "findMe superseded a queued alert level");
+        }
+
+        BleGattOperationCallback alertCallback = new BleGattOperationCallback() {
+            @Override
+            public void onOperationCompleted(BleGattOperationQueue.Operation operation,
+                                             int status) {
+                if (mPendingAlertCallback == this) {
+                    mPendingAlertCallback = null;
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mAlertLevel=alertLevel;
+                }
+                Log.d(TAG, "findMe level=" + alertLevel + " status=" + status
+                        + " latency=" + operation.getLatencyMillis() + "ms");
+                if (null != callback) {
+                    callback.onOperationCompleted(operation, status);
+                }
+            }
+        };
+        mPendingAlertCallback = alertCallback;
+        return queue.writeCharacteristic(alertCharacter, new byte[] {(byte) alertLevel},
+                writeType, alertCallback);
+    }
+
+    /**
+     * Set alert level of a remote FindMe device over a transport.
+     *
+     * <p>The write completes through
+     * {@link BleGattTransport.Callback#onCharacteristicWrite}. Unlike
+     * {@link #findMe(int, BleGattOperationCallback)} a queued level is not
+     * replaced by a newer one.
+     *
+     * @param transport GATT transport, connected.
+     * @param alertLevel alert level to set.
+     * @return true, if alert level write was queued successfully.
+     */
+    public static boolean findMe(BleGattTransport transport, int alertLevel) {
+        if(alertLevel<ALERT_LEVEL_NO_ALERT || alertLevel>ALERT_LEVEL_HIGH) {
+            throw new IllegalArgumentException(EX_MSG_ALERT_LEVEL_OUT_OF_RANGE);
+        }
 
-        if (mBluetoothGatt.writeCharacteristic(alertCharacter)) {
-            mAlertLevel=alertLevel;
-            return true;
-        } else {
+        int properties = transport.getProperties(IMMEDIATE_ALERT_SERVICE_UUID,
+                ALERT_LEVEL_CHARACTER_UUID);
+        if (0 == properties) {
             return false;
         }
+        return transport.writeCharacteristic(IMMEDIATE_ALERT_SERVICE_UUID,
+                ALERT_LEVEL_CHARACTER_UUID, new byte[] {(byte) alertLevel},
+                getAlertWriteType(properties));
+    }
+
+    /**
+     * Write without response when the Alert Level allows it, which saves the
+     * acknowledgment round trip.
+     */
+    private static int getAlertWriteType(int properties) {
+        return ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) ?
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE :
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    }
+
+    private static BluetoothGattCharacteristic findAlertCharacter(BluetoothGatt gatt) {
+        BluetoothGattService immediateAlertService =
+                gatt.getService(IMMEDIATE_ALERT_SERVICE_UUID);
+        if (null == immediateAlertService) {
+            return null;
+        }
+
+        return immediateAlertService.getCharacteristic(ALERT_LEVEL_CHARACTER_UUID);
     }
 
     /**
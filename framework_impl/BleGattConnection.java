@@ -0,0 +1,800 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class owns one {@link BluetoothGatt} connection to a remote device so
+ * that several profiles can share it.
+ *
+ * <p>Every {@link BluetoothGattCallback} event is forwarded to all registered
+ * callbacks, read and write completions are then fed to the
+ * {@link BleGattOperationQueue} of the connection. Service discovery is started
+ * once per connection, on behalf of all profiles.
+ *
+ * <p>The connection switches between two link profiles on its own: burst, a
+ * high connection priority while services are discovered or operations are
+ * queued, and idle, low power once the queue has been empty for a moment and
+ * the link only waits for notifications.
+ *
+ * <p>The services found on each device are kept in a
+ * {@link BleServiceSnapshotCache}, along with the Database Hash the device
+ * reports. When a bonded device comes back on the same {@link BluetoothGatt},
+ * which still holds the services of the previous link, its Database Hash is
+ * read again; if it did not change, discovery is skipped and those services
+ * are reported again. That only happens on automatic reconnects: a new
+ * {@link BluetoothGatt}, e.g. after a direct connect or a process restart,
+ * holds no services and is always discovered.
+ *
+ * <p>Notifications enabled through
+ * {@link #setNotification(BluetoothGattCharacteristic, boolean, BleGattOperationCallback)}
+ * are remembered and restored in one batch once services are ready on a new
+ * link, ahead of the profiles' own operations. A CCCD write is skipped when
+ * the device already holds the value: written earlier on the same link, or
+ * kept by a bonded device from a previous link, see {@link BleSubscriptionCache}.
+ */
+public class BleGattConnection {
+
+    private static final String TAG = "BleGattConnection";
+
+    /** High priority, short connection interval for discovery and queued operations. */
+    public static final int PROFILE_BURST=1;
+    /** Low power, long connection interval while only notifications are expected. */
+    public static final int PROFILE_IDLE=2;
+
+    public static final int DEFAULT_MTU=23;
+    // Time the queue must stay empty before the link drops to the idle profile.
+    private static final long IDLE_DELAY=2000;
+    // Outcomes of a CCCD update.
+    static final int CCCD_FAILED=0;
+    static final int CCCD_QUEUED=1;
+    static final int CCCD_SKIPPED=2;
+    private static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID =
+            UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    private static final UUID DATABASE_HASH_CHARACTER_UUID =
+            UUID.fromString("00002b2a-0000-1000-8000-00805f9b34fb");
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Notification state of one characteristic, kept across links.
+     */
+    private static final class Subscription {
+        final UUID mService;
+        final UUID mCharacteristic;
+        // Value asked for by the profiles.
+        volatile byte[] mValue=null;
+        // Value written, or being written, on the current link.
+        volatile byte[] mLinkValue=null;
+
+        Subscription(UUID service, UUID characteristic) {
+            mService = service;
+            mCharacteristic = characteristic;
+        }
+    }
+
+    private final Context mContext;
+    private final BluetoothDevice mBluetoothDevice;
+    private final CopyOnWriteArrayList<BluetoothGattCallback> mCallbacks =
+            new CopyOnWriteArrayList<BluetoothGattCallback>();
+    private BluetoothGatt mBluetoothGatt=null;
+    private BleGattOperationQueue mGattQueue=null;
+    private volatile BleGattOperationCallback mOperationCallback=null;
+    private long mOperationTimeoutMillis=0;
+    private volatile int mConnectionState=BluetoothProfile.STATE_DISCONNECTED;
+    private volatile long mLastActivityTime=0;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile int mProfile=0;
+    private volatile boolean mServicesDiscovered=false;
+    private volatile int mPreferredMtu=0;
+    private volatile int mMtu=DEFAULT_MTU;
+    private long mProfileTime=0;
+    private long mBurstMillis=0;
+    private int mProfileSwitchCount=0;
+    private BleServiceSnapshotCache mServiceCache=null;
+    private volatile boolean mDisconnectRequested=false;
+    private volatile long mLinkLostTime=0;
+    private volatile boolean mAwaitingNotification=false;
+    private volatile long mLastReconnectMillis=-1;
+    private volatile long mLastFirstNotificationMillis=-1;
+    private volatile int mDiscoverySkipCount=0;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+    private BleSubscriptionCache mSubscriptionCache=null;
+    private volatile int mCccdWriteCount=0;
+    private volatile int mCccdSkipCount=0;
+    private final Runnable mEnterIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionState == BluetoothProfile.STATE_CONNECTED && isIdle()) {
+                setProfile(PROFILE_IDLE);
+            }
+        }
+    };
+    private final BleGattOperationCallback mQueueObserver = new BleGattOperationCallback() {
+
+        @Override
+        public void onOperationStarted(BleGattOperationQueue.Operation operation) {
+            mHandler.removeCallbacks(mEnterIdle);
+            setProfile(PROFILE_BURST);
+            BleGattOperationCallback callback = mOperationCallback;
+            if (null != callback) {
+                callback.onOperationStarted(operation);
+            }
+        }
+
+        @Override
+        public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+            BleGattOperationCallback callback = mOperationCallback;
+            if (null != callback) {
+                callback.onOperationCompleted(operation, status);
+            }
+            scheduleIdle();
+        }
+    };
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            int oldState = mConnectionState;
+            mConnectionState = newState;
+            touch();
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mServicesDiscovered = false;
+                mMtu = DEFAULT_MTU;
+                if (mLinkLostTime != 0) {
+                    mLastReconnectMillis = mLastActivityTime - mLinkLostTime;
+                    mAwaitingNotification = true;
+                    Log.d(TAG, "reconnected after " + mLastReconnectMillis + "ms");
+                }
+                setProfile(PROFILE_BURST);
+                if (!validateServices(gatt)) {
+                    gatt.discoverServices();
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                if (oldState == BluetoothProfile.STATE_CONNECTED && !mDisconnectRequested) {
+                    mLinkLostTime = mLastActivityTime;
+                    mAwaitingNotification = false;
+                }
+                mServicesDiscovered = false;
+                for (Subscription subscription : mSubscriptions) {
+                    subscription.mLinkValue = null;
+                }
+                mHandler.removeCallbacks(mEnterIdle);
+                setProfile(0);
+                BleGattOperationQueue queue = mGattQueue;
+                if (queue != null) {
+                    queue.clear();
+                }
+            }
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onConnectionStateChange(gatt, status, newState);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                boolean changed = getServiceCache().put(mBluetoothDevice.getAddress(),
+                        gatt.getServices());
+                Log.d(TAG, changed ? "service snapshot stored" : "service snapshot unchanged");
+                if (changed) {
+                    // A new database may come with reset configurations.
+                    getSubscriptionCache().remove(mBluetoothDevice.getAddress());
+                }
+                storeDatabaseHash(gatt);
+            }
+            onServicesReady(gatt, status);
+        }
+
+        /**
+         * Read the Database Hash of a bonded device whose services this
+         * {@link BluetoothGatt} still holds from the previous link. The services
+         * are reported again if it matches the hash read after the last
+         * discovery, otherwise they are discovered.
+         *
+         * @return true, if the read was queued and decides on discovery.
+         */
+        private boolean validateServices(final BluetoothGatt gatt) {
+            if (mBluetoothDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
+                // The stack only keeps the database of bonded devices.
+                return false;
+            }
+            final byte[] expected = getServiceCache().getDatabaseHash(mBluetoothDevice.getAddress());
+            BluetoothGattCharacteristic hashCharacter = findDatabaseHash(gatt);
+            BleGattOperationQueue queue = mGattQueue;
+            if (null == expected || null == hashCharacter || null == queue) {
+                return false;
+            }
+            return queue.readCharacteristic(hashCharacter, new BleGattOperationCallback() {
+                @Override
+                public void onOperationCompleted(BleGattOperationQueue.Operation operation,
+                                                 int status) {
+                    if (mConnectionState != BluetoothProfile.STATE_CONNECTED) {
+                        return;
+                    }
+                    if (status == BluetoothGatt.GATT_SUCCESS
+                            && Arrays.equals(expected, operation.getCharacteristic().getValue())) {
+                        mDiscoverySkipCount++;
+                        Log.d(TAG, "database hash unchanged, discovery skipped");
+                        onServicesReady(gatt, BluetoothGatt.GATT_SUCCESS);
+                    } else {
+                        Log.d(TAG, "database hash changed, status=" + status);
+                        gatt.discoverServices();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Keep the Database Hash of a bonded device for the next link.
+         */
+        private void storeDatabaseHash(BluetoothGatt gatt) {
+            BluetoothGattCharacteristic hashCharacter = findDatabaseHash(gatt);
+            BleGattOperationQueue queue = mGattQueue;
+            if (mBluetoothDevice.getBondState() != BluetoothDevice.BOND_BONDED
+                    || null == hashCharacter || null == queue) {
+                return;
+            }
+            queue.readCharacteristic(hashCharacter, new BleGattOperationCallback() {
+                @Override
+                public void onOperationCompleted(BleGattOperationQueue.Operation operation,
+                                                 int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        getServiceCache().putDatabaseHash(mBluetoothDevice.getAddress(),
+                                operation.getCharacteristic().getValue());
+                    }
+                }
+            });
+        }
+
+        private void onServicesReady(BluetoothGatt gatt, int status) {
+            mServicesDiscovered = true;
+            BleGattOperationQueue queue = mGattQueue;
+            int preferredMtu = mPreferredMtu;
+            if (queue != null && preferredMtu > DEFAULT_MTU) {
+                // Queued ahead of whatever the profiles ask for after discovery.
+                queue.requestMtu(preferredMtu, null);
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                restoreSubscriptions(gatt);
+            }
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onServicesDiscovered(gatt, status);
+            }
+            scheduleIdle();
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            touch();
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onDescriptorRead(gatt, descriptor, status);
+            }
+            BleGattOperationQueue queue = mGattQueue;
+            if (queue != null) {
+                queue.onDescriptorRead(descriptor, status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            touch();
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onDescriptorWrite(gatt, descriptor, status);
+            }
+            BleGattOperationQueue queue = mGattQueue;
+            if (queue != null) {
+                queue.onDescriptorWrite(descriptor, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+            touch();
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onCharacteristicWrite(gatt, characteristic, status);
+            }
+            BleGattOperationQueue queue = mGattQueue;
+            if (queue != null) {
+                queue.onCharacteristicWrite(characteristic, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic, int status) {
+            touch();
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onCharacteristicRead(gatt, characteristic, status);
+            }
+            BleGattOperationQueue queue = mGattQueue;
+            if (queue != null) {
+                queue.onCharacteristicRead(characteristic, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            touch();
+            if (mAwaitingNotification) {
+                mAwaitingNotification = false;
+                mLastFirstNotificationMillis = mLastActivityTime - mLinkLostTime;
+                Log.d(TAG, "first notification " + mLastFirstNotificationMillis
+                        + "ms after link loss");
+            }
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onCharacteristicChanged(gatt, characteristic);
+            }
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onReliableWriteCompleted(gatt, status);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onReadRemoteRssi(gatt, rssi, status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            Log.d(TAG, "MTU " + mtu + " status=" + status);
+            for (BluetoothGattCallback callback : mCallbacks) {
+                callback.onMtuChanged(gatt, mtu, status);
+            }
+            BleGattOperationQueue queue = mGattQueue;
+            if (queue != null) {
+                queue.onMtuChanged(mtu, status);
+            }
+        }
+    };
+
+    /**
+     * Create a connection to a remote device, the link is not established
+     * until {@link BleGattConnection#connect(boolean)} is called.
+     */
+    public BleGattConnection(Context context, BluetoothDevice device) {
+        mContext = context;
+        mBluetoothDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mBluetoothDevice;
+    }
+
+    /**
+     * @return Bluetooth GATT, or null if the connection was never attempted or is closed.
+     */
+    public BluetoothGatt getGatt() {
+        return mBluetoothGatt;
+    }
+
+    /**
+     * @return operation queue of the Bluetooth GATT, or null if there is no GATT.
+     */
+    public BleGattOperationQueue getOperationQueue() {
+        return mGattQueue;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * @return {@link SystemClock#elapsedRealtime()} of the last link activity.
+     */
+    public long getLastActivityTime() {
+        return mLastActivityTime;
+    }
+
+    /**
+     * @return true, if no GATT operation is queued or in flight.
+     */
+    public boolean isIdle() {
+        BleGattOperationQueue queue = mGattQueue;
+        return queue == null || queue.size() == 0;
+    }
+
+    /**
+     * @return {@link #PROFILE_BURST}, {@link #PROFILE_IDLE}, or 0 while not connected.
+     */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * @return MTU negotiated for the link, {@link #DEFAULT_MTU} until an exchange succeeds.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Ask for a larger MTU once services are discovered on each new link.
+     *
+     * @param mtu the MTU, or 0 to keep the default.
+     */
+    public void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * @return time the link spent in the burst profile.
+     */
+    public synchronized long getBurstMillis() {
+        return mBurstMillis + ((mProfile == PROFILE_BURST) ?
+                SystemClock.elapsedRealtime() - mProfileTime : 0);
+    }
+
+    public synchronized int getProfileSwitchCount() {
+        return mProfileSwitchCount;
+    }
+
+    /**
+     * @return time from the last link loss to the link being up again, or -1.
+     */
+    public long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+
+    /**
+     * @return time from the last link loss to the first notification received
+     *         on the new link, or -1.
+     */
+    public long getLastFirstNotificationMillis() {
+        return mLastFirstNotificationMillis;
+    }
+
+    /**
+     * @return number of links that reused the services of the previous link.
+     */
+    public int getDiscoverySkipCount() {
+        return mDiscoverySkipCount;
+    }
+
+    /**
+     * @return number of CCCD writes issued.
+     */
+    public int getCccdWriteCount() {
+        return mCccdWriteCount;
+    }
+
+    /**
+     * @return number of CCCD writes skipped because the device already held the value.
+     */
+    public int getCccdSkipCount() {
+        return mCccdSkipCount;
+    }
+
+    /**
+     * Enable or disable notification of a characteristic, and keep it that way
+     * on every following link.
+     *
+     * <p>Indication is used for a characteristic that cannot notify. No write
+     * is issued, and the callback is not called, if the device already holds
+     * the value.
+     *
+     * @param characteristic characteristic of this connection's Bluetooth GATT.
+     * @param enable Set to true to enable notification.
+     * @param callback receives the completion of the CCCD write, may be null.
+     * @return true, if the CCCD holds the value or its write was queued.
+     */
+    public boolean setNotification(BluetoothGattCharacteristic characteristic, boolean enable,
+                                   BleGattOperationCallback callback) {
+        return updateNotification(characteristic, enable, callback) != CCCD_FAILED;
+    }
+
+    /**
+     * See {@link #setNotification(BluetoothGattCharacteristic, boolean, BleGattOperationCallback)}.
+     *
+     * @return {@link #CCCD_QUEUED}, {@link #CCCD_SKIPPED} or {@link #CCCD_FAILED}.
+     */
+    synchronized int updateNotification(BluetoothGattCharacteristic characteristic,
+                                        boolean enable, BleGattOperationCallback callback) {
+        if (mBluetoothGatt == null || null == characteristic.getService()) {
+            return CCCD_FAILED;
+        }
+        BluetoothGattDescriptor cccDescriptor = characteristic.getDescriptor(
+                CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR_UUID);
+        if (null == cccDescriptor
+                || !mBluetoothGatt.setCharacteristicNotification(characteristic, enable)) {
+            return CCCD_FAILED;
+        }
+
+        UUID serviceUuid = characteristic.getService().getUuid();
+        Subscription subscription = null;
+        for (Subscription candidate : mSubscriptions) {
+            if (candidate.mService.equals(serviceUuid)
+                    && candidate.mCharacteristic.equals(characteristic.getUuid())) {
+                subscription = candidate;
+                break;
+            }
+        }
+        if (null == subscription) {
+            subscription = new Subscription(serviceUuid, characteristic.getUuid());
+            mSubscriptions.add(subscription);
+        }
+
+        if (!enable) {
+            subscription.mValue = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            subscription.mValue = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            subscription.mValue = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return writeCccd(subscription, cccDescriptor, callback);
+    }
+
+    public void addCallback(BluetoothGattCallback callback) {
+        mCallbacks.addIfAbsent(callback);
+    }
+
+    public void removeCallback(BluetoothGattCallback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Observe every completed GATT operation of the connection.
+     */
+    public void setOperationCallback(BleGattOperationCallback callback) {
+        mOperationCallback = callback;
+    }
+
+    /**
+     * See {@link BleGattOperationQueue#setOperationTimeout(long)}.
+     */
+    public void setOperationTimeout(long timeoutMillis) {
+        mOperationTimeoutMillis = timeoutMillis;
+        if (mGattQueue != null) {
+            mGattQueue.setOperationTimeout(timeoutMillis);
+        }
+    }
+
+    /**
+     * Connect to the remote device.
+     *
+     * <p>Requires {@link android.Manifest.permission#BLUETOOTH} permission.
+     *
+     * @param autoConnect Whether to directly connect to the remote device (false)
+     *                    or to automatically connect as soon as the remote
+     *                    device becomes available (true).
+     * @return true, if the connection attempt was initiated successfully.
+     */
+    public synchronized boolean connect(boolean autoConnect) {
+        touch();
+        mDisconnectRequested = false;
+        if (mBluetoothGatt != null) {
+            if (autoConnect || mConnectionState != BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+                return mBluetoothGatt.connect();
+            }
+            // BluetoothGatt#connect() always waits for the device in the
+            // background, a direct attempt needs a new client.
+            mHandler.removeCallbacks(mEnterIdle);
+            mGattQueue.close();
+            mGattQueue = null;
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+
+        mBluetoothGatt = mBluetoothDevice.connectGatt(mContext, autoConnect, mGattCallback);
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        mGattQueue = new BleGattOperationQueue(mBluetoothGatt);
+        mGattQueue.setOperationCallback(mQueueObserver);
+        mGattQueue.setOperationTimeout(mOperationTimeoutMillis);
+        Log.d(TAG, "Trying to create a new connection.");
+        return true;
+    }
+
+    /**
+     * Disconnect an established connection, or cancel a connection attempt
+     * currently in progress.
+     */
+    public synchronized void disconnect() {
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mDisconnectRequested = true;
+        mLinkLostTime = 0;
+        mAwaitingNotification = false;
+        mBluetoothGatt.disconnect();
+    }
+
+    /**
+     * Close the connection and release the Bluetooth GATT.
+     *
+     * @return true, if the connection was closed successfully.
+     */
+    public synchronized boolean close() {
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        mHandler.removeCallbacks(mEnterIdle);
+        mGattQueue.close();
+        mGattQueue = null;
+        setProfile(0);
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+        return true;
+    }
+
+    private synchronized BleSubscriptionCache getSubscriptionCache() {
+        if (null == mSubscriptionCache) {
+            mSubscriptionCache = BleSubscriptionCache.getInstance(mContext);
+        }
+        return mSubscriptionCache;
+    }
+
+    /**
+     * Queue the CCCD writes of every subscription on a new link, back to back.
+     */
+    private synchronized void restoreSubscriptions(BluetoothGatt gatt) {
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+        int writes = mCccdWriteCount;
+        for (Subscription subscription : mSubscriptions) {
+            BluetoothGattService service = gatt.getService(subscription.mService);
+            BluetoothGattCharacteristic characteristic = (null == service) ? null :
+                    service.getCharacteristic(subscription.mCharacteristic);
+            BluetoothGattDescriptor cccDescriptor = (null == characteristic) ? null :
+                    characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR_UUID);
+            if (null == cccDescriptor) {
+                continue;
+            }
+            boolean enable = !Arrays.equals(subscription.mValue,
+                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            if (gatt.setCharacteristicNotification(characteristic, enable)) {
+                writeCccd(subscription, cccDescriptor, null);
+            }
+        }
+        Log.d(TAG, mSubscriptions.size() + " subscriptions restored with "
+                + (mCccdWriteCount - writes) + " writes");
+    }
+
+    private synchronized int writeCccd(final Subscription subscription,
+                                       BluetoothGattDescriptor cccDescriptor,
+                                       final BleGattOperationCallback callback) {
+        final byte[] value = subscription.mValue;
+        if (Arrays.equals(subscription.mLinkValue, value) || isCccdKept(subscription, value)) {
+            subscription.mLinkValue = value;
+            mCccdSkipCount++;
+            return CCCD_SKIPPED;
+        }
+        if (null == mGattQueue) {
+            return CCCD_FAILED;
+        }
+
+        subscription.mLinkValue = value;
+        boolean queued = mGattQueue.writeDescriptor(cccDescriptor, value,
+                new BleGattOperationCallback() {
+            @Override
+            public void onOperationCompleted(BleGattOperationQueue.Operation operation,
+                                             int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    if (mBluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+                        getSubscriptionCache().put(mBluetoothDevice.getAddress(),
+                                subscription.mService, subscription.mCharacteristic, value[0]);
+                    }
+                } else if (subscription.mLinkValue == value) {
+                    subscription.mLinkValue = null;
+                }
+                if (null != callback) {
+                    callback.onOperationCompleted(operation, status);
+                }
+            }
+        });
+        if (!queued) {
+            subscription.mLinkValue = null;
+            return CCCD_FAILED;
+        }
+        mCccdWriteCount++;
+        return CCCD_QUEUED;
+    }
+
+    /**
+     * A bonded device keeps the value from the previous link. Any other device
+     * starts every link with notifications off.
+     */
+    private boolean isCccdKept(Subscription subscription, byte[] value) {
+        if (mBluetoothDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
+            return null == subscription.mLinkValue
+                    && Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+        return getSubscriptionCache().get(mBluetoothDevice.getAddress(), subscription.mService,
+                subscription.mCharacteristic) == value[0];
+    }
+
+    private synchronized BleServiceSnapshotCache getServiceCache() {
+        if (null == mServiceCache) {
+            mServiceCache = BleServiceSnapshotCache.getInstance(mContext);
+        }
+        return mServiceCache;
+    }
+
+    private static BluetoothGattCharacteristic findDatabaseHash(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(GENERIC_ATTRIBUTE_SERVICE_UUID);
+        return (null == service) ? null : service.getCharacteristic(DATABASE_HASH_CHARACTER_UUID);
+    }
+
+    private void scheduleIdle() {
+        if (mServicesDiscovered && isIdle()) {
+            mHandler.removeCallbacks(mEnterIdle);
+            mHandler.postDelayed(mEnterIdle, IDLE_DELAY);
+        }
+    }
+
+    private synchronized void setProfile(int profile) {
+        if (profile == mProfile) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mProfile == PROFILE_BURST) {
+            mBurstMillis += now - mProfileTime;
+        }
+        mProfile = profile;
+        mProfileTime = now;
+        if (0 == profile || null == mBluetoothGatt) {
+            return;
+        }
+
+        int priority = (profile == PROFILE_BURST) ?
+                BluetoothGatt.CONNECTION_PRIORITY_HIGH : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        boolean requested = mBluetoothGatt.requestConnectionPriority(priority);
+        mProfileSwitchCount++;
+        Log.d(TAG, "profile " + profile + " priority " + priority + " requested=" + requested
+                + " mtu=" + mMtu);
+    }
+
+    private void touch() {
+        mLastActivityTime = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.UUID;
+
+/**
+ * {@link BleGattTransport} over a {@link BleGattConnection}.
+ *
+ * <p>Operations go through the connection's operation queue, notifications
+ * through its subscriptions, so the transport shares the link with any other
+ * profile. Closing the transport leaves the connection open.
+ */
+public class BleGattConnectionTransport implements BleGattTransport {
+
+    private final BleGattConnection mConnection;
+    private volatile Callback mCallback=null;
+    // Services are known on the current link.
+    private volatile boolean mReady=false;
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                // Reported once services are discovered.
+                return;
+            }
+            mReady = false;
+            Callback callback = mCallback;
+            if (null != callback) {
+                callback.onConnectionStateChange(BleGattConnectionTransport.this, status, newState);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mReady = status == BluetoothGatt.GATT_SUCCESS;
+            Callback callback = mCallback;
+            if (null != callback && mReady) {
+                callback.onConnectionStateChange(BleGattConnectionTransport.this, status,
+                        BluetoothProfile.STATE_CONNECTED);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            Callback callback = mCallback;
+            if (null != callback) {
+                callback.onCharacteristicChanged(BleGattConnectionTransport.this,
+                        characteristic.getService().getUuid(), characteristic.getUuid(),
+                        characteristic.getValue());
+            }
+        }
+    };
+
+    public BleGattConnectionTransport(BleGattConnection connection) {
+        mConnection = connection;
+        mConnection.addCallback(mGattCallback);
+        BluetoothGatt gatt = connection.getGatt();
+        mReady = connection.getConnectionState() == BluetoothProfile.STATE_CONNECTED
+                && null != gatt && !gatt.getServices().isEmpty();
+    }
+
+    public BleGattConnection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return mConnection.getDevice().getAddress();
+    }
+
+    @Override
+    public boolean connect() {
+        return mConnection.connect(false);
+    }
+
+    @Override
+    public void disconnect() {
+        mConnection.disconnect();
+    }
+
+    @Override
+    public int getConnectionState() {
+        int state = mConnection.getConnectionState();
+        if (state == BluetoothProfile.STATE_CONNECTED && !mReady) {
+            return BluetoothProfile.STATE_CONNECTING;
+        }
+        return state;
+    }
+
+    @Override
+    public int getProperties(UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        return (null == gattCharacteristic) ? 0 : gattCharacteristic.getProperties();
+    }
+
+    @Override
+    public boolean readCharacteristic(final UUID service, final UUID characteristic) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        BleGattOperationQueue queue = mConnection.getOperationQueue();
+        if (null == gattCharacteristic || null == queue) {
+            return false;
+        }
+        return queue.readCharacteristic(gattCharacteristic, new BleGattOperationCallback() {
+            @Override
+            public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+                Callback callback = mCallback;
+                if (null != callback) {
+                    callback.onCharacteristicRead(BleGattConnectionTransport.this, service,
+                            characteristic, operation.getCharacteristic().getValue(), status);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean writeCharacteristic(final UUID service, final UUID characteristic,
+                                       byte[] value, int writeType) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        BleGattOperationQueue queue = mConnection.getOperationQueue();
+        if (null == gattCharacteristic || null == queue) {
+            return false;
+        }
+        return queue.writeCharacteristic(gattCharacteristic, value, writeType,
+                new BleGattOperationCallback() {
+            @Override
+            public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+                Callback callback = mCallback;
+                if (null != callback) {
+                    callback.onCharacteristicWrite(BleGattConnectionTransport.this, service,
+                            characteristic, status);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean setNotification(final UUID service, final UUID characteristic, boolean enable) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        if (null == gattCharacteristic) {
+            return false;
+        }
+        BleGattOperationCallback completion = new BleGattOperationCallback() {
+            @Override
+            public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+                notifyNotificationState(service, characteristic, status);
+            }
+        };
+        switch (mConnection.updateNotification(gattCharacteristic, enable, completion)) {
+            case BleGattConnection.CCCD_QUEUED:
+                return true;
+            case BleGattConnection.CCCD_SKIPPED:
+                // The device holds the value already, complete right away.
+                notifyNotificationState(service, characteristic, BluetoothGatt.GATT_SUCCESS);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        mConnection.removeCallback(mGattCallback);
+        mCallback = null;
+        mReady = false;
+    }
+
+    private void notifyNotificationState(UUID service, UUID characteristic, int status) {
+        Callback callback = mCallback;
+        if (null != callback) {
+            callback.onNotificationStateChanged(this, service, characteristic, status);
+        }
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGatt gatt = mConnection.getGatt();
+        if (null == gatt || !mReady) {
+            return null;
+        }
+        BluetoothGattService gattService = gatt.getService(service);
+        return (null == gattService) ? null : gattService.getCharacteristic(characteristic);
+    }
+}
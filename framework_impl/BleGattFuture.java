@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an operation queued on a {@link BleGattOperationQueue}.
+ *
+ * <p>The future completes from the {@link BluetoothGattCallback} event of the
+ * operation. Cancelling it removes the operation from the queue if it has not
+ * been dispatched yet. Subclasses convert the completed operation into the
+ * result in {@link BleGattFuture#onOperationCompleted}.
+ *
+ * @param <T> result type.
+ */
+public abstract class BleGattFuture<T> extends BleGattOperationCallback implements Future<T> {
+
+    private static final int STATE_PENDING=0;
+    private static final int STATE_DONE=1;
+    private static final int STATE_FAILED=2;
+    private static final int STATE_CANCELLED=3;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<Runnable> mListeners = new ArrayList<Runnable>();
+    private BleGattOperationQueue mQueue=null;
+    private int mState=STATE_PENDING;
+    private T mResult=null;
+    private Throwable mFailure=null;
+
+    /**
+     * Bind the future to the queue its operation was issued on, so that
+     * {@link BleGattFuture#cancel(boolean)} can withdraw the operation.
+     */
+    void setQueue(BleGattOperationQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Complete the future with a result.
+     *
+     * @return false, if the future was already completed or cancelled.
+     */
+    protected boolean set(T result) {
+        synchronized (this) {
+            if (STATE_PENDING != mState) {
+                return false;
+            }
+            mResult = result;
+            mState = STATE_DONE;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Fail the future with the GATT status of the operation.
+     *
+     * @return false, if the future was already completed or cancelled.
+     */
+    protected boolean setFailure(int status) {
+        synchronized (this) {
+            if (STATE_PENDING != mState) {
+                return false;
+            }
+            mFailure = new IOException("GATT operation failed, status=" + status);
+            mState = STATE_FAILED;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Run a listener once the future is done, or right away if it is already done.
+     *
+     * <p>The listener runs on the thread completing the future, usually the
+     * Bluetooth binder thread, and must not block.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (STATE_PENDING == mState) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (STATE_PENDING != mState) {
+                return false;
+            }
+            mState = STATE_CANCELLED;
+        }
+        if (null != mQueue) {
+            mQueue.cancel(this);
+        }
+        finish();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return STATE_CANCELLED == mState;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return STATE_PENDING != mState;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        switch (mState) {
+            case STATE_CANCELLED:
+                throw new CancellationException();
+            case STATE_FAILED:
+                throw new ExecutionException(mFailure);
+            default:
+                return mResult;
+        }
+    }
+
+    private void finish() {
+        mDone.countDown();
+
+        List<Runnable> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<Runnable>(mListeners);
+            mListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
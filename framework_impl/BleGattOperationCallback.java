@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+/**
+ * This abstract class is used to implement {@link BleGattOperationQueue} callbacks.
+ */
+public abstract class BleGattOperationCallback {
+
+    /**
+     * Callback indicating a queued GATT operation is about to be dispatched to
+     * the stack. Only delivered to the observer set with
+     * {@link BleGattOperationQueue#setOperationCallback(BleGattOperationCallback)}.
+     *
+     * @param operation The operation being started.
+     */
+    public void onOperationStarted(BleGattOperationQueue.Operation operation) {
+
+    }
+
+    /**
+     * Callback indicating a queued GATT operation has completed.
+     *
+     * <p>The characteristic or descriptor of the operation holds the value
+     * returned by the remote device when a read operation succeeds.
+     *
+     * @param operation The completed operation, see
+     *                  {@link BleGattOperationQueue.Operation#getLatencyMillis()}
+     *                  for the time the operation took on air.
+     * @param status {@link BluetoothGatt#GATT_SUCCESS} if the operation succeeds.
+     */
+    public void onOperationCompleted(BleGattOperationQueue.Operation operation, int status) {
+
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class serializes GATT operations issued on one {@link BluetoothGatt}.
+ *
+ * <p>Only one read or write can be outstanding on a GATT connection, a second
+ * request issued before the first one completes is rejected by the stack.
+ * Operations are therefore queued and started one by one, each operation is
+ * completed by the matching {@link BluetoothGattCallback} event which the owner
+ * of the connection must forward to this queue.
+ */
+public class BleGattOperationQueue {
+
+    private static final String TAG = "BleGattOperationQueue";
+
+    public static final int OP_READ_CHARACTERISTIC=1;
+    public static final int OP_WRITE_CHARACTERISTIC=2;
+    public static final int OP_READ_DESCRIPTOR=3;
+    public static final int OP_WRITE_DESCRIPTOR=4;
+    public static final int OP_REQUEST_MTU=5;
+
+    /**
+     * A single GATT operation waiting in or dispatched from the queue.
+     */
+    public static class Operation {
+        private final int mType;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final BluetoothGattDescriptor mDescriptor;
+        private final byte[] mValue;
+        private final int mWriteType;
+        private final int mMtu;
+        private final BleGattOperationCallback mCallback;
+        private final long mQueuedTime;
+        private long mStartTime;
+        private long mEndTime;
+
+        private Operation(int type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, int writeType,
+                          BleGattOperationCallback callback) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mWriteType = writeType;
+            mMtu = 0;
+            mCallback = callback;
+            mQueuedTime = System.nanoTime();
+        }
+
+        private Operation(int mtu, BleGattOperationCallback callback) {
+            mType = OP_REQUEST_MTU;
+            mCharacteristic = null;
+            mDescriptor = null;
+            mValue = null;
+            mWriteType = 0;
+            mMtu = mtu;
+            mCallback = callback;
+            mQueuedTime = System.nanoTime();
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        public BluetoothGattDescriptor getDescriptor() {
+            return mDescriptor;
+        }
+
+        /**
+         * @return MTU asked for by an {@link #OP_REQUEST_MTU} operation.
+         */
+        public int getMtu() {
+            return mMtu;
+        }
+
+        /**
+         * Time between the operation being dispatched to the stack and its completion.
+         */
+        public long getLatencyMillis() {
+            if (0 == mStartTime) {
+                return 0;
+            }
+            return (mEndTime - mStartTime) / 1000000;
+        }
+
+        /**
+         * Time the operation spent waiting in the queue before being dispatched.
+         */
+        public long getQueuedMillis() {
+            long start = (0 == mStartTime) ? mEndTime : mStartTime;
+            return (start - mQueuedTime) / 1000000;
+        }
+
+        private boolean matches(int type, BluetoothGattCharacteristic characteristic,
+                                BluetoothGattDescriptor descriptor) {
+            if (type != mType) {
+                return false;
+            }
+            if (null != mDescriptor) {
+                return mDescriptor == descriptor || (null != descriptor &&
+                        mDescriptor.getUuid().equals(descriptor.getUuid()) &&
+                        mDescriptor.getCharacteristic() == descriptor.getCharacteristic());
+            }
+            return mCharacteristic == characteristic || (null != characteristic &&
+                    mCharacteristic.getUuid().equals(characteristic.getUuid()) &&
+                    mCharacteristic.getInstanceId() == characteristic.getInstanceId());
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor sWatchdog=null;
+
+    private final BluetoothGatt mBluetoothGatt;
+    private final LinkedList<Operation> mPending = new LinkedList<Operation>();
+    private Operation mCurrent=null;
+    private boolean mClosed=false;
+    // An operation timed out, the stack may still be busy with it.
+    private boolean mStalled=false;
+    private ScheduledFuture<?> mTimeout=null;
+    private BleGattOperationCallback mOperationCallback=null;
+    private long mOperationTimeoutMillis=0;
+
+    /**
+     * Create an operation queue for a GATT connection.
+     *
+     * @param gatt Bluetooth GATT the operations are issued on.
+     */
+    public BleGattOperationQueue(BluetoothGatt gatt) {
+        mBluetoothGatt = gatt;
+    }
+
+    public BluetoothGatt getGatt() {
+        return mBluetoothGatt;
+    }
+
+    /**
+     * Set a callback observing every completed operation, e.g. to report latency.
+     *
+     * @param callback the callback, or null to remove it.
+     */
+    public void setOperationCallback(BleGattOperationCallback callback) {
+        mOperationCallback = callback;
+    }
+
+    /**
+     * Give up on an in flight operation when its callback does not arrive in
+     * time.
+     *
+     * <p>The stack still holds the operation then, it would reject the next
+     * one or complete it with a late callback. The link is therefore dropped:
+     * every queued operation fails, the queue rejects new ones until
+     * {@link #clear()} is called once the link is down, and the GATT is
+     * disconnected.
+     *
+     * @param timeoutMillis timeout in milliseconds, 0 to wait forever.
+     */
+    public void setOperationTimeout(long timeoutMillis) {
+        mOperationTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Number of operations queued or in flight.
+     */
+    public synchronized int size() {
+        return mPending.size() + (null == mCurrent ? 0 : 1);
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic,
+                                      BleGattOperationCallback callback) {
+        if (null == characteristic) {
+            return false;
+        }
+        return enqueue(new Operation(OP_READ_CHARACTERISTIC, characteristic, null, null, 0,
+                callback));
+    }
+
+    /**
+     * Queue a characteristic write.
+     *
+     * <p>The value is copied into the characteristic only when the write is
+     * dispatched, so queued writes on the same characteristic do not overwrite
+     * each other.
+     */
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       BleGattOperationCallback callback) {
+        if (null == characteristic) {
+            return false;
+        }
+        return writeCharacteristic(characteristic, value, characteristic.getWriteType(), callback);
+    }
+
+    /**
+     * Queue a characteristic write with an explicit write type.
+     *
+     * <p>A {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE} write
+     * completes as soon as the stack has sent it, without waiting for an
+     * acknowledgment from the remote device. It still occupies the queue until
+     * then, which keeps the stack from being flooded.
+     */
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       int writeType, BleGattOperationCallback callback) {
+        if (null == characteristic || null == value) {
+            return false;
+        }
+        return enqueue(new Operation(OP_WRITE_CHARACTERISTIC, characteristic, null, value,
+                writeType, callback));
+    }
+
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor,
+                                  BleGattOperationCallback callback) {
+        if (null == descriptor) {
+            return false;
+        }
+        return enqueue(new Operation(OP_READ_DESCRIPTOR, descriptor.getCharacteristic(),
+                descriptor, null, 0, callback));
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value,
+                                   BleGattOperationCallback callback) {
+        if (null == descriptor || null == value) {
+            return false;
+        }
+        return enqueue(new Operation(OP_WRITE_DESCRIPTOR, descriptor.getCharacteristic(),
+                descriptor, value, 0, callback));
+    }
+
+    /**
+     * Queue an MTU exchange. It cannot overlap a read or write, so it is
+     * serialized like one.
+     */
+    public boolean requestMtu(int mtu, BleGattOperationCallback callback) {
+        return enqueue(new Operation(mtu, callback));
+    }
+
+    /**
+     * Forward {@link BluetoothGattCallback#onCharacteristicRead} here.
+     */
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(OP_READ_CHARACTERISTIC, characteristic, null, status);
+    }
+
+    /**
+     * Forward {@link BluetoothGattCallback#onCharacteristicWrite} here.
+     */
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(OP_WRITE_CHARACTERISTIC, characteristic, null, status);
+    }
+
+    /**
+     * Forward {@link BluetoothGattCallback#onDescriptorRead} here.
+     */
+    public void onDescriptorRead(BluetoothGattDescriptor descriptor, int status) {
+        complete(OP_READ_DESCRIPTOR, null, descriptor, status);
+    }
+
+    /**
+     * Forward {@link BluetoothGattCallback#onDescriptorWrite} here.
+     */
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(OP_WRITE_DESCRIPTOR, null, descriptor, status);
+    }
+
+    /**
+     * Forward {@link BluetoothGattCallback#onMtuChanged} here.
+     */
+    public void onMtuChanged(int mtu, int status) {
+        complete(OP_REQUEST_MTU, null, null, status);
+    }
+
+    /**
+     * Withdraw the queued operations completing to a callback. An operation
+     * already dispatched to the stack cannot be withdrawn and still completes.
+     *
+     * @return true, if any operation was removed.
+     */
+    public boolean cancel(BleGattOperationCallback callback) {
+        boolean removed = false;
+        synchronized (this) {
+            Iterator<Operation> it = mPending.iterator();
+            while (it.hasNext()) {
+                if (it.next().mCallback == callback) {
+                    it.remove();
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Withdraw the queued operations completing to a callback, see
+     * {@link #cancel(BleGattOperationCallback)}, and complete them with a status
+     * so whoever waits on the callback learns they will not run.
+     *
+     * @param status status the withdrawn operations complete with.
+     * @return true, if any operation was removed.
+     */
+    public boolean cancel(BleGattOperationCallback callback, int status) {
+        LinkedList<Operation> removed = new LinkedList<Operation>();
+        synchronized (this) {
+            Iterator<Operation> it = mPending.iterator();
+            while (it.hasNext()) {
+                Operation op = it.next();
+                if (op.mCallback == callback) {
+                    it.remove();
+                    removed.add(op);
+                }
+            }
+        }
+        for (Operation op : removed) {
+            notifyCompleted(op, status);
+        }
+        return !removed.isEmpty();
+    }
+
+    /**
+     * Fail every queued and in flight operation, e.g. once the link is lost.
+     * A queue stalled by a timeout accepts operations again.
+     */
+    public void clear() {
+        LinkedList<Operation> failed = new LinkedList<Operation>();
+        synchronized (this) {
+            mStalled = false;
+            cancelTimeout();
+            if (null != mCurrent) {
+                failed.add(mCurrent);
+                mCurrent = null;
+            }
+            failed.addAll(mPending);
+            mPending.clear();
+        }
+        for (Operation op : failed) {
+            notifyCompleted(op, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    /**
+     * Fail all operations and reject any further ones.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        clear();
+    }
+
+    private boolean enqueue(Operation op) {
+        synchronized (this) {
+            if (mClosed || mStalled) {
+                return false;
+            }
+            mPending.add(op);
+        }
+        executeNext();
+        return true;
+    }
+
+    private void executeNext() {
+        while (true) {
+            Operation op;
+            synchronized (this) {
+                if (null != mCurrent || mPending.isEmpty()) {
+                    return;
+                }
+                op = mPending.removeFirst();
+                mCurrent = op;
+            }
+
+            op.mStartTime = System.nanoTime();
+            BleGattOperationCallback observer = mOperationCallback;
+            if (null != observer) {
+                observer.onOperationStarted(op);
+            }
+            if (dispatch(op)) {
+                scheduleTimeout(op);
+                return;
+            }
+
+            Log.w(TAG, "failed to start operation type=" + op.mType);
+            synchronized (this) {
+                if (mCurrent == op) {
+                    mCurrent = null;
+                }
+            }
+            notifyCompleted(op, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    private boolean dispatch(Operation op) {
+        switch (op.mType) {
+            case OP_READ_CHARACTERISTIC:
+                return mBluetoothGatt.readCharacteristic(op.mCharacteristic);
+            case OP_WRITE_CHARACTERISTIC:
+                op.mCharacteristic.setValue(op.mValue);
+                op.mCharacteristic.setWriteType(op.mWriteType);
+                return mBluetoothGatt.writeCharacteristic(op.mCharacteristic);
+            case OP_READ_DESCRIPTOR:
+                return mBluetoothGatt.readDescriptor(op.mDescriptor);
+            case OP_WRITE_DESCRIPTOR:
+                op.mDescriptor.setValue(op.mValue);
+                return mBluetoothGatt.writeDescriptor(op.mDescriptor);
+            case OP_REQUEST_MTU:
+                return mBluetoothGatt.requestMtu(op.mMtu);
+            default:
+                return false;
+        }
+    }
+
+    private void scheduleTimeout(final Operation op) {
+        long timeoutMillis = mOperationTimeoutMillis;
+        if (timeoutMillis <= 0) {
+            return;
+        }
+        ScheduledFuture<?> timeout = getWatchdog().schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(op);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            if (mCurrent == op) {
+                mTimeout = timeout;
+            } else {
+                // Completed while the timeout was being scheduled.
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    private void onTimeout(Operation op) {
+        LinkedList<Operation> failed = new LinkedList<Operation>();
+        synchronized (this) {
+            if (mCurrent != op) {
+                return;
+            }
+            mCurrent = null;
+            mTimeout = null;
+            mStalled = true;
+            failed.add(op);
+            failed.addAll(mPending);
+            mPending.clear();
+        }
+        Log.w(TAG, "operation timed out type=" + op.mType + ", dropping the link");
+        for (Operation failedOp : failed) {
+            notifyCompleted(failedOp, BluetoothGatt.GATT_FAILURE);
+        }
+        mBluetoothGatt.disconnect();
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void cancelTimeout() {
+        if (null != mTimeout) {
+            mTimeout.cancel(false);
+            mTimeout = null;
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getWatchdog() {
+        if (null == sWatchdog) {
+            sWatchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // Most operations complete in time, do not keep their timeouts around.
+            sWatchdog.setRemoveOnCancelPolicy(true);
+        }
+        return sWatchdog;
+    }
+
+    private void complete(int type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, int status) {
+        Operation op;
+        synchronized (this) {
+            op = mCurrent;
+            if (null == op || !op.matches(type, characteristic, descriptor)) {
+                Log.w(TAG, "unexpected completion type=" + type);
+                return;
+            }
+            mCurrent = null;
+            cancelTimeout();
+        }
+
+        notifyCompleted(op, status);
+        executeNext();
+    }
+
+    private void notifyCompleted(Operation op, int status) {
+        op.mEndTime = System.nanoTime();
+        if (null != op.mCallback) {
+            op.mCallback.onOperationCompleted(op, status);
+        }
+        BleGattOperationCallback observer = mOperationCallback;
+        if (null != observer) {
+            observer.onOperationCompleted(op, status);
+        }
+    }
+}
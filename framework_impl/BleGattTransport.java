@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * The GATT operations the profiles use, on characteristics addressed by
+ * service and characteristic UUID.
+ *
+ * <p>Operations are queued by the transport and run one at a time, as on a
+ * {@link BluetoothGatt} link. Each completes through the {@link Callback}, in
+ * the order it was issued. {@link BleGattConnectionTransport} runs them over a
+ * {@link BleGattConnection}, {@link BleSimulatedPeripheral} serves them from
+ * memory so profile logic can run without a radio.
+ */
+public interface BleGattTransport {
+
+    /**
+     * Receives transport events, on a thread of the transport.
+     *
+     * <p>Status values are those of {@link BluetoothGatt}, states those of
+     * {@link BluetoothProfile}. A value array is only valid during the call.
+     */
+    abstract class Callback {
+
+        /**
+         * The transport is {@link BluetoothProfile#STATE_CONNECTED} once its
+         * services are known and operations can be issued.
+         */
+        public void onConnectionStateChange(BleGattTransport transport, int status, int newState) {
+
+        }
+
+        public void onCharacteristicRead(BleGattTransport transport, UUID service,
+                                         UUID characteristic, byte[] value, int status) {
+
+        }
+
+        public void onCharacteristicWrite(BleGattTransport transport, UUID service,
+                                          UUID characteristic, int status) {
+
+        }
+
+        public void onNotificationStateChanged(BleGattTransport transport, UUID service,
+                                               UUID characteristic, int status) {
+
+        }
+
+        public void onCharacteristicChanged(BleGattTransport transport, UUID service,
+                                            UUID characteristic, byte[] value) {
+
+        }
+    }
+
+    void setCallback(Callback callback);
+
+    String getAddress();
+
+    /**
+     * @return true, if the connection attempt was initiated successfully.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    int getConnectionState();
+
+    /**
+     * @return the {@link BluetoothGattCharacteristic} PROPERTY flags of a
+     *         characteristic, 0 if the device does not have it.
+     */
+    int getProperties(UUID service, UUID characteristic);
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+
+    /**
+     * @param writeType a {@link BluetoothGattCharacteristic} WRITE_TYPE constant.
+     */
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value, int writeType);
+
+    /**
+     * Enable or disable notification, indication for a characteristic that
+     * cannot notify.
+     */
+    boolean setNotification(UUID service, UUID characteristic, boolean enable);
+
+    /**
+     * Fail pending operations and stop delivering callbacks.
+     */
+    void close();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persistent cache of Characteristic Presentation Format descriptor values.
+ *
+ * <p>The descriptor of a characteristic never changes for a given device
+ * database, so it only needs to be read once per device. Values are keyed by
+ * device address plus a hash of the service layout; a firmware update that
+ * changes the service misses the cache and the descriptor is read again.
+ */
+public class BlePresentationFormatCache {
+
+    private static final String PREFS_NAME = "BlePresentationFormatCache";
+    private static final int CPF_LENGTH = 7;
+
+    private static BlePresentationFormatCache sInstance=null;
+
+    private final SharedPreferences mPrefs;
+
+    public static synchronized BlePresentationFormatCache getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BlePresentationFormatCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BlePresentationFormatCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the cached descriptor value.
+     *
+     * @param address remote device address.
+     * @param descriptor presentation format descriptor of the device.
+     * @return the 7 byte descriptor value, or null if it is not cached.
+     */
+    public byte[] get(String address, BluetoothGattDescriptor descriptor) {
+        long packed = mPrefs.getLong(getKey(address, descriptor), -1);
+        if (packed < 0) {
+            return null;
+        }
+
+        byte[] value = new byte[CPF_LENGTH];
+        for (int i = 0; i < CPF_LENGTH; i++) {
+            value[i] = (byte) (packed >>> (8 * i));
+        }
+        return value;
+    }
+
+    /**
+     * Store a descriptor value read from the remote device.
+     *
+     * @param address remote device address.
+     * @param descriptor presentation format descriptor holding the read value.
+     */
+    public void put(String address, BluetoothGattDescriptor descriptor) {
+        byte[] value = descriptor.getValue();
+        if (null == value || value.length != CPF_LENGTH) {
+            return;
+        }
+
+        // 7 bytes fit a non negative long.
+        long packed = 0;
+        for (int i = 0; i < CPF_LENGTH; i++) {
+            packed |= (long) (value[i] & 0xFF) << (8 * i);
+        }
+        mPrefs.edit().putLong(getKey(address, descriptor), packed).apply();
+    }
+
+    /**
+     * Forget every value cached for a device.
+     */
+    public void remove(String address) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(address + '/')) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    private static String getKey(String address, BluetoothGattDescriptor descriptor) {
+        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        return address + '/' + characteristic.getUuid() + '/'
+                + Integer.toHexString(getServiceHash(characteristic.getService()));
+    }
+
+    private static int getServiceHash(BluetoothGattService service) {
+        if (null == service) {
+            return 0;
+        }
+
+        int hash = service.getUuid().hashCode();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            hash = 31 * hash + characteristic.getUuid().hashCode();
+            hash = 31 * hash + characteristic.getInstanceId();
+            hash = 31 * hash + characteristic.getProperties();
+            for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                hash = 31 * hash + descriptor.getUuid().hashCode();
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.List;
+
+/**
+ * Persistent snapshot of the service layout discovered on each device.
+ *
+ * <p>Two values are kept per device address. The fingerprint is a 64 bit hash
+ * of every service, characteristic and descriptor with their instance ids and
+ * properties, it tells whether a fresh discovery found the same database as
+ * before. The Database Hash is read from the device itself, from the Generic
+ * Attribute service of Bluetooth 4.2+ devices, it tells whether the services
+ * a {@link BluetoothGatt} still holds from the previous link can be used again
+ * without a discovery.
+ */
+public class BleServiceSnapshotCache {
+
+    private static final String PREFS_NAME = "BleServiceSnapshotCache";
+    private static final String DATABASE_HASH_SUFFIX = "/hash";
+    // Never produced by getFingerprint(), which only hashes non empty databases.
+    private static final long NO_SNAPSHOT = 0;
+
+    private static BleServiceSnapshotCache sInstance=null;
+
+    private final SharedPreferences mPrefs;
+
+    public static synchronized BleServiceSnapshotCache getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BleServiceSnapshotCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BleServiceSnapshotCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Store the services discovered on a device.
+     *
+     * @return true, if the device had no snapshot or a different one.
+     */
+    public boolean put(String address, List<BluetoothGattService> services) {
+        long fingerprint = getFingerprint(services);
+        if (fingerprint == NO_SNAPSHOT) {
+            return false;
+        }
+        if (mPrefs.getLong(address, NO_SNAPSHOT) == fingerprint) {
+            return false;
+        }
+        mPrefs.edit().putLong(address, fingerprint).apply();
+        return true;
+    }
+
+    /**
+     * @return the Database Hash last read from the device, or null.
+     */
+    public byte[] getDatabaseHash(String address) {
+        String hex = mPrefs.getString(address + DATABASE_HASH_SUFFIX, null);
+        if (null == hex) {
+            return null;
+        }
+        byte[] hash = new byte[hex.length() / 2];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return hash;
+    }
+
+    public void putDatabaseHash(String address, byte[] hash) {
+        if (null == hash || hash.length == 0) {
+            return;
+        }
+        StringBuilder hex = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        mPrefs.edit().putString(address + DATABASE_HASH_SUFFIX, hex.toString()).apply();
+    }
+
+    /**
+     * Forget the snapshot of a device, e.g. once it is unpaired.
+     */
+    public void remove(String address) {
+        mPrefs.edit().remove(address).remove(address + DATABASE_HASH_SUFFIX).apply();
+    }
+
+    static long getFingerprint(List<BluetoothGattService> services) {
+        if (null == services || services.isEmpty()) {
+            return NO_SNAPSHOT;
+        }
+
+        long hash = 1;
+        for (BluetoothGattService service : services) {
+            hash = 31 * hash + service.getUuid().hashCode();
+            hash = 31 * hash + service.getInstanceId();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = 31 * hash + characteristic.getUuid().hashCode();
+                hash = 31 * hash + characteristic.getInstanceId();
+                hash = 31 * hash + characteristic.getProperties();
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    hash = 31 * hash + descriptor.getUuid().hashCode();
+                }
+            }
+        }
+        return (hash == NO_SNAPSHOT) ? 1 : hash;
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory peripheral serving the Battery and Immediate Alert services
+ * through a {@link BleGattTransport}.
+ *
+ * <p>Each operation completes after the latency plus a uniformly distributed
+ * jitter. A dropped request is never answered and fails once the operation
+ * timeout expires; unlike {@link BleGattOperationQueue}, the link stays up. A
+ * dropped write without response or notification is lost silently. The
+ * battery drains at a set rate, its level is notified at a set interval while
+ * notification is on.
+ *
+ * <p>It uses no Android API at run time. Peripherals share a small pool of
+ * scheduler threads, so thousands of them can run in one JVM. Give the same
+ * seed to repeat a run.
+ */
+public class BleSimulatedPeripheral implements BleGattTransport {
+
+    private static final String TAG = "BleSimulatedPeripheral";
+
+    public static final UUID BATTERY_SERVICE_UUID =
+            UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    public static final UUID BATTERY_LEVEL_CHARACTER_UUID =
+            UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    public static final UUID IMMEDIATE_ALERT_SERVICE_UUID =
+            UUID.fromString("00001802-0000-1000-8000-00805f9b34fb");
+    public static final UUID ALERT_LEVEL_CHARACTER_UUID =
+            UUID.fromString("00002a06-0000-1000-8000-00805f9b34fb");
+
+    private static final int OP_READ=1;
+    private static final int OP_WRITE=2;
+    private static final int OP_NOTIFICATION=3;
+
+    private static ScheduledExecutorService sExecutor=null;
+
+    private static final class Operation {
+        final int mType;
+        final UUID mService;
+        final UUID mCharacteristic;
+        final byte[] mValue;
+        final boolean mEnable;
+        byte[] mResult=null;
+
+        Operation(int type, UUID service, UUID characteristic, byte[] value, boolean enable) {
+            mType = type;
+            mService = service;
+            mCharacteristic = characteristic;
+            mValue = value;
+            mEnable = enable;
+        }
+    }
+
+    private final String mAddress;
+    private final Random mRandom;
+    private final ScheduledExecutorService mExecutor;
+    private volatile Callback mCallback=null;
+
+    // Link model.
+    private volatile long mLatencyMicros=7500;
+    private volatile long mJitterMicros=0;
+    private volatile float mDropRate=0;
+    private volatile long mConnectMillis=20;
+    private volatile long mOperationTimeoutMillis=5000;
+    private volatile long mNotifyIntervalMillis=1000;
+    private volatile boolean mNotifySupported=true;
+
+    // Device state, guarded by this.
+    private int mConnectionState=BluetoothProfile.STATE_DISCONNECTED;
+    // Bumped on every link change, so completions of an old link are dropped.
+    private int mGeneration=0;
+    private boolean mClosed=false;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mCurrent=null;
+    private ScheduledFuture<?> mNotifyTask=null;
+    private int mBatteryStartLevel=100;
+    private long mBatteryStartTime=System.nanoTime();
+    private float mDrainPerHour=0;
+    private volatile int mAlertLevel=0;
+
+    private long mOperationCount=0;
+    private long mDroppedCount=0;
+    private long mNotificationCount=0;
+
+    /**
+     * @param address address reported by {@link #getAddress()}.
+     * @param seed seed of the latency, jitter and drop draws.
+     */
+    public BleSimulatedPeripheral(String address, long seed) {
+        mAddress = address;
+        mRandom = new Random(seed);
+        mExecutor = getExecutor();
+    }
+
+    /**
+     * @param latencyMicros time every operation takes, 7500 for the shortest
+     *                      connection interval.
+     * @param jitterMicros up to this much is added to each operation at random.
+     */
+    public void setLatency(long latencyMicros, long jitterMicros) {
+        mLatencyMicros = latencyMicros;
+        mJitterMicros = jitterMicros;
+    }
+
+    /**
+     * @param dropRate share of requests and notifications lost, 0 to 1.
+     */
+    public void setDropRate(float dropRate) {
+        mDropRate = dropRate;
+    }
+
+    public void setConnectMillis(long connectMillis) {
+        mConnectMillis = connectMillis;
+    }
+
+    /**
+     * @param timeoutMillis time after which a dropped request fails.
+     */
+    public void setOperationTimeout(long timeoutMillis) {
+        mOperationTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param intervalMillis time between two battery level notifications.
+     */
+    public void setNotifyInterval(long intervalMillis) {
+        mNotifyIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Offer the battery level for reading only, like many tags do.
+     */
+    public void setNotifySupported(boolean supported) {
+        mNotifySupported = supported;
+    }
+
+    /**
+     * @param level battery level now, in percent.
+     * @param drainPerHour percent lost per hour from now on.
+     */
+    public synchronized void setBattery(int level, float drainPerHour) {
+        mBatteryStartLevel = level;
+        mBatteryStartTime = System.nanoTime();
+        mDrainPerHour = drainPerHour;
+    }
+
+    public synchronized int getBatteryLevel() {
+        float hours = (System.nanoTime() - mBatteryStartTime) / 3.6e12f;
+        return Math.max(0, Math.round(mBatteryStartLevel - mDrainPerHour * hours));
+    }
+
+    /**
+     * @return alert level last written to the Immediate Alert service.
+     */
+    public int getAlertLevel() {
+        return mAlertLevel;
+    }
+
+    /**
+     * @return number of requests handled, dropped ones included.
+     */
+    public synchronized long getOperationCount() {
+        return mOperationCount;
+    }
+
+    /**
+     * @return number of requests and notifications lost.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        if (mClosed) {
+            return false;
+        }
+        if (mConnectionState != BluetoothProfile.STATE_DISCONNECTED) {
+            return true;
+        }
+        mConnectionState = BluetoothProfile.STATE_CONNECTING;
+        final int generation = mGeneration;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleSimulatedPeripheral.this) {
+                    if (generation != mGeneration || mClosed) {
+                        return;
+                    }
+                    mConnectionState = BluetoothProfile.STATE_CONNECTED;
+                }
+                Callback callback = mCallback;
+                if (null != callback) {
+                    callback.onConnectionStateChange(BleSimulatedPeripheral.this,
+                            BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+                }
+            }
+        }, mConnectMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        dropLink(false);
+    }
+
+    @Override
+    public synchronized int getConnectionState() {
+        return mConnectionState;
+    }
+
+    @Override
+    public int getProperties(UUID service, UUID characteristic) {
+        if (BATTERY_SERVICE_UUID.equals(service)
+                && BATTERY_LEVEL_CHARACTER_UUID.equals(characteristic)) {
+            return BluetoothGattCharacteristic.PROPERTY_READ
+                    | (mNotifySupported ? BluetoothGattCharacteristic.PROPERTY_NOTIFY : 0);
+        }
+        if (IMMEDIATE_ALERT_SERVICE_UUID.equals(service)
+                && ALERT_LEVEL_CHARACTER_UUID.equals(characteristic)) {
+            return BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        if ((getProperties(service, characteristic) & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+            return false;
+        }
+        return enqueue(new Operation(OP_READ, service, characteristic, null, false));
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value,
+                                       int writeType) {
+        if (0 == getProperties(service, characteristic) || null == value || value.length < 1) {
+            return false;
+        }
+        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return writeWithoutResponse(service, characteristic, value);
+        }
+        return enqueue(new Operation(OP_WRITE, service, characteristic, value.clone(), false));
+    }
+
+    @Override
+    public boolean setNotification(UUID service, UUID characteristic, boolean enable) {
+        if ((getProperties(service, characteristic)
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            return false;
+        }
+        return enqueue(new Operation(OP_NOTIFICATION, service, characteristic, null, enable));
+    }
+
+    @Override
+    public void close() {
+        dropLink(true);
+        mCallback = null;
+    }
+
+    private synchronized boolean enqueue(Operation operation) {
+        if (mClosed || mConnectionState != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+        mPending.add(operation);
+        if (null == mCurrent) {
+            startNext();
+        }
+        return true;
+    }
+
+    /**
+     * Start the next request, called with the lock held.
+     */
+    private void startNext() {
+        final Operation operation = mPending.poll();
+        mCurrent = operation;
+        if (null == operation) {
+            return;
+        }
+        mOperationCount++;
+        final int generation = mGeneration;
+        long delayMicros;
+        final int status;
+        if (mRandom.nextFloat() < mDropRate) {
+            mDroppedCount++;
+            delayMicros = mOperationTimeoutMillis * 1000;
+            status = BluetoothGatt.GATT_FAILURE;
+        } else {
+            delayMicros = getDelayMicros();
+            status = BluetoothGatt.GATT_SUCCESS;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(operation, generation, status);
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void complete(Operation operation, int generation, int status) {
+        synchronized (this) {
+            if (generation != mGeneration || mCurrent != operation) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                apply(operation);
+            }
+            startNext();
+        }
+        notifyCompleted(operation, status);
+    }
+
+    /**
+     * Carry out a request on the device state, called with the lock held.
+     */
+    private void apply(Operation operation) {
+        switch (operation.mType) {
+            case OP_READ:
+                operation.mResult = new byte[] {(byte) getBatteryLevel()};
+                break;
+            case OP_WRITE:
+                mAlertLevel = operation.mValue[0] & 0xFF;
+                break;
+            case OP_NOTIFICATION:
+                if (null != mNotifyTask) {
+                    mNotifyTask.cancel(false);
+                    mNotifyTask = null;
+                }
+                if (operation.mEnable) {
+                    startNotifications();
+                }
+                break;
+        }
+    }
+
+    private void notifyCompleted(Operation operation, int status) {
+        Callback callback = mCallback;
+        if (null == callback) {
+            return;
+        }
+        switch (operation.mType) {
+            case OP_READ:
+                callback.onCharacteristicRead(this, operation.mService, operation.mCharacteristic,
+                        operation.mResult, status);
+                break;
+            case OP_WRITE:
+                callback.onCharacteristicWrite(this, operation.mService,
+                        operation.mCharacteristic, status);
+                break;
+            case OP_NOTIFICATION:
+                callback.onNotificationStateChanged(this, operation.mService,
+                        operation.mCharacteristic, status);
+                break;
+        }
+    }
+
+    /**
+     * A write without response goes out at the next connection event and is
+     * never acknowledged, it completes locally whether or not it arrives.
+     */
+    private boolean writeWithoutResponse(final UUID service, final UUID characteristic,
+                                         byte[] value) {
+        final int level = value[0] & 0xFF;
+        final int generation;
+        final boolean dropped;
+        synchronized (this) {
+            if (mClosed || mConnectionState != BluetoothProfile.STATE_CONNECTED) {
+                return false;
+            }
+            mOperationCount++;
+            dropped = mRandom.nextFloat() < mDropRate;
+            if (dropped) {
+                mDroppedCount++;
+            }
+            generation = mGeneration;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BleSimulatedPeripheral.this) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    if (!dropped) {
+                        mAlertLevel = level;
+                    }
+                }
+                Callback callback = mCallback;
+                if (null != callback) {
+                    callback.onCharacteristicWrite(BleSimulatedPeripheral.this, service,
+                            characteristic, BluetoothGatt.GATT_SUCCESS);
+                }
+            }
+        }, getDelayMicros(), TimeUnit.MICROSECONDS);
+        return true;
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void startNotifications() {
+        final int generation = mGeneration;
+        long interval = Math.max(1, mNotifyIntervalMillis);
+        mNotifyTask = mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                int level;
+                synchronized (BleSimulatedPeripheral.this) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    if (mRandom.nextFloat() < mDropRate) {
+                        mDroppedCount++;
+                        return;
+                    }
+                    mNotificationCount++;
+                    level = getBatteryLevel();
+                }
+                Callback callback = mCallback;
+                if (null != callback) {
+                    callback.onCharacteristicChanged(BleSimulatedPeripheral.this,
+                            BATTERY_SERVICE_UUID, BATTERY_LEVEL_CHARACTER_UUID,
+                            new byte[] {(byte) level});
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void dropLink(boolean close) {
+        Operation[] failed;
+        boolean wasUp;
+        synchronized (this) {
+            wasUp = mConnectionState != BluetoothProfile.STATE_DISCONNECTED;
+            mClosed |= close;
+            mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+            mGeneration++;
+            if (null != mNotifyTask) {
+                mNotifyTask.cancel(false);
+                mNotifyTask = null;
+            }
+            int count = mPending.size() + ((null == mCurrent) ? 0 : 1);
+            failed = new Operation[count];
+            int i = 0;
+            if (null != mCurrent) {
+                failed[i++] = mCurrent;
+                mCurrent = null;
+            }
+            while (!mPending.isEmpty()) {
+                failed[i++] = mPending.poll();
+            }
+        }
+        Callback callback = mCallback;
+        if (!wasUp || null == callback) {
+            return;
+        }
+        callback.onConnectionStateChange(this, BluetoothGatt.GATT_SUCCESS,
+                BluetoothProfile.STATE_DISCONNECTED);
+        for (Operation operation : failed) {
+            notifyCompleted(operation, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    private long getDelayMicros() {
+        long jitter = mJitterMicros;
+        return mLatencyMicros + ((jitter > 0) ? (long) (mRandom.nextDouble() * jitter) : 0);
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (null == sExecutor) {
+            sExecutor = Executors.newScheduledThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Tieto Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+/**
+ * Persistent CCCD values last written to bonded devices.
+ *
+ * <p>A bonded device keeps the Client Characteristic Configuration of each
+ * characteristic across connections, so a value it already holds does not
+ * need to be written again. Values are keyed by device address, service and
+ * characteristic. They should be dropped whenever the database of the device
+ * changes, since its configuration may have been reset with it.
+ */
+public class BleSubscriptionCache {
+
+    private static final String PREFS_NAME = "BleSubscriptionCache";
+
+    /** Returned by {@link #get(String, UUID, UUID)} for an unknown value. */
+    public static final int UNKNOWN = -1;
+
+    private static BleSubscriptionCache sInstance=null;
+
+    private final SharedPreferences mPrefs;
+
+    public static synchronized BleSubscriptionCache getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BleSubscriptionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BleSubscriptionCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return first byte of the CCCD value held by the device, or {@link #UNKNOWN}.
+     */
+    public int get(String address, UUID service, UUID characteristic) {
+        return mPrefs.getInt(getKey(address, service, characteristic), UNKNOWN);
+    }
+
+    public void put(String address, UUID service, UUID characteristic, int value) {
+        String key = getKey(address, service, characteristic);
+        if (mPrefs.getInt(key, UNKNOWN) != value) {
+            mPrefs.edit().putInt(key, value).apply();
+        }
+    }
+
+    /**
+     * Forget every value of a device.
+     */
+    public void remove(String address) {
+        String prefix = address + '/';
+        SharedPreferences.Editor editor = null;
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                if (null == editor) {
+                    editor = mPrefs.edit();
+                }
+                editor.remove(key);
+            }
+        }
+        if (null != editor) {
+            editor.apply();
+        }
+    }
+
+    private static String getKey(String address, UUID service, UUID characteristic) {
+        return address + '/' + service + '/' + characteristic;
+    }
+}